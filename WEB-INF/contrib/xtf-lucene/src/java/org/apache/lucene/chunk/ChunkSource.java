@@ -127,6 +127,16 @@ public class ChunkSource
     chunk.text = reader.document(chunkNum).get(field);
   }
 
+  /**
+   * Make a token stream for the text of a chunk (derived classes may
+   * wish to override, for instance to use tokens stored in the index.)
+   */
+  protected TokenStream tokenize(Chunk chunk)
+    throws IOException 
+  {
+    return analyzer.tokenStream(field, new StringReader(chunk.text));
+  }
+
   /**
    * Read in and tokenize a chunk. Maintains a cache of recently loaded
    * chunks for speed.
@@ -153,8 +163,7 @@ public class ChunkSource
       loadText(chunkNum, chunk);
 
       // Make a token stream out of it.
-      TokenStream stream = analyzer.tokenStream(field,
-                                                new StringReader(chunk.text));
+      TokenStream stream = tokenize(chunk);
 
       // Pull out all the tokens and make them into a list. Stop at the
       // first token when overlaps with the next chunk (unless this is
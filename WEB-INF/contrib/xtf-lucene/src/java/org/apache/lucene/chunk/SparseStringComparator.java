@@ -44,7 +44,8 @@ public class SparseStringComparator implements SortComparatorSource
   private static final EntryComparator entryComparator = new EntryComparator();
 
   /** Make a comparator for the given field using the given reader */
-  public ScoreDocComparator newComparator(IndexReader reader, String fieldName)
+  public synchronized ScoreDocComparator newComparator(IndexReader reader,
+                                                       String fieldName)
     throws IOException 
   {
     // Check if we have a cache for this reader yet. If not, make one.
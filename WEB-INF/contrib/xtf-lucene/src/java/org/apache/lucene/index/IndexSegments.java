@@ -0,0 +1,144 @@
+package org.apache.lucene.index;
+
+/*
+ * Copyright 2006-2007 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import org.apache.lucene.store.Directory;
+
+/**
+ * Exposes the individual segments that make up an index reader, so that
+ * costly per-reader data can instead be built per segment, and re-used when
+ * the index is re-opened with some of the same segments. Lucene 2.1 keeps
+ * the sub-readers of a {@link MultiReader} private, so we get at them by
+ * reflection.
+ *
+ * @author Martin Haye
+ */
+public class IndexSegments
+{
+  /** Field holding the sub-readers of a MultiReader, or null if unavailable */
+  private static Field subReadersField;
+
+  /** The segment readers */
+  private IndexReader[] readers;
+
+  /** Starting document ID of each segment within the full reader */
+  private int[] starts;
+
+  /** Key identifying the contents of each segment */
+  private String[] keys;
+
+  static {
+    try {
+      subReadersField = MultiReader.class.getDeclaredField("subReaders");
+      subReadersField.setAccessible(true);
+    }
+    catch (Exception e) {
+      subReadersField = null;
+    }
+  }
+
+  /**
+   * Break down a reader into its segments.
+   *
+   * @param reader  A reader obtained from IndexReader.open()
+   * @return        The segments, or null if the reader isn't made up of
+   *                segments we can identify.
+   */
+  public static IndexSegments get(IndexReader reader)
+    throws IOException
+  {
+    IndexReader[] readers;
+    if (reader instanceof SegmentReader)
+      readers = new IndexReader[] { reader };
+    else if (reader instanceof MultiReader && subReadersField != null)
+    {
+      try {
+        readers = (IndexReader[])subReadersField.get(reader);
+      }
+      catch (IllegalAccessException e) {
+        return null;
+      }
+      if (readers == null)
+        return null;
+      for (int i = 0; i < readers.length; i++) {
+        if (!(readers[i] instanceof SegmentReader))
+          return null;
+      }
+    }
+    else
+      return null;
+
+    return new IndexSegments(readers);
+  } // get()
+
+  /** Construct from an array of segment readers */
+  private IndexSegments(IndexReader[] readers)
+    throws IOException
+  {
+    this.readers = readers;
+    starts = new int[readers.length];
+    keys = new String[readers.length];
+
+    int start = 0;
+    for (int i = 0; i < readers.length; i++) {
+      starts[i] = start;
+      keys[i] = calcKey((SegmentReader)readers[i]);
+      start += readers[i].maxDoc();
+    }
+  } // constructor
+
+  /**
+   * Form a key for a segment. Segment names are only unique within a single
+   * run of the indexer, so we add the modification time of its files (which
+   * is preserved when an index is copied with hard links or renamed), plus
+   * the document counts so that new deletions make a new key.
+   */
+  private static String calcKey(SegmentReader reader)
+    throws IOException
+  {
+    String name = reader.getSegmentName();
+    Directory dir = reader.directory();
+    String file = name + ".cfs";
+    if (!dir.fileExists(file))
+      file = name + ".fnm";
+    return name + ":" + dir.fileModified(file) + ":" +
+           reader.maxDoc() + ":" + reader.numDocs();
+  } // calcKey()
+
+  /** Get the number of segments */
+  public int size() {
+    return readers.length;
+  }
+
+  /** Get the reader for a segment */
+  public IndexReader reader(int seg) {
+    return readers[seg];
+  }
+
+  /** Get the first document ID of a segment within the full reader */
+  public int start(int seg) {
+    return starts[seg];
+  }
+
+  /** Get a key identifying the contents of a segment */
+  public String key(int seg) {
+    return keys[seg];
+  }
+} // class IndexSegments
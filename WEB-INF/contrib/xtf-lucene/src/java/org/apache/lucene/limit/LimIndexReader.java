@@ -19,6 +19,7 @@ package org.apache.lucene.limit;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.index.IndexReader;
@@ -40,7 +41,7 @@ public class LimIndexReader extends IndexReader
 {
   private IndexReader wrapped;
   private int workLimit;
-  private int workCount = 0;
+  private AtomicInteger workCount = new AtomicInteger(0);
 
   /**
    * Wrap an index reader and enforce the specified limit.
@@ -65,8 +66,8 @@ public class LimIndexReader extends IndexReader
   protected void work(int amount)
     throws IOException 
   {
-    workCount += amount;
-    if (workCount > workLimit)
+    // The count is shared by all threads working on a (parallel) search.
+    if (workCount.addAndGet(amount) > workLimit)
       throw new ExcessiveWorkException();
   } // work()
 
@@ -46,7 +46,8 @@ public class FlippableStringComparator implements SortComparatorSource
   private static final WeakHashMap cache = new WeakHashMap();
 
   /** Make a comparator for the given field using the given reader */
-  public ScoreDocComparator newComparator(IndexReader reader, String fieldName)
+  public synchronized ScoreDocComparator newComparator(IndexReader reader,
+                                                       String fieldName)
       throws IOException
   {
     // Check if we have a cache for this reader yet. If not, make one.
@@ -97,29 +97,32 @@ public abstract class QueryRewriter
    */
   protected Query rewrite(BooleanQuery bq) 
   {
-    Vector newClauses = new Vector();
+    // Don't allocate a new clause list unless something actually changes.
+    Vector newClauses = null;
     BooleanClause[] clauses = bq.getClauses();
-    boolean anyChange = false;
     for (int i = 0; i < clauses.length; i++) 
     {
       // Rewrite the clause and/or its descendants
       Query rewrittenQuery = rewriteQuery(clauses[i].getQuery());
       if (rewrittenQuery != clauses[i].getQuery()) 
       {
-        anyChange = true;
+        if (newClauses == null)
+          newClauses = copyClauses(clauses, i);
         if (rewrittenQuery != null) {
           newClauses.add(new BooleanClause(rewrittenQuery,
                                            clauses[i].getOccur()));
         }
       }
-      else
+      else if (newClauses != null)
         newClauses.add(clauses[i]);
     }
 
     // If no clauses changed, then the BooleanQuery doesn't change either.
     boolean force = forceRewrite(bq);
-    if (!anyChange && !force)
+    if (newClauses == null && !force)
       return bq;
+    if (newClauses == null)
+      newClauses = copyClauses(clauses, clauses.length);
 
     // If we ended up with nothing, let the caller know.
     if (newClauses.isEmpty())
@@ -420,27 +423,30 @@ public abstract class QueryRewriter
   protected Query rewriteClauses(Query oldQuery, SpanQuery[] oldClauses,
                                  boolean promoteSingle, SpanClauseJoiner joiner) 
   {
-    Vector newClauses = new Vector();
-    boolean anyChanges = false;
+    // Don't allocate a new clause list unless something actually changes.
+    Vector newClauses = null;
 
     for (int i = 0; i < oldClauses.length; i++) 
     {
       SpanQuery clause = (SpanQuery)rewriteQuery(oldClauses[i]);
-      if (clause != oldClauses[i])
-        anyChanges = true;
+      if (clause != oldClauses[i] && newClauses == null)
+        newClauses = copyClauses(oldClauses, i);
 
       // If the clause ended up null, skip it.
       if (clause == null)
         continue;
 
       // Retain everything else.
-      newClauses.add(clause);
+      if (newClauses != null)
+        newClauses.add(clause);
     } // for i
 
     // If no changes, just return the original clauses.
     boolean force = forceRewrite(oldQuery);
-    if (!anyChanges && !force)
+    if (newClauses == null && !force)
       return oldQuery;
+    if (newClauses == null)
+      newClauses = copyClauses(oldClauses, oldClauses.length);
 
     // If we ended up with zero clauses, let the caller know they can delete
     // the query.
@@ -466,6 +472,18 @@ public abstract class QueryRewriter
     return copyBoost(oldQuery, newQuery);
   }
 
+  /**
+   * Make a new list containing the first 'n' elements of an array. Used
+   * to start building a new clause list once the first change is found.
+   */
+  private static Vector copyClauses(Object[] clauses, int n) 
+  {
+    Vector ret = new Vector(clauses.length);
+    for (int i = 0; i < n; i++)
+      ret.add(clauses[i]);
+    return ret;
+  }
+
   /** Utility class that joins clauses into an Or query, And query, etc. */
   public interface SpanClauseJoiner {
     public SpanQuery join(SpanQuery[] clauses);
@@ -19,10 +19,16 @@ package org.apache.lucene.search;
 import java.io.IOException;
 import java.util.BitSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.spans.SpanRecordingScorer;
 import org.apache.lucene.index.IndexReader;
 
@@ -35,6 +41,7 @@ public class RecordingSearcher extends IndexSearcher
 {
   private IndexReader reader;
   private Vector registered;
+  private boolean recordSpans = true;
 
   /** Creates a searcher searching the provided index. */
   public RecordingSearcher(IndexReader r) {
@@ -42,6 +49,20 @@ public class RecordingSearcher extends IndexSearcher
     reader = r;
   }
 
+  /** Specifies whether span queries should record their matching spans.
+   * Turning this off makes searching faster when only the documents and
+   * their scores are needed; the spans passed to collectors will then
+   * always be empty.
+   */
+  public void setRecordSpans(boolean flag) {
+    recordSpans = flag;
+  }
+
+  /** Tells whether span queries should record their matching spans. */
+  public boolean recordSpans() {
+    return recordSpans;
+  }
+
   /** Lower-level search API which supports span collection.
    *
    * <p>{@link SpanHitCollector#collect(int,float,FieldSpanSource)} is called
@@ -104,6 +125,171 @@ public class RecordingSearcher extends IndexSearcher
     }
   }
 
+  /** Lower-level search API which only scores a range of documents.
+   *
+   * <p>{@link SpanHitCollector#collect(int,float,FieldSpanSource)} is called
+   * for every non-zero scoring document from <code>start</code> up to (but
+   * not including) <code>end</code> which matches the filter. The scorer
+   * skips straight to the start, so documents outside the range cost
+   * little or nothing. The caller must choose the range such that no hit
+   * can span its boundaries.
+   */
+  public void search(Query query, Filter filter, int start, int end,
+                     SpanHitCollector results)
+    throws IOException
+  {
+    Scorer scorer;
+    SpanRecordingScorer[] recordingScorers;
+    synchronized (this) { // prevent other threads from registering scorers
+      registered = new Vector();
+      scorer = query.weight(this).scorer(reader);
+      recordingScorers = (SpanRecordingScorer[])registered.toArray(
+        new SpanRecordingScorer[registered.size()]);
+      registered = null;
+    }
+    BitSet bits = (filter == null) ? null : filter.bits(reader);
+    scorePartition(scorer, new FieldSpanSource(recordingScorers), results,
+                   start, end, bits, new AtomicBoolean(false));
+  }
+
+  /** Lower-level search API which divides the work among several threads.
+   *
+   * <p>The range of document numbers is split into consecutive partitions,
+   * each of which is scored by its own scorer. The caller must choose
+   * partition boundaries such that no hit can span two partitions.
+   * {@link SpanHitCollector#collect(int,float,FieldSpanSource)} is called
+   * on the partition's own collector for every non-zero scoring document
+   * in that partition which matches the filter. A given collector is only
+   * ever called by one thread.
+   *
+   * @param query       Query to run
+   * @param filter      Filter to apply, or null for none
+   * @param starts      First document number of each partition, in
+   *                    increasing order. The last partition extends to
+   *                    the end of the index.
+   * @param collectors  One collector per partition
+   * @param executor    Used to run all partitions but the first, which is
+   *                    run by the calling thread.
+   */
+  public void search(Query query, Filter filter, final int[] starts,
+                     final SpanHitCollector[] collectors, Executor executor)
+    throws IOException 
+  {
+    final int nParts = starts.length;
+    final BitSet bits = (filter == null) ? null : filter.bits(reader);
+
+    // Form the weight just once, so that expensive rewriting (such as
+    // wildcard expansion) isn't repeated for every partition. Then make
+    // a separate scorer for each partition, keeping track of the 
+    // SpanRecordingScorers that register themselves for each one.
+    //
+    final Scorer[] scorers = new Scorer[nParts];
+    final FieldSpanSource[] spanSources = new FieldSpanSource[nParts];
+    synchronized (this) { // prevent other threads from registering scorers
+      Weight weight = query.weight(this);
+      for (int i = 0; i < nParts; i++) {
+        registered = new Vector();
+        scorers[i] = weight.scorer(reader);
+        spanSources[i] = new FieldSpanSource(
+          (SpanRecordingScorer[])registered.toArray(
+            new SpanRecordingScorer[registered.size()]));
+      }
+      registered = null;
+    }
+    if (scorers[0] == null)
+      return;
+
+    // Start all partitions but the first on the executor.
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    FutureTask[] tasks = new FutureTask[nParts];
+    for (int i = 1; i < nParts; i++) 
+    {
+      final int part = i;
+      tasks[i] = new FutureTask(new Callable() 
+      {
+        public Object call() throws IOException {
+          scorePartition(scorers[part], spanSources[part], collectors[part],
+                         starts[part], 
+                         (part + 1 < nParts) ? starts[part + 1] 
+                                             : Integer.MAX_VALUE,
+                         bits, failed);
+          return null;
+        }
+      });
+      executor.execute(tasks[i]);
+    }
+
+    // Run the first partition in this thread.
+    Throwable error = null;
+    try {
+      scorePartition(scorers[0], spanSources[0], collectors[0], starts[0],
+                     (nParts > 1) ? starts[1] : Integer.MAX_VALUE, bits,
+                     failed);
+    }
+    catch (Throwable t) {
+      failed.set(true);
+      error = t;
+    }
+
+    // Wait for the rest to finish (even if one failed, since they're
+    // still using the index.)
+    //
+    for (int i = 1; i < nParts; i++) 
+    {
+      while (true) 
+      {
+        try {
+          tasks[i].get();
+        }
+        catch (InterruptedException e) {
+          continue;
+        }
+        catch (ExecutionException e) {
+          failed.set(true);
+          if (error == null)
+            error = e.getCause();
+        }
+        break;
+      }
+    }
+
+    // Pass on the first error encountered, if any.
+    if (error instanceof IOException)
+      throw (IOException)error;
+    if (error instanceof RuntimeException)
+      throw (RuntimeException)error;
+    if (error instanceof Error)
+      throw (Error)error;
+    if (error != null)
+      throw new RuntimeException(error);
+  }
+
+  /** Score all the documents in one partition and collect them. */
+  private void scorePartition(Scorer scorer, FieldSpanSource spanSource,
+                              SpanHitCollector collector, int start, int end,
+                              BitSet bits, AtomicBoolean failed)
+    throws IOException 
+  {
+    if (scorer == null || !scorer.skipTo(start))
+      return;
+    do 
+    {
+      // Stop early if another partition has failed.
+      if (failed.get())
+        return;
+
+      int doc = scorer.doc();
+      if (doc >= end)
+        break;
+      if (doc < start)
+        continue;
+      spanSource.curDoc = doc;
+      float score = scorer.score(); // must call before recordSpans()
+      if (bits == null || bits.get(doc))
+        collector.collect(doc, score, spanSource);
+    } while (scorer.next());
+  }
+
   // Called while building the scorers for a query. All SpanRecordingScorers
   // will register themselves.
   //
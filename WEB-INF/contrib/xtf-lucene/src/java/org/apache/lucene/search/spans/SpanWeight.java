@@ -21,6 +21,7 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.RecordingSearcher;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Explanation;
 
@@ -65,7 +66,13 @@ class SpanWeight implements Weight
   public Scorer scorer(IndexReader reader)
     throws IOException 
   {
-    if (query.getSpanRecording() == 0) {
+    // Only record spans if they're wanted.
+    boolean record = query.getSpanRecording() != 0;
+    if (searcher instanceof RecordingSearcher &&
+        !((RecordingSearcher)searcher).recordSpans())
+      record = false;
+
+    if (!record) {
       return new SpanScorer(query.getSpans(reader, searcher),
                             this,
                             query.getSimilarity(searcher));
@@ -33,6 +33,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import javax.xml.parsers.SAXParser;
 import javax.xml.transform.Templates;
 import javax.xml.transform.sax.SAXResult;
@@ -40,16 +49,19 @@ import javax.xml.transform.sax.SAXResult;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.event.Receiver;
 import net.sf.saxon.event.ReceivingContentHandler;
+import org.cdlib.xtf.lazyTree.LazyDocument;
 import org.cdlib.xtf.lazyTree.LazyTreeBuilder;
 import org.cdlib.xtf.servletBase.TextConfig;
 import org.cdlib.xtf.servletBase.TextServlet;
 import org.cdlib.xtf.textEngine.IndexUtil;
+import org.cdlib.xtf.util.DiskHashReader;
 import org.cdlib.xtf.util.DocTypeDeclRemover;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.StructuredFile;
 import org.cdlib.xtf.util.StructuredStore;
 import org.cdlib.xtf.util.SubStoreReader;
 import org.cdlib.xtf.util.SubStoreWriter;
+import org.cdlib.xtf.util.Trace;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
@@ -71,6 +83,41 @@ public class DefaultDocLocator implements DocLocator
   /** Servlet we are part of */
   private TextServlet servlet;
 
+  /**
+   * Lazy files kept open for re-use by later requests, keyed by path, and
+   * ordered from least to most recently used.
+   */
+  private LinkedHashMap<File, PooledStore> storePool = 
+    new LinkedHashMap<File, PooledStore>(16, 0.75f, true);
+
+  /**
+   * Locks guarding the building and rebuilding of lazy files. A file uses
+   * the lock picked by the hash of its path, so that different documents
+   * can usually be located at the same time.
+   */
+  private final Object[] buildLocks = new Object[32];
+  {
+    for (int i = 0; i < buildLocks.length; i++)
+      buildLocks[i] = new Object();
+  }
+
+  /** Number of background threads building lazy files */
+  private static final int BUILD_THREADS = 2;
+
+  /** Background threads that build lazy files (created when first needed) */
+  private ExecutorService buildPool;
+
+  /** Lazy files currently queued or being built in the background */
+  private HashMap<File, Future<?>> pendingBuilds = 
+    new HashMap<File, Future<?>>();
+
+  /**
+   * Lazy files whose last build failed. They aren't tried again until the
+   * source document changes. Guarded by {@link #pendingBuilds}.
+   */
+  private HashMap<File, BuildFailure> failedBuilds = 
+    new HashMap<File, BuildFailure>();
+
   /** Attach to a servlet */
   public void setServlet(TextServlet servlet) {
     this.servlet = servlet;
@@ -83,9 +130,13 @@ public class DefaultDocLocator implements DocLocator
    * is called first, and if it returns null, then
    * {@link #getInputSource(String, boolean)} will be called as a fall-back.
    * 
-   * Note: synchronized to prevent the situation where multiple threads
-   * might try to create the same lazy store at the same time and interfere
-   * with each other.
+   * Note: if the lazy store is missing or out of date and we're allowed to
+   * build it, it is built in the background and null is returned for now,
+   * so the request is served from the source document. Only one build is
+   * ever queued for a given file. Requests that can't do without the lazy
+   * store should call 
+   * {@link #getLazyStore(String, String, String, Templates, boolean, boolean)}
+   * instead.
    *
    * @param indexConfigPath Path to the index configuration file
    * @param indexName       Name of the index being searched
@@ -97,9 +148,29 @@ public class DefaultDocLocator implements DocLocator
    * @return                Store containing the tree, or null if none
    *                        could be found.
    */
-  public synchronized StructuredStore getLazyStore(String indexConfigPath, String indexName,
-                                                   String sourcePath, Templates preFilter,
-                                                   boolean removeDoctypeDecl)
+  public StructuredStore getLazyStore(String indexConfigPath, String indexName,
+                                      String sourcePath, Templates preFilter,
+                                      boolean removeDoctypeDecl)
+    throws IOException 
+  {
+    return getLazyStore(indexConfigPath, indexName, sourcePath, preFilter,
+                        removeDoctypeDecl, false);
+  } // getLazyStore()
+
+  /**
+   * Like {@link #getLazyStore(String, String, String, Templates, boolean)},
+   * but optionally waits for a background build of the lazy store rather
+   * than returning null while it's in progress. Used for requests with a
+   * query, since they can't be served from the source document.
+   *
+   * @param waitForBuild  true to wait for the lazy file to be built
+   *
+   * @throws IOException  If waiting and the lazy file couldn't be built.
+   */
+  public StructuredStore getLazyStore(String indexConfigPath, String indexName,
+                                      String sourcePath, Templates preFilter,
+                                      boolean removeDoctypeDecl,
+                                      boolean waitForBuild)
     throws IOException 
   {
     // If we're not allowed to use lazy files, then don't.
@@ -135,26 +206,97 @@ public class DefaultDocLocator implements DocLocator
     // files outside of indexing.
     //
     boolean buildLazyFilesAlone = false;
-    if (config instanceof DynaXMLConfig)
+    int poolSize = 0;
+    if (config instanceof DynaXMLConfig) {
       buildLazyFilesAlone = ((DynaXMLConfig)config).buildLazyFilesAlone;
+      poolSize = ((DynaXMLConfig)config).lazyStorePoolSize;
+    }
+
+    Object lock = buildLocks[(lazyFile.hashCode() & 0x7fffffff) % 
+                             buildLocks.length];
+    while (true) 
+    {
+      Future<?> pending;
+      synchronized (lock) 
+      {
+        // Cool. If the file is ready, open it (or re-use an open one.)
+        if (checkLazyFile(lazyFile, sourceFile, sourcePath, indexConfigPath,
+                          indexName, preFilter, removeDoctypeDecl,
+                          buildLazyFilesAlone))
+          return openPooled(lazyFile, poolSize);
+
+        if (!waitForBuild)
+          return null;
+
+        // If nothing is being built, the file isn't coming. Tell the 
+        // caller why, if we know.
+        //
+        synchronized (pendingBuilds) 
+        {
+          pending = pendingBuilds.get(lazyFile);
+          if (pending == null) {
+            BuildFailure failure = failedBuilds.get(lazyFile);
+            if (failure == null)
+              return null;
+            IOException e = new IOException("Error building lazy file " +
+                                            lazyFile + ": " + failure.error);
+            e.initCause(failure.error);
+            throw e;
+          }
+        }
+      }
+
+      // Wait for the build (without holding the lock, since the builder
+      // needs it to swap in the new file), then check again.
+      //
+      try {
+        pending.get();
+      }
+      catch (InterruptedException e) {
+        return null;
+      }
+      catch (ExecutionException e) {
+        // The build records its own failures; just check again.
+      }
+    }
+  } // getLazyStore()
+
+  /**
+   * Make sure the lazy file for a document is present and up to date. If
+   * not, and we're allowed, queue it to be built in the background. Called
+   * with the file's build lock held.
+   *
+   * @return    true if the lazy file can be opened, false if not (yet).
+   */
+  private boolean checkLazyFile(File lazyFile, File sourceFile,
+                                String sourcePath, String indexConfigPath,
+                                String indexName, Templates preFilter,
+                                boolean removeDoctypeDecl,
+                                boolean buildLazyFilesAlone)
+    throws IOException 
+  {
+    // If it's being built right now, don't use the old one (if any).
+    if (buildLazyFilesAlone) {
+      synchronized (pendingBuilds) {
+        if (pendingBuilds.containsKey(lazyFile))
+          return false;
+      }
+    }
 
     // If the lazy file is out of date (and we created it), rebuild it. Note
     // that it's not safe to rebuild lazy files created by the indexer, since
     // it would cause hit highlighting to fail due to a mismatch between
     // node numbers stored in the index vs. stored in the lazy file.
     //
-    if (buildLazyFilesAlone &&
-        lazyFile.canRead() &&
-        sourceFile.lastModified() > lazyFile.lastModified() &&
-        isPostIndexLazyFile(lazyFile))
-    {
-      lazyFile.delete();
-    }
+    boolean outOfDate = buildLazyFilesAlone &&
+                        lazyFile.canRead() &&
+                        sourceFile.lastModified() > lazyFile.lastModified() &&
+                        isPostIndexLazyFile(lazyFile);
 
-    // If we can't read it for any reason (including because we just deleted an
-    // out-of-date file), try to build it instead...
+    // If we can't read it for any reason (or it's out of date), try to 
+    // build it instead...
     //
-    if (!lazyFile.canRead()) 
+    if (outOfDate || !lazyFile.canRead()) 
     {
       // ... unless we've been asked not to build lazy files alone.
       // This is the case by default, but people who want to use dynaXML
@@ -162,7 +304,17 @@ public class DefaultDocLocator implements DocLocator
       // itself.
       //
       if (!buildLazyFilesAlone)
-        return null;
+        return false;
+
+      // If the last attempt failed, don't try again until the source
+      // changes.
+      //
+      long sourceTime = sourceFile.lastModified();
+      synchronized (pendingBuilds) {
+        BuildFailure failure = failedBuilds.get(lazyFile);
+        if (failure != null && failure.sourceTime == sourceTime)
+          return false;
+      }
       
       // Decide whether we need to strip whitespace
       boolean stripWhitespace = false;
@@ -173,17 +325,193 @@ public class DefaultDocLocator implements DocLocator
       catch (Exception e) {
       }
 
-      // Build the lazy file.
-      buildLazyStore(lazyFile,
-                     sourcePath,
-                     preFilter,
-                     removeDoctypeDecl,
-                     stripWhitespace);
+      // Build the lazy file in the background.
+      queueBuild(lazyFile,
+                 sourcePath,
+                 sourceTime,
+                 preFilter,
+                 removeDoctypeDecl,
+                 stripWhitespace);
+      return false;
     }
 
-    // Cool. Open the lazy file.
-    return StructuredFile.open(lazyFile);
-  } // getLazyStore()
+    return true;
+  } // checkLazyFile()
+
+  /**
+   * Queue a lazy file to be built by a background thread, unless it's
+   * already queued. When done, the new file replaces the old one (if any).
+   * If the build fails, the failure is recorded along with the source's
+   * modification time.
+   */
+  private void queueBuild(final File lazyFile, final String sourcePath,
+                          final long sourceTime,
+                          final Templates preFilter,
+                          final boolean removeDoctypeDecl,
+                          final boolean stripWhitespace)
+  {
+    Runnable build = new Runnable() 
+    {
+      public void run() 
+      {
+        File tmpFile = new File(lazyFile.getAbsolutePath() + ".tmp");
+        try 
+        {
+          buildLazyStore(tmpFile,
+                         sourcePath,
+                         preFilter,
+                         removeDoctypeDecl,
+                         stripWhitespace);
+
+          // Swap in the new file, making sure no request is in the middle
+          // of checking the old one.
+          //
+          synchronized (buildLocks[(lazyFile.hashCode() & 0x7fffffff) % 
+                                   buildLocks.length]) 
+          {
+            removePooled(lazyFile);
+            lazyFile.delete();
+            if (!tmpFile.renameTo(lazyFile))
+              throw new IOException("Unable to rename " + tmpFile);
+          }
+          synchronized (pendingBuilds) {
+            failedBuilds.remove(lazyFile);
+          }
+        }
+        catch (Throwable t) {
+          Trace.error("Error building lazy file " + lazyFile + ": " + t);
+          tmpFile.delete();
+          BuildFailure failure = new BuildFailure();
+          failure.sourceTime = sourceTime;
+          failure.error = t;
+          synchronized (pendingBuilds) {
+            failedBuilds.put(lazyFile, failure);
+          }
+        }
+        finally {
+          synchronized (pendingBuilds) {
+            pendingBuilds.remove(lazyFile);
+          }
+        }
+      }
+    };
+
+    synchronized (pendingBuilds) 
+    {
+      if (pendingBuilds.containsKey(lazyFile))
+        return;
+
+      if (buildPool == null) 
+      {
+        buildPool = Executors.newFixedThreadPool(BUILD_THREADS, 
+          new ThreadFactory() 
+          {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "XTF lazy builder " + (++count));
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      }
+
+      // Still holding the lock, so the build can't remove its entry before
+      // we've added it.
+      //
+      pendingBuilds.put(lazyFile, buildPool.submit(build));
+    }
+  } // queueBuild()
+
+  /**
+   * Open a lazy file, keeping it open afterward (up to a limit) so that
+   * later requests for the same file needn't re-read its directory. A kept
+   * file is only re-used if its modification time and size are unchanged.
+   *
+   * @param lazyFile    The file to open
+   * @param poolSize    Max # of files to keep open (zero to keep none)
+   * @return            The opened store, which the caller must close.
+   */
+  private StructuredStore openPooled(File lazyFile, int poolSize)
+    throws IOException 
+  {
+    long modTime = lazyFile.lastModified();
+    long length = lazyFile.length();
+
+    // Throw away a kept store if the file has changed since.
+    PooledStore ent;
+    synchronized (storePool) {
+      ent = storePool.get(lazyFile);
+      if (ent != null && (ent.modTime != modTime || ent.length != length))
+        storePool.remove(lazyFile);
+      else
+        ent = null;
+    }
+    if (ent != null) {
+      LazyDocument.forgetStore(ent.store);
+      DiskHashReader.forgetStore(ent.store);
+      closeQuietly(ent.store);
+    }
+
+    // StructuredFile hands back the already-open instance if there is one,
+    // as there will be if we're keeping it in the pool. If the file has 
+    // changed since that instance was opened, we get a fresh one instead
+    // (requests still using the old one can finish with it.)
+    //
+    StructuredStore store = StructuredFile.open(lazyFile);
+    if (poolSize <= 0)
+      return store;
+
+    // Keep a reference of our own, so the file stays open after the 
+    // caller closes it.
+    //
+    ArrayList<StructuredStore> toClose = new ArrayList<StructuredStore>();
+    synchronized (storePool) 
+    {
+      if (!storePool.containsKey(lazyFile)) 
+      {
+        PooledStore newEnt = new PooledStore();
+        newEnt.store = StructuredFile.open(lazyFile);
+        newEnt.modTime = modTime;
+        newEnt.length = length;
+        storePool.put(lazyFile, newEnt);
+      }
+
+      // Trim the least recently used files if there are too many.
+      Iterator<PooledStore> iter = storePool.values().iterator();
+      while (storePool.size() > poolSize && iter.hasNext()) {
+        toClose.add(iter.next().store);
+        iter.remove();
+      }
+    }
+    for (StructuredStore s : toClose)
+      closeQuietly(s);
+
+    return store;
+  } // openPooled()
+
+  /** Stop keeping a lazy file open (e.g. because it's about to change) */
+  private void removePooled(File lazyFile)
+  {
+    PooledStore ent;
+    synchronized (storePool) {
+      ent = storePool.remove(lazyFile);
+    }
+    if (ent != null) {
+      LazyDocument.forgetStore(ent.store);
+      DiskHashReader.forgetStore(ent.store);
+      closeQuietly(ent.store);
+    }
+  } // removePooled()
+
+  /** Close a store, ignoring errors (not a big deal if we can't close.) */
+  private static void closeQuietly(StructuredStore store)
+  {
+    try {
+      store.close();
+    }
+    catch (IOException e) {
+    }
+  } // closeQuietly()
 
   /**
    * Wrapper for IndexUtil.calcLazyPath(); useful for derived classes to supply their
@@ -236,7 +564,8 @@ public class DefaultDocLocator implements DocLocator
    * Create a lazy document by loading the original, building the lazy
    * tree, and writing it out.
    *
-   * @param lazyFile      Lazy file to create
+   * @param lazyFile      Lazy file to create (normally a temporary file,
+   *                      renamed afterward.)
    * @param sourcePath    Path to the source document
    * @param preFilter     A prefilter stylesheet (or null for no pre-filtering.)
    * @param removeDoctypeDecl true to remove DOCTYPE declarations from the
@@ -253,16 +582,13 @@ public class DefaultDocLocator implements DocLocator
     // If not, we need to create it now before making the lazy file.
     //
     Path.createPath(lazyFile.getParent());
-    
-    // Build a temp file, and when it's finished, rename it.
-    File tmpFile = new File(lazyFile.getAbsolutePath() + ".tmp");
 
     // While we parse the source document, we're going to also build up 
     // a tree that will be written to the lazy file.
     //
     Configuration config = new Configuration();
     LazyTreeBuilder lazyBuilder = new LazyTreeBuilder(config);
-    StructuredStore lazyStore = StructuredFile.create(tmpFile);
+    StructuredStore lazyStore = StructuredFile.create(lazyFile);
     
     // Put a special marker subfile within the store so we know it was created
     // outside of the indexing process. That way, we can identify files that
@@ -321,21 +647,22 @@ public class DefaultDocLocator implements DocLocator
                                     new SAXResult(passthru));
         }
         catch (Exception e) {
-          lazyBuilder.abort(lazyReceiver);
           throw new RuntimeException(e);
         }
       }
   
       // Finish off the lazy file.
       lazyBuilder.finish(lazyReceiver, true);
-      
-      // And rename the temp file.
-      tmpFile.renameTo(lazyFile);
     }
     catch (IOException e) {
       lazyBuilder.abort(lazyReceiver);
       throw e;
     }
+    catch (RuntimeException e) {
+      // Be sure to close the half-built store, so it can be built again.
+      lazyBuilder.abort(lazyReceiver);
+      throw e;
+    }
   } // buildLazyStore()
   
   /**
@@ -367,6 +694,29 @@ public class DefaultDocLocator implements DocLocator
     return ret;
   }
 
+  /** A lazy file kept open by the pool */
+  private static class PooledStore 
+  {
+    /** The open store */
+    StructuredStore store;
+
+    /** Modification time of the file when opened */
+    long modTime;
+
+    /** Size of the file when opened */
+    long length;
+  } // class PooledStore
+
+  /** Records a failed attempt to build a lazy file */
+  private static class BuildFailure 
+  {
+    /** Modification time of the source document at the time */
+    long sourceTime;
+
+    /** What went wrong */
+    Throwable error;
+  } // class BuildFailure
+
   /**
    * Passes SAX events to a ContentHandler. Also performs character
    * buffering that mimics what the textIndexer normally does.
@@ -583,11 +583,25 @@ public class DynaXML extends TextServlet
     // See if we can find a lazy version of the document (for speed
     // and searching)
     //
-    StructuredStore lazyStore = docLocator.getLazyStore(docReq.indexConfig,
-                                                        docReq.indexName,
-                                                        docReq.source,
-                                                        preFilter,
-                                                        docReq.removeDoctypeDecl);
+    StructuredStore lazyStore;
+    if (docReq.query != null && docLocator instanceof DefaultDocLocator) 
+    {
+      // Queries need the lazy tree, so wait for it if it's being built.
+      lazyStore = ((DefaultDocLocator)docLocator).getLazyStore(
+                                                  docReq.indexConfig,
+                                                  docReq.indexName,
+                                                  docReq.source,
+                                                  preFilter,
+                                                  docReq.removeDoctypeDecl,
+                                                  true);
+    }
+    else {
+      lazyStore = docLocator.getLazyStore(docReq.indexConfig,
+                                          docReq.indexName,
+                                          docReq.source,
+                                          preFilter,
+                                          docReq.removeDoctypeDecl);
+    }
 
     // If not found...
     if (lazyStore == null) 
@@ -642,6 +656,9 @@ public class DynaXML extends TextServlet
     //
     ((LazyDocument)sourceDoc).setDebug(true);
 
+    // Limit how many nodes the tree holds in RAM.
+    ((LazyDocument)sourceDoc).setNodeCacheSize(this.config.lazyNodeCacheSize);
+
     // We need a special key manager on the lazy tree, so that we can
     // use lazily stored keys on disk.
     //
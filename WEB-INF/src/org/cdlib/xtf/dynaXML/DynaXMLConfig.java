@@ -29,6 +29,7 @@ package org.cdlib.xtf.dynaXML;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
+import org.cdlib.xtf.lazyTree.LazyDocument;
 import org.cdlib.xtf.servletBase.TextConfig;
 import org.cdlib.xtf.util.GeneralException;
 
@@ -77,6 +78,12 @@ class DynaXMLConfig extends TextConfig
   /** Whether to generate lazy files alone (outside of textIndexer) */
   public boolean buildLazyFilesAlone = false;
 
+  /** Max # of nodes each lazy tree keeps in RAM (zero for no limit) */
+  public int lazyNodeCacheSize = LazyDocument.DEFAULT_NODE_CACHE_SIZE;
+
+  /** Max # of lazy files to keep open between requests (zero for none) */
+  public int lazyStorePoolSize = 20;
+
   /**
    * Constructor - Reads and parses the global configuration file (XML) for
    * the servlet.
@@ -153,6 +160,14 @@ class DynaXMLConfig extends TextConfig
       buildLazyFilesAlone = parseBoolean(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("lazyTrees.nodeCacheSize")) {
+      lazyNodeCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("lazyTrees.poolSize")) {
+      lazyStorePoolSize = parseInt(tagAttr, strVal);
+      return true;
+    }
 
     // Don't recognize it... see if the base class does.
     return super.handleProperty(tagAttr, strVal);
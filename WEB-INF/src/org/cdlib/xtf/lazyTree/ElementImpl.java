@@ -37,11 +37,7 @@ public class ElementImpl extends ParentNodeImpl
     if (attrOffset >= 0) 
     {
       // Read in the attributes.
-      document.attrFile.seek(attrOffset);
-      document.attrFile.read(document.attrBytes);
-
-      PackedByteBuf buf = document.attrBuf;
-      buf.setBytes(document.attrBytes);
+      PackedByteBuf buf = document.readAttributes(attrOffset);
 
       int nAttrs = buf.readInt();
       attrNames = new int[nAttrs];
@@ -1,12 +1,12 @@
 package org.cdlib.xtf.lazyTree;
 
 import java.io.IOException;
-import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
+import java.util.WeakHashMap;
 
 import net.sf.saxon.Configuration;
 import net.sf.saxon.event.Receiver;
@@ -40,9 +40,10 @@ import org.cdlib.xtf.util.Trace;
  * <p>This class should never be instatiated directly, but rather loaded by
  * LazyTreeBuilder.</p>
  *
- * <p>Once loaded, a soft reference to the node is kept in RAM; if memory runs
- * low, these soft references will be thrown away. This behavior can be
- * defeated by calling {@link #setAllPermanent(boolean)}.</p>
+ * <p>Once loaded, a node is kept in a bounded cache; if more than
+ * {@link #setNodeCacheSize(int) nodeCacheSize} are loaded, the least recently
+ * used will be thrown away. This behavior can be defeated by calling
+ * {@link #setAllPermanent(boolean)}.</p>
  *
  * @author Martin Haye
  */
@@ -91,14 +92,23 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** Size of the header on the node file */
   protected static final int NODE_FILE_HEADER_SIZE = 12;
 
-  /** The size of the largest node entry on disk */
+  /** The size of the largest node entry on disk (fixed-size format only) */
   protected int maxNodeSize;
 
-  /** Byte buffer for reading nodes */
-  protected byte[] nodeBytes;
+  /**
+   * Where each block of nodes starts, relative to nodeDataStart, plus the
+   * end of the last block. Null if the nodes are in fixed-size slots.
+   */
+  protected int[] nodeBlockOffsets;
+
+  /** Number of nodes in each block (packed format only) */
+  protected int nodesPerBlock;
 
-  /** Buffer for unpacking nodes */
-  protected PackedByteBuf nodeBuf;
+  /** Number of nodes actually stored (packed format only) */
+  protected int nNodesStored;
+
+  /** Where the first block of nodes starts in the node file */
+  protected long nodeDataStart;
 
   /** Contains all the attributes */
   protected SubStoreReader attrFile;
@@ -106,11 +116,13 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** The max size of any attribute block */
   protected int maxAttrSize;
 
-  /** Byte buffer for reading nodes */
-  protected byte[] attrBytes;
-
-  /** Buffer for unpacking nodes */
-  protected PackedByteBuf attrBuf;
+  /**
+   * Per-thread buffers for reading nodes and attributes, so that several
+   * threads can load nodes at once. Weakly held so idle threads don't keep
+   * them.
+   */
+  private static ThreadLocal<WeakReference<ReadBuffers>> readBuffers = 
+    new ThreadLocal();
 
   /** Number of namespaces currently declared */
   public int numberOfNamespaces = 0;
@@ -131,10 +143,13 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** Maps name numbers in the file to namecodes in the current NamePool */
   int[] nameNumToCode;
 
-  /** Caches nodes in memory so they only have to be loaded once. */
-  HashMap nodeCache = new HashMap();
+  /** Default max # of nodes to cache (not counting permanent ones) */
+  public static final int DEFAULT_NODE_CACHE_SIZE = 32768;
+
+  /** Caches nodes in memory so they don't have to be reloaded often. */
+  NodeCache nodeCache = new NodeCache(DEFAULT_NODE_CACHE_SIZE);
 
-  /** True if nodes in the cache should be permanent, false for weak refs */
+  /** True if nodes in the cache should be permanent, false to limit them */
   boolean allPermanent = false;
 
   /** Notified of profile-related events */
@@ -143,6 +158,26 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** Counter to govern periodic checking for thread time limit */
   private int killCheckCounter = 0;
 
+  /** Key indexes opened by {@link #getIndex(String)}, closed with the tree */
+  private ArrayList openIndexes = new ArrayList();
+
+  /**
+   * Decoded headers of stores opened recently, so that a store kept open
+   * and re-used for many requests needn't be decoded each time. Weakly
+   * keyed, so an entry goes away when its store does.
+   */
+  private static WeakHashMap headerCache = new WeakHashMap();
+
+  /**
+   * Forget the cached header of a store whose file has changed, rather than
+   * waiting for the store to be collected.
+   */
+  public static void forgetStore(StructuredStore store) {
+    synchronized (headerCache) {
+      headerCache.remove(store);
+    }
+  }
+
   /**
    * Construct a new (empty) document. Should call
    * {@link #init(NamePool, StructuredStore)} afterward.
@@ -175,30 +210,81 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
     // Record the name pool.
     namePool = pool;
 
-    // First, read in the names.
+    // Files from version 2.1 on have packed nodes.
+    boolean packed = store.getUserVersion().compareTo(
+      LazyTreeBuilder.PACKED_NODES_VERSION) >= 0;
+
     synchronized (mainStore) 
     {
-      readNames(store.openSubStore("names"));
-
-      // Now open the other files and read their headers.
-      nodeFile = store.openSubStore("nodes");
-      rootNodeNum = nodeFile.readInt();
-      numberOfNodes = nodeFile.readInt();
-      maxNodeSize = nodeFile.readInt();
+      // If this store was decoded before with the same name pool, we can
+      // skip reading the names and headers.
+      //
+      Header header;
+      synchronized (headerCache) {
+        header = (Header)headerCache.get(store);
+      }
+      if (header != null && header.namePool == pool) 
+      {
+        numberOfNamespaces = header.numberOfNamespaces;
+        namespaceParent = header.namespaceParent;
+        namespaceCode = header.namespaceCode;
+        nameNumToCode = header.nameNumToCode;
+        rootNodeNum = header.rootNodeNum;
+        numberOfNodes = header.numberOfNodes;
+        maxNodeSize = header.maxNodeSize;
+        nodeBlockOffsets = header.nodeBlockOffsets;
+        nodesPerBlock = header.nodesPerBlock;
+        nNodesStored = header.nNodesStored;
+        nodeDataStart = header.nodeDataStart;
+        maxAttrSize = header.maxAttrSize;
+        nodeFile = store.openSubStore(packed ? LazyTreeBuilder.PACKED_NODES_NAME
+                                             : LazyTreeBuilder.FIXED_NODES_NAME);
+        attrFile = store.openSubStore("attributes");
+      }
+      else 
+      {
+        // First, read in the names.
+        SubStoreReader namesFile = store.openSubStore("names");
+        readNames(namesFile);
+        namesFile.close();
+
+        // Now open the other files and read their headers.
+        if (packed) {
+          nodeFile = store.openSubStore(LazyTreeBuilder.PACKED_NODES_NAME);
+          readNodeIndex();
+        }
+        else {
+          nodeFile = store.openSubStore(LazyTreeBuilder.FIXED_NODES_NAME);
+          rootNodeNum = nodeFile.readInt();
+          numberOfNodes = nodeFile.readInt();
+          maxNodeSize = nodeFile.readInt();
+        }
 
-      attrFile = store.openSubStore("attributes");
-      maxAttrSize = attrFile.readInt();
+        attrFile = store.openSubStore("attributes");
+        maxAttrSize = attrFile.readInt();
+
+        // Remember them for next time.
+        header = new Header();
+        header.namePool = pool;
+        header.numberOfNamespaces = numberOfNamespaces;
+        header.namespaceParent = namespaceParent;
+        header.namespaceCode = namespaceCode;
+        header.nameNumToCode = nameNumToCode;
+        header.rootNodeNum = rootNodeNum;
+        header.numberOfNodes = numberOfNodes;
+        header.maxNodeSize = maxNodeSize;
+        header.nodeBlockOffsets = nodeBlockOffsets;
+        header.nodesPerBlock = nodesPerBlock;
+        header.nNodesStored = nNodesStored;
+        header.nodeDataStart = nodeDataStart;
+        header.maxAttrSize = maxAttrSize;
+        synchronized (headerCache) {
+          headerCache.put(store, header);
+        }
+      }
 
       textFile = store.openSubStore("text");
 
-      // Allocate the buffer for reading nodes.
-      nodeBytes = new byte[maxNodeSize];
-      nodeBuf = new PackedByteBuf(0);
-
-      // Likewise for reading attributes.
-      attrBytes = new byte[maxAttrSize];
-      attrBuf = new PackedByteBuf(0);
-
       // Read in the root node (shenanigans to force loading)
       nodeNum = rootNodeNum;
       rootNodeNum = -1;
@@ -207,14 +293,49 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
     }
   } // constructor
 
+  /**
+   * Reads the header and block index of a packed node file.
+   */
+  private void readNodeIndex()
+    throws IOException 
+  {
+    rootNodeNum = nodeFile.readInt();
+    numberOfNodes = nodeFile.readInt();
+    nNodesStored = nodeFile.readInt();
+    nodesPerBlock = nodeFile.readInt();
+    int nBlocks = nodeFile.readInt();
+
+    // Read the whole index in one go, then decode it.
+    byte[] bytes = new byte[(nBlocks + 1) * 4];
+    nodeFile.read(bytes, 0, bytes.length);
+    nodeBlockOffsets = new int[nBlocks + 1];
+    for (int i = 0, j = 0; i <= nBlocks; i++, j += 4) {
+      nodeBlockOffsets[i] = ((bytes[j] & 0xff) << 24) |
+                            ((bytes[j + 1] & 0xff) << 16) |
+                            ((bytes[j + 2] & 0xff) << 8) |
+                            (bytes[j + 3] & 0xff);
+    }
+    nodeDataStart = nodeFile.getFilePointer();
+  } // readNodeIndex()
+
   /**
    * If 'flag' is true, all loaded nodes will be cached until the tree goes
-   * away, instead of being held by weak references.
+   * away, instead of only the most recently used ones.
    */
   public void setAllPermanent(boolean flag) {
     allPermanent = flag;
+    nodeCache.setPermanent(flag, numberOfNodes);
     if (allPermanent)
-      nodeCache.put(Integer.valueOf(0), this);
+      nodeCache.put(0, this);
+  }
+
+  /**
+   * Establish the max # of loaded nodes to keep in RAM (zero for no limit.)
+   * Nodes beyond this are thrown away, least recently used first, and
+   * re-loaded if needed again. Has no effect on permanent nodes.
+   */
+  public void setNodeCacheSize(int size) {
+    nodeCache.setMaxSize(size);
   }
 
   /**
@@ -234,8 +355,10 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   public void printProfile()
     throws IOException 
   {
-    if (profileListener != null)
+    if (profileListener != null) {
+      profileListener.countCache(nodeCache.hits, nodeCache.misses);
       profileListener.printProfile();
+    }
   }
 
   /**
@@ -248,6 +371,9 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   {
     try 
     {
+      for (int i = 0; i < openIndexes.size(); i++)
+        ((DiskHashReader)openIndexes.get(i)).close();
+      openIndexes.clear();
       textFile.close();
       nodeFile.close();
       attrFile.close();
@@ -356,8 +482,9 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
     try 
     {
       synchronized (mainStore) {
-        SubStoreReader indexFile = mainStore.openSubStore(indexName);
-        return new DiskHashReader(indexFile);
+        DiskHashReader reader = new DiskHashReader(mainStore, indexName);
+        openIndexes.add(reader);
+        return reader;
       }
     }
     catch (Exception e) {
@@ -445,14 +572,27 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       if (profileListener != null)
         profileListener.bumpCount(num);
 
-      // Read the most data it could be.
-      synchronized (mainStore) {
-        nodeFile.seek(NODE_FILE_HEADER_SIZE + (num * maxNodeSize));
-        nodeFile.read(nodeBytes);
+      // Locate the node's data. Positional reads need no lock.
+      ReadBuffers bufs = readBuffers();
+      boolean packed = nodeBlockOffsets != null;
+      PackedByteBuf nodeBuf;
+      if (packed) {
+        nodeBuf = findPackedNode(num, bufs);
+        if (nodeBuf == null)
+          return null;
+      }
+      else 
+      {
+        // Read the most data it could be.
+        if (bufs.nodeBytes.length != maxNodeSize)
+          bufs.nodeBytes = new byte[maxNodeSize];
+        nodeFile.read(NODE_FILE_HEADER_SIZE + ((long)num * maxNodeSize),
+                      bufs.nodeBytes, 0, maxNodeSize);
+        nodeBuf = bufs.nodeBuf;
+        nodeBuf.setBytes(bufs.nodeBytes);
       }
 
       // Get the type and the flags.
-      nodeBuf.setBytes(nodeBytes);
       short kind = nodeBuf.readByte();
       int flags = nodeBuf.readInt();
 
@@ -490,18 +630,19 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       else
         node.nameCode = -1;
 
+      // Packed nodes store their links relative to themselves.
       if ((flags & Flag.HAS_PARENT) != 0)
-        node.parentNum = nodeBuf.readInt();
+        node.parentNum = packed ? (num - nodeBuf.readInt()) : nodeBuf.readInt();
       else
         node.parentNum = -1;
 
       if ((flags & Flag.HAS_PREV_SIBLING) != 0)
-        node.prevSibNum = nodeBuf.readInt();
+        node.prevSibNum = packed ? (num - nodeBuf.readInt()) : nodeBuf.readInt();
       else
         node.prevSibNum = -1;
 
       if ((flags & Flag.HAS_NEXT_SIBLING) != 0)
-        node.nextSibNum = nodeBuf.readInt();
+        node.nextSibNum = packed ? (num + nodeBuf.readInt()) : nodeBuf.readInt();
       else
         node.nextSibNum = -1;
       
@@ -511,7 +652,7 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
 
       if ((flags & Flag.HAS_CHILD) != 0) {
         assert node instanceof ParentNodeImpl;
-        ((ParentNodeImpl)node).childNum = nodeBuf.readInt();
+        ((ParentNodeImpl)node).childNum = packed ? (num + 1) : nodeBuf.readInt();
         assert ((ParentNodeImpl)node).childNum > 0;
       }
       else if (node instanceof ParentNodeImpl)
@@ -528,7 +669,7 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       node.init(alpha, beta);
 
       // All done!
-      nodeCache.put(Integer.valueOf(num), new SoftReference(node));
+      nodeCache.put(num, node);
       return node;
     } // try
     catch (IOException e) {
@@ -536,6 +677,116 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
     }
   } // getNode()
 
+  /**
+   * Position this thread's block buffer at the start of a packed node,
+   * reading in its block if it isn't the one last used.
+   *
+   * @param num   The node to find
+   * @param bufs  This thread's buffers
+   * @return      The block buffer, or null if the node isn't stored.
+   */
+  private PackedByteBuf findPackedNode(int num, ReadBuffers bufs)
+    throws IOException 
+  {
+    if (num >= nNodesStored)
+      return null;
+
+    // Read in the block if necessary.
+    int block = num / nodesPerBlock;
+    PackedByteBuf buf = bufs.blockBuf;
+    if (bufs.blockOwner != nodeFile || bufs.blockNum != block) 
+    {
+      int start = nodeBlockOffsets[block];
+      byte[] bytes = new byte[nodeBlockOffsets[block + 1] - start];
+      nodeFile.read(nodeDataStart + start, bytes, 0, bytes.length);
+      buf.setBytes(bytes);
+      bufs.blockOwner = nodeFile;
+      bufs.blockNum = block;
+      if (bufs.nodeStarts.length < nodesPerBlock)
+        bufs.nodeStarts = new int[nodesPerBlock];
+      bufs.nodeStarts[0] = buf.position();
+      bufs.nStarts = 1;
+    }
+
+    // Skip forward to the node, recording where each one starts as we go.
+    int idx = num - (block * nodesPerBlock);
+    if (idx >= bufs.nStarts) 
+    {
+      buf.seek(bufs.nodeStarts[bufs.nStarts - 1]);
+      while (bufs.nStarts <= idx) {
+        NodeBlockWriter.skipNode(buf);
+        bufs.nodeStarts[bufs.nStarts++] = buf.position();
+      }
+    }
+
+    buf.seek(bufs.nodeStarts[idx]);
+    return buf;
+  } // findPackedNode()
+
+  /**
+   * Read the attribute block of an element into this thread's buffer.
+   *
+   * @param attrOffset  Offset of the block within the attribute file
+   * @return            Buffer ready to unpack the attributes
+   */
+  PackedByteBuf readAttributes(int attrOffset)
+    throws IOException 
+  {
+    ReadBuffers bufs = readBuffers();
+    if (bufs.attrBytes.length != maxAttrSize)
+      bufs.attrBytes = new byte[maxAttrSize];
+    attrFile.read(attrOffset, bufs.attrBytes, 0, maxAttrSize);
+    bufs.attrBuf.setBytes(bufs.attrBytes);
+    return bufs.attrBuf;
+  } // readAttributes()
+
+  /** Get the read buffers for the current thread */
+  private static ReadBuffers readBuffers() 
+  {
+    WeakReference<ReadBuffers> ref = readBuffers.get();
+    ReadBuffers bufs = (ref != null) ? ref.get() : null;
+    if (bufs == null) {
+      bufs = new ReadBuffers();
+      readBuffers.set(new WeakReference<ReadBuffers>(bufs));
+    }
+    return bufs;
+  } // readBuffers()
+
+  /**
+   * Names and header values decoded from a store. The arrays are shared by
+   * every tree opened on the store, so they must never be modified.
+   */
+  private static class Header 
+  {
+    NamePool namePool;
+    int numberOfNamespaces;
+    int[] namespaceParent;
+    int[] namespaceCode;
+    int[] nameNumToCode;
+    int rootNodeNum;
+    int numberOfNodes;
+    int maxNodeSize;
+    int[] nodeBlockOffsets;
+    int nodesPerBlock;
+    int nNodesStored;
+    long nodeDataStart;
+    int maxAttrSize;
+  } // class Header
+
+  /** Buffers used by one thread to read nodes and attributes */
+  private static class ReadBuffers 
+  {
+    byte[] nodeBytes = new byte[0];
+    PackedByteBuf nodeBuf = new PackedByteBuf(0);
+    SubStoreReader blockOwner;
+    int blockNum = -1;
+    PackedByteBuf blockBuf = new PackedByteBuf(0);
+    int[] nodeStarts = new int[0];
+    int nStarts;
+    byte[] attrBytes = new byte[0];
+    PackedByteBuf attrBuf = new PackedByteBuf(0);
+  } // class ReadBuffers
+
   /**
    * Checks to see if we've already loaded the node corresponding with the
    * given number. If so, return it, else null.
@@ -551,24 +802,8 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
         throw new RuntimeException("Runaway request - time limit exceeded");
     }
 
-    // Do we have a reference in the cache? If not, return. And if it's a
-    // strong reference to a node, return it.
-    //
-    Object ref = nodeCache.get(Integer.valueOf(num));
-    NodeImpl node = null;
-    if (ref instanceof NodeImpl)
-      node = (NodeImpl)ref;
-    else if (ref instanceof SoftReference) 
-    {
-      // Is the reference still valid? If not, remove it.
-      SoftReference weak = (SoftReference)ref;
-      node = (NodeImpl)weak.get();
-      if (node == null)
-        nodeCache.remove(Integer.valueOf(num));
-    }
-
-    // All done.
-    return node;
+    // Do we have it in the cache?
+    return nodeCache.get(num);
   } // checkCache()
 
   /**
@@ -37,6 +37,12 @@ public class LazyProfilingListener implements TraceListener
    */
   private ThreadLocal tlCountMap = new ThreadLocal();
 
+  /**
+   * Node cache hits and misses (in that order) for the current thread.
+   * Thread-local for the same reason as the count map.
+   */
+  private ThreadLocal tlCacheCounts = new ThreadLocal();
+
   /** Unused */
   public void open() {
   }
@@ -67,6 +73,37 @@ public class LazyProfilingListener implements TraceListener
     return map;
   } // getCountMap()
 
+  /** Get the thread-local node cache hit and miss counts */
+  private long[] getCacheCounts() 
+  {
+    long[] counts = (long[])tlCacheCounts.get();
+    if (counts == null) {
+      counts = new long[2];
+      tlCacheCounts.set(counts);
+    }
+    return counts;
+  } // getCacheCounts()
+
+  /**
+   * Adds to the number of node cache hits and misses for the current
+   * thread.
+   */
+  public void countCache(long hits, long misses) {
+    long[] counts = getCacheCounts();
+    counts[0] += hits;
+    counts[1] += misses;
+  }
+
+  /** Get the number of node cache hits counted for the current thread */
+  public long getCacheHits() {
+    return getCacheCounts()[0];
+  }
+
+  /** Get the number of node cache misses counted for the current thread */
+  public long getCacheMisses() {
+    return getCacheCounts()[1];
+  }
+
   /**
    * Record the instruction being entered, so that subsequent counts can
    * be attributed to it.
@@ -210,6 +247,12 @@ public class LazyProfilingListener implements TraceListener
     // Get a sorted array of the counts.
     ProfileCount[] counts = getCounts();
 
+    // Report how well the node cache did, then clear it for the next run.
+    long[] cacheCounts = getCacheCounts();
+    Trace.info("Node cache: " + cacheCounts[0] + " hits, " + 
+               cacheCounts[1] + " misses");
+    cacheCounts[0] = cacheCounts[1] = 0;
+
     // Print it out.
     for (int i = counts.length - 1; i >= 0; i--) 
     {
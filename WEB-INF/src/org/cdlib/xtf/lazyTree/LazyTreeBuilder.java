@@ -29,6 +29,7 @@ package org.cdlib.xtf.lazyTree;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Arrays;
@@ -44,7 +45,9 @@ import net.sf.saxon.tinytree.TinyTree;
 import net.sf.saxon.type.Type;
 import org.cdlib.xtf.util.ConsecutiveMap;
 import org.cdlib.xtf.util.PackedByteBuf;
+import org.cdlib.xtf.util.StructuredFile;
 import org.cdlib.xtf.util.StructuredStore;
+import org.cdlib.xtf.util.SubStoreReader;
 import org.cdlib.xtf.util.SubStoreWriter;
 import org.cdlib.xtf.util.XTFSaxonErrorListener;
 
@@ -80,8 +83,20 @@ public class LazyTreeBuilder
   /** Pipeline configuration */
   private PipelineConfiguration pipe;
 
+  /** Whether blocks of packed nodes may be compressed */
+  private boolean compressNodes = true;
+
   /** File version stored in the persistent file. */
-  public static final String CURRENT_VERSION = "2.0";
+  public static final String CURRENT_VERSION = "2.1";
+
+  /** First version whose nodes are packed into blocks */
+  public static final String PACKED_NODES_VERSION = "2.1";
+
+  /** Name of the sub-file holding packed nodes */
+  static final String PACKED_NODES_NAME = "nodes2";
+
+  /** Name of the sub-file holding fixed-size nodes (before version 2.1) */
+  static final String FIXED_NODES_NAME = "nodes";
 
   /** Minimum version we can read. */
   public static final String REQUIRED_VERSION = "2.0";
@@ -95,6 +110,15 @@ public class LazyTreeBuilder
     pipe.setErrorListener(config.getErrorListener());
   }
 
+  /**
+   * Establishes whether blocks of nodes may be compressed when they're
+   * written. Compression makes the file smaller, but takes a bit more time
+   * to load each block. Default is true.
+   */
+  public void setCompressNodes(boolean flag) {
+    compressNodes = flag;
+  }
+
   /** Establishes the name pool used to resolve namecodes */
   public void setNamePool(NamePool pool) {
     namePool = pool;
@@ -219,7 +243,7 @@ public class LazyTreeBuilder
     // Now make a structured file containing the entire tree's contents.
     writeNames(treeStore.createSubStore("names"));
     writeAttrs(treeStore.createSubStore("attributes")); // must be before nodes
-    writeNodes(treeStore.createSubStore("nodes"));
+    writeNodes(treeStore.createSubStore(PACKED_NODES_NAME));
 
     // Close the store if requested.
     if (closeStore)
@@ -303,17 +327,15 @@ public class LazyTreeBuilder
   } // writeNames()
 
   /**
-   * Build and write out all the nodes in the tree. The resulting table has
-   * fixed-sized entries, sized to fit the largest node.
+   * Build and write out all the nodes in the tree. The nodes are packed
+   * end to end in small blocks, with an index giving where each block
+   * starts (see {@link NodeBlockWriter}.)
    *
    * @param out   SubStore to write to.
    */
   private void writeNodes(SubStoreWriter out)
     throws IOException 
   {
-    // Write the root node's number
-    out.writeInt(0);
-    
     // Figure out how many nodes there are, excluding the stopper at the end
     // of the tree.
     //
@@ -339,16 +361,10 @@ public class LazyTreeBuilder
       }
     }
 
-    // Pack up each node. That way we can calculate the maximum size of
-    // any particular one, and they can be randomly accessed by multiplying
-    // the node number by that size.
-    //
-    PackedByteBuf[] nodeBufs = new PackedByteBuf[nNodes];
-    int maxSize = 0;
+    // Pack up each node.
+    NodeBlockWriter writer = new NodeBlockWriter(compressNodes);
     for (int i = 0; i < nNodes; i++) 
     {
-      PackedByteBuf buf = nodeBufs[i] = new PackedByteBuf(20);
-      
       // Check for un-handled node types.
       byte kind = tree.nodeKind[i];
       if (kind == Type.COMMENT || kind == Type.PROCESSING_INSTRUCTION) 
@@ -359,78 +375,28 @@ public class LazyTreeBuilder
             "should have been filtered out");
       }
 
-      // Kind
-      buf.writeByte(tree.nodeKind[i]);
-
-      // Flag
       NodeInfo node = tree.getNode(i);
       int nameCode = nameCodes[i];
+      int nameIdx = -1;
+      if (nameCode >= 0) {
+        nameIdx = names.get(Integer.valueOf(nameCode));
+        assert nameIdx >= 0 : "A name was missed when writing name codes";
+      }
       int parent = (node.getParent() != null)
                    ? (((TinyNodeImpl)node.getParent()).getNodeNumber()) : -1;
       int prevSib = prior[i];
       int nextSib = (nexts[i] > i) ? nexts[i] : -1;
-      int child = node.hasChildNodes() ? (i + 1) : -1;
-      int alpha = alphas[i];
-      int beta = betas[i];
-
-      int flags = ((nameCode != -1) ? Flag.HAS_NAMECODE : 0) |
-                  ((parent != -1) ? Flag.HAS_PARENT : 0) |
-                  ((prevSib != -1) ? Flag.HAS_PREV_SIBLING : 0) |
-                  ((nextSib != -1) ? Flag.HAS_NEXT_SIBLING : 0) |
-                  ((child != -1) ? Flag.HAS_CHILD : 0) |
-                  ((alpha != -1) ? Flag.HAS_ALPHA : 0) |
-                  ((beta != -1) ? Flag.HAS_BETA : 0);
-      buf.writeInt(flags);
       
       assert prevSib != nextSib || prevSib < 0;
 
-      // Name code
-      if (nameCode >= 0) {
-        int nameIdx = names.get(Integer.valueOf(nameCode));
-        assert nameIdx >= 0 : "A name was missed when writing name codes";
-        buf.writeInt(nameIdx);
-      }
-
-      // Parent
-      if (parent >= 0)
-        buf.writeInt(parent);
-
-      // Prev sibling
-      if (prevSib >= 0)
-        buf.writeInt(prevSib);
-
-      // Next sibling.
-      if (nextSib >= 0)
-        buf.writeInt(nextSib);
-
-      // First child (if any).
-      if (child >= 0) {
-        assert child != 0;
-        buf.writeInt(child);
-      }
-
-      // Alpha and beta
-      if (alpha != -1)
-        buf.writeInt(alpha);
-      if (beta != -1)
-        buf.writeInt(beta);
-
-      // Now calculate the size of the buffer, and bump the max if needed
-      buf.compact();
-      maxSize = Math.max(maxSize, buf.length());
+      writer.add(i, kind, nameIdx, parent, prevSib, nextSib,
+                 node.hasChildNodes(), alphas[i], betas[i]);
     } // for i
 
-    // Okay, we're ready to write out the node table now. First comes the
-    // number of nodes, followed by the size in bytes of each one.
+    // Okay, write out the node table. Note that the node count includes
+    // the stopper, which is never stored.
     //
-    out.writeInt(tree.getNumberOfNodes());
-    out.writeInt(maxSize);
-
-    for (int i = 0; i < nNodes; i++)
-      nodeBufs[i].output(out, maxSize);
-
-    // All done.
-    out.close();
+    writer.writeTo(out, 0, tree.getNumberOfNodes());
   } // writeNodes()   
 
   /**
@@ -546,4 +512,119 @@ public class LazyTreeBuilder
       // simply throw these away.
     }
   } // checkSupport()
+
+  /**
+   * Converts a lazy tree file made before version 2.1, whose nodes are
+   * stored in fixed-size slots, to the packed format. All the other
+   * sub-files (text, attributes, names, key indexes, etc.) are copied
+   * as-is. The file is replaced only once the new one is complete.
+   *
+   * @param lazyFile    The file to convert
+   * @return            true if converted, false if the file didn't need it
+   *                    (or is too old to convert.)
+   */
+  public static boolean upgrade(File lazyFile)
+    throws IOException 
+  {
+    File tmpFile = new File(lazyFile.getPath() + ".tmp");
+    StructuredFile in = StructuredFile.open(lazyFile);
+    StructuredFile out = null;
+    try 
+    {
+      String ver = in.getUserVersion();
+      if (ver.compareTo(PACKED_NODES_VERSION) >= 0 ||
+          ver.compareTo(REQUIRED_VERSION) < 0)
+        return false;
+
+      if (tmpFile.exists())
+        tmpFile.delete();
+      out = StructuredFile.create(tmpFile);
+
+      String[] subNames = in.getSubStoreNames();
+      for (int i = 0; i < subNames.length; i++) 
+      {
+        SubStoreReader sub = in.openSubStore(subNames[i]);
+        try {
+          if (subNames[i].equals(FIXED_NODES_NAME))
+            convertNodes(sub, out.createSubStore(PACKED_NODES_NAME));
+          else
+            copySubStore(sub, out.createSubStore(subNames[i]));
+        }
+        finally {
+          sub.close();
+        }
+      }
+
+      out.setUserVersion(PACKED_NODES_VERSION);
+      out.close();
+      out = null;
+    }
+    finally {
+      if (out != null)
+        out.delete();
+      in.close();
+    }
+
+    // Swap the new file in place of the old.
+    if (!lazyFile.delete() || !tmpFile.renameTo(lazyFile))
+      throw new IOException("Unable to replace lazy file '" + lazyFile + "'");
+    return true;
+  } // upgrade()
+
+  /**
+   * Re-write a table of fixed-size nodes in the packed format.
+   *
+   * @param in    The old node table
+   * @param out   Where to write the packed table
+   */
+  private static void convertNodes(SubStoreReader in, SubStoreWriter out)
+    throws IOException 
+  {
+    int rootNodeNum = in.readInt();
+    int numberOfNodes = in.readInt();
+    int maxNodeSize = in.readInt();
+    int nNodes = (maxNodeSize == 0) ? 0 : 
+                 (int)((in.length() - in.getFilePointer()) / maxNodeSize);
+
+    NodeBlockWriter writer = new NodeBlockWriter(true);
+    byte[] bytes = new byte[maxNodeSize];
+    PackedByteBuf buf = new PackedByteBuf(0);
+    for (int i = 0; i < nNodes; i++) 
+    {
+      in.read(bytes, 0, maxNodeSize);
+      buf.setBytes(bytes);
+
+      byte kind = buf.readByte();
+      int flags = buf.readInt();
+      int nameIdx = ((flags & Flag.HAS_NAMECODE) != 0) ? buf.readInt() : -1;
+      int parent = ((flags & Flag.HAS_PARENT) != 0) ? buf.readInt() : -1;
+      int prevSib = ((flags & Flag.HAS_PREV_SIBLING) != 0) ? buf.readInt() : -1;
+      int nextSib = ((flags & Flag.HAS_NEXT_SIBLING) != 0) ? buf.readInt() : -1;
+      boolean hasChild = (flags & Flag.HAS_CHILD) != 0;
+      if (hasChild && buf.readInt() != i + 1)
+        throw new IOException("Unexpected child link in node " + i);
+      int alpha = ((flags & Flag.HAS_ALPHA) != 0) ? buf.readInt() : -1;
+      int beta = ((flags & Flag.HAS_BETA) != 0) ? buf.readInt() : -1;
+
+      writer.add(i, kind, nameIdx, parent, prevSib, nextSib, hasChild,
+                 alpha, beta);
+    }
+
+    writer.writeTo(out, rootNodeNum, numberOfNodes);
+  } // convertNodes()
+
+  /** Copy the entire contents of one sub-file to another, then close it. */
+  private static void copySubStore(SubStoreReader in, SubStoreWriter out)
+    throws IOException 
+  {
+    byte[] bytes = new byte[65536];
+    long left = in.length();
+    while (left > 0) {
+      int n = (int)Math.min(left, bytes.length);
+      in.read(bytes, 0, n);
+      out.write(bytes, 0, n);
+      left -= n;
+    }
+    out.close();
+  } // copySubStore()
 } // class LazyTreeBuilder
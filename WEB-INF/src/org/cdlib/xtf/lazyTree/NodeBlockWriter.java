@@ -0,0 +1,185 @@
+package org.cdlib.xtf.lazyTree;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.cdlib.xtf.util.PackedByteBuf;
+import org.cdlib.xtf.util.SubStoreWriter;
+
+/**
+ * Writes the node table of a lazy tree in the packed format (the "nodes2"
+ * sub-file.) Rather than giving every node a slot as big as the largest
+ * one, nodes are packed end to end in blocks of {@link #NODES_PER_BLOCK},
+ * and an index records where each block starts. Links to other nodes are
+ * stored relative to the node itself, so they're usually small, and the
+ * first child (always the next node) isn't stored at all.
+ *
+ * <p>The sub-file consists of:</p>
+ * <ul>
+ *   <li>Root node number, total number of nodes, number of nodes stored,
+ *       nodes per block, and number of blocks (fixed 4-byte ints)</li>
+ *   <li>Offset of each block, plus the end of the last one (fixed 4-byte
+ *       ints, relative to the end of this index)</li>
+ *   <li>The blocks, each a {@link PackedByteBuf} (which compresses itself
+ *       if that saves space)</li>
+ * </ul>
+ *
+ * @author Martin Haye
+ */
+class NodeBlockWriter 
+{
+  /** Number of nodes packed into each block */
+  static final int NODES_PER_BLOCK = 32;
+
+  /** Size in bytes of the fixed part of the header */
+  static final int HEADER_SIZE = 20;
+
+  /** Blocks packed so far */
+  private ArrayList blocks = new ArrayList();
+
+  /** Block currently being added to */
+  private PackedByteBuf curBlock;
+
+  /** Number of nodes added so far */
+  private int nNodes = 0;
+
+  /** Whether blocks may be compressed */
+  private boolean compress;
+
+  /**
+   * Construct a writer.
+   *
+   * @param compress    true to let blocks be compressed when it saves
+   *                    space, false to never compress them.
+   */
+  NodeBlockWriter(boolean compress) {
+    this.compress = compress;
+  }
+
+  /**
+   * Add the next node. Nodes must be added in order, starting with zero.
+   * Pass -1 for any link or value the node doesn't have.
+   */
+  void add(int num, byte kind, int nameIdx, int parent, int prevSib,
+           int nextSib, boolean hasChild, int alpha, int beta) 
+  {
+    assert num == nNodes : "nodes must be added in order";
+    assert parent < num && prevSib < num;
+    assert nextSib < 0 || nextSib > num;
+
+    // Start a new block if necessary.
+    if ((nNodes % NODES_PER_BLOCK) == 0) {
+      curBlock = new PackedByteBuf(NODES_PER_BLOCK * 10);
+      if (!compress)
+        curBlock.doNotCompress();
+      blocks.add(curBlock);
+    }
+
+    int flags = ((nameIdx != -1) ? Flag.HAS_NAMECODE : 0) |
+                ((parent != -1) ? Flag.HAS_PARENT : 0) |
+                ((prevSib != -1) ? Flag.HAS_PREV_SIBLING : 0) |
+                ((nextSib != -1) ? Flag.HAS_NEXT_SIBLING : 0) |
+                (hasChild ? Flag.HAS_CHILD : 0) |
+                ((alpha != -1) ? Flag.HAS_ALPHA : 0) |
+                ((beta != -1) ? Flag.HAS_BETA : 0);
+
+    curBlock.writeByte(kind);
+    curBlock.writeInt(flags);
+    if (nameIdx != -1)
+      curBlock.writeInt(nameIdx);
+    if (parent != -1)
+      curBlock.writeInt(num - parent);
+    if (prevSib != -1)
+      curBlock.writeInt(num - prevSib);
+    if (nextSib != -1)
+      curBlock.writeInt(nextSib - num);
+    if (alpha != -1)
+      curBlock.writeInt(alpha);
+    if (beta != -1)
+      curBlock.writeInt(beta);
+
+    nNodes++;
+  } // add()
+
+  /**
+   * Write out the header, block index, and blocks, then close the sub-file.
+   *
+   * @param out             Sub-file to write to
+   * @param rootNodeNum     Number of the root node
+   * @param numberOfNodes   Total number of nodes in the tree (may exceed
+   *                        the number added, e.g. for a trailing stopper)
+   */
+  void writeTo(SubStoreWriter out, int rootNodeNum, int numberOfNodes)
+    throws IOException 
+  {
+    out.writeInt(rootNodeNum);
+    out.writeInt(numberOfNodes);
+    out.writeInt(nNodes);
+    out.writeInt(NODES_PER_BLOCK);
+    out.writeInt(blocks.size());
+
+    int offset = 0;
+    for (int i = 0; i < blocks.size(); i++) {
+      out.writeInt(offset);
+      offset += ((PackedByteBuf)blocks.get(i)).length();
+    }
+    out.writeInt(offset);
+
+    for (int i = 0; i < blocks.size(); i++)
+      ((PackedByteBuf)blocks.get(i)).output(out);
+
+    out.close();
+  } // writeTo()
+
+  /**
+   * Skip over a node written by add(), leaving the buffer positioned at the
+   * start of the next one.
+   */
+  static void skipNode(PackedByteBuf buf) 
+  {
+    buf.readByte();
+    int flags = buf.readInt();
+    if ((flags & Flag.HAS_NAMECODE) != 0)
+      buf.skipInt();
+    if ((flags & Flag.HAS_PARENT) != 0)
+      buf.skipInt();
+    if ((flags & Flag.HAS_PREV_SIBLING) != 0)
+      buf.skipInt();
+    if ((flags & Flag.HAS_NEXT_SIBLING) != 0)
+      buf.skipInt();
+    if ((flags & Flag.HAS_ALPHA) != 0)
+      buf.skipInt();
+    if ((flags & Flag.HAS_BETA) != 0)
+      buf.skipInt();
+  } // skipNode()
+} // class NodeBlockWriter
@@ -0,0 +1,375 @@
+package org.cdlib.xtf.lazyTree;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Caches the nodes of a {@link LazyDocument} by node number. Numbers are
+ * kept as primitive ints in an open-addressed table, so that looking up a
+ * node allocates nothing.
+ *
+ * <p>Nodes loaded from disk can be reloaded later, so at most
+ * {@link #setMaxSize(int) maxSize} of them are kept, and the least recently
+ * used are thrown away using the "clock" algorithm. Nodes that can't be
+ * reloaded (for instance, those created or modified by {@link SearchTree})
+ * are pinned and never thrown away.</p>
+ *
+ * <p>In permanent mode, every node is kept; unpinned nodes numbered within
+ * the file are held in a plain array, and any others in the table.</p>
+ *
+ * <p>Not thread-safe; each tree is used by one request at a time.</p>
+ *
+ * @author Martin Haye
+ */
+class NodeCache 
+{
+  /** Flag marking a table entry that has been used since the clock passed */
+  private static final byte REFERENCED = 1;
+
+  /** Flag marking a table entry that must never be thrown away */
+  private static final byte PINNED = 2;
+
+  /** Initial size of the table (must be a power of two) */
+  private static final int INITIAL_CAPACITY = 64;
+
+  /** Node numbers in the table */
+  private int[] keys = new int[INITIAL_CAPACITY];
+
+  /** Nodes in the table; null marks an empty slot */
+  private NodeImpl[] values = new NodeImpl[INITIAL_CAPACITY];
+
+  /** REFERENCED and PINNED flags for each slot */
+  private byte[] flags = new byte[INITIAL_CAPACITY];
+
+  /** Number of entries in the table */
+  private int count = 0;
+
+  /** How many of the entries are pinned */
+  private int pinnedCount = 0;
+
+  /** Max # of unpinned entries, or zero for no limit */
+  private int maxSize;
+
+  /** Current position of the clock hand */
+  private int hand = 0;
+
+  /** In permanent mode, nodes indexed directly by number; else null */
+  private NodeImpl[] permanent = null;
+
+  /** Number of lookups that found a node */
+  long hits = 0;
+
+  /** Number of lookups that didn't find a node */
+  long misses = 0;
+
+  /**
+   * Construct an empty cache.
+   *
+   * @param maxSize   Max # of unpinned nodes to hold, or zero for no limit
+   */
+  NodeCache(int maxSize) {
+    this.maxSize = Math.max(0, maxSize);
+  }
+
+  /**
+   * Change the max # of unpinned nodes to hold (zero for no limit). If
+   * there are more than that already, the excess are thrown away.
+   */
+  void setMaxSize(int newMax) 
+  {
+    maxSize = Math.max(0, newMax);
+    if (maxSize > 0 && permanent == null) {
+      while (count - pinnedCount > maxSize)
+        evictOne();
+    }
+  } // setMaxSize()
+
+  /**
+   * Switch into or out of permanent mode. When switching in, all nodes
+   * currently held become permanent; when switching out, nodes that weren't
+   * pinned can be thrown away again.
+   *
+   * @param flag      true to keep all nodes from now on
+   * @param nNodes    Number of nodes in the file (used to size the array)
+   */
+  void setPermanent(boolean flag, int nNodes) 
+  {
+    if (flag && permanent == null) 
+    {
+      permanent = new NodeImpl[nNodes];
+      for (int i = 0; i < values.length; i++) 
+      {
+        if (values[i] == null || (flags[i] & PINNED) != 0)
+          continue;
+        int num = keys[i];
+        if (num >= 0 && num < nNodes) {
+          permanent[num] = values[i];
+          removeSlot(i);
+          --i; // re-check this slot; an entry may have shifted into it
+        }
+      }
+    }
+    else if (!flag && permanent != null) 
+    {
+      NodeImpl[] old = permanent;
+      permanent = null;
+      for (int num = 0; num < old.length; num++) {
+        if (old[num] != null)
+          put(num, old[num]);
+      }
+      setMaxSize(maxSize);
+    }
+  } // setPermanent()
+
+  /**
+   * Look up a node, and mark it as recently used.
+   *
+   * @return  The node, or null if not in the cache.
+   */
+  NodeImpl get(int num) 
+  {
+    if (permanent != null && num >= 0 && num < permanent.length) {
+      NodeImpl node = permanent[num];
+      if (node != null) {
+        ++hits;
+        return node;
+      }
+    }
+
+    int slot = find(num);
+    if (slot < 0) {
+      ++misses;
+      return null;
+    }
+    ++hits;
+    flags[slot] |= REFERENCED;
+    return values[slot];
+  } // get()
+
+  /** Check if a node is in the cache, without counting a hit or miss */
+  boolean containsKey(int num) 
+  {
+    if (permanent != null && num >= 0 && num < permanent.length &&
+        permanent[num] != null)
+      return true;
+    return find(num) >= 0;
+  } // containsKey()
+
+  /**
+   * Add a node that can be reloaded later if it gets thrown away. In
+   * permanent mode, it is kept regardless.
+   */
+  void put(int num, NodeImpl node) {
+    add(num, node, false);
+  }
+
+  /** Add a node that must never be thrown away */
+  void pin(int num, NodeImpl node) {
+    add(num, node, true);
+  }
+
+  /** Get a list of all the nodes in the cache. */
+  NodeImpl[] values() 
+  {
+    int nPerm = 0;
+    if (permanent != null) {
+      for (int i = 0; i < permanent.length; i++) {
+        if (permanent[i] != null)
+          nPerm++;
+      }
+    }
+
+    NodeImpl[] out = new NodeImpl[nPerm + count];
+    int n = 0;
+    if (permanent != null) {
+      for (int i = 0; i < permanent.length; i++) {
+        if (permanent[i] != null)
+          out[n++] = permanent[i];
+      }
+    }
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null)
+        out[n++] = values[i];
+    }
+    assert n == out.length;
+    return out;
+  } // values()
+
+  /** Add or replace a node */
+  private void add(int num, NodeImpl node, boolean pin) 
+  {
+    assert node != null;
+
+    // If already present, replace it (never un-pinning it though).
+    int slot = find(num);
+    if (slot >= 0) {
+      values[slot] = node;
+      flags[slot] |= REFERENCED;
+      if (pin && (flags[slot] & PINNED) == 0) {
+        flags[slot] |= PINNED;
+        ++pinnedCount;
+      }
+      return;
+    }
+
+    // In permanent mode, unpinned nodes go in the array if they can.
+    if (permanent != null && num >= 0 && num < permanent.length) {
+      if (!pin) {
+        permanent[num] = node;
+        return;
+      }
+      permanent[num] = null;
+    }
+
+    // Make room if necessary (nothing gets thrown away in permanent mode.)
+    if (!pin && permanent == null && maxSize > 0 &&
+        count - pinnedCount >= maxSize)
+      evictOne();
+    if ((count + 1) * 2 > values.length)
+      rehash(values.length * 2);
+
+    // Find an empty slot and stick it there.
+    int mask = values.length - 1;
+    slot = hash(num) & mask;
+    while (values[slot] != null)
+      slot = (slot + 1) & mask;
+    keys[slot] = num;
+    values[slot] = node;
+    flags[slot] = pin ? (REFERENCED | PINNED) : REFERENCED;
+    ++count;
+    if (pin)
+      ++pinnedCount;
+  } // add()
+
+  /** Locate the slot for a node number, or -1 if not present */
+  private int find(int num) 
+  {
+    int mask = values.length - 1;
+    int slot = hash(num) & mask;
+    while (values[slot] != null) {
+      if (keys[slot] == num)
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  } // find()
+
+  /** Spread node numbers, which are often sequential, around the table */
+  private static int hash(int num) {
+    int h = num * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Advance the clock hand until it finds an unpinned entry that hasn't
+   * been used since the last time around, and throw that entry away.
+   */
+  private void evictOne() 
+  {
+    assert count > pinnedCount;
+    int mask = values.length - 1;
+    while (true) 
+    {
+      int slot = hand;
+      hand = (hand + 1) & mask;
+      if (values[slot] == null || (flags[slot] & PINNED) != 0)
+        continue;
+      if ((flags[slot] & REFERENCED) != 0) {
+        flags[slot] &= ~REFERENCED;
+        continue;
+      }
+      removeSlot(slot);
+      return;
+    }
+  } // evictOne()
+
+  /**
+   * Empty a slot, shifting later entries of the same probe run back so
+   * that lookups still find them.
+   */
+  private void removeSlot(int slot) 
+  {
+    if ((flags[slot] & PINNED) != 0)
+      --pinnedCount;
+    --count;
+
+    int mask = values.length - 1;
+    int hole = slot;
+    int next = slot;
+    while (true) 
+    {
+      next = (next + 1) & mask;
+      if (values[next] == null)
+        break;
+
+      // Leave the entry alone if its home slot lies cyclically in
+      // (hole, next].
+      //
+      int home = hash(keys[next]) & mask;
+      if (hole <= next ? (hole < home && home <= next)
+                       : (hole < home || home <= next))
+        continue;
+
+      keys[hole] = keys[next];
+      values[hole] = values[next];
+      flags[hole] = flags[next];
+      hole = next;
+    }
+
+    values[hole] = null;
+    flags[hole] = 0;
+  } // removeSlot()
+
+  /** Move all entries into a new table of the given size */
+  private void rehash(int newCapacity) 
+  {
+    int[] oldKeys = keys;
+    NodeImpl[] oldValues = values;
+    byte[] oldFlags = flags;
+
+    keys = new int[newCapacity];
+    values = new NodeImpl[newCapacity];
+    flags = new byte[newCapacity];
+    hand = 0;
+
+    int mask = newCapacity - 1;
+    for (int i = 0; i < oldValues.length; i++) 
+    {
+      if (oldValues[i] == null)
+        continue;
+      int slot = hash(oldKeys[i]) & mask;
+      while (values[slot] != null)
+        slot = (slot + 1) & mask;
+      keys[slot] = oldKeys[i];
+      values[slot] = oldValues[i];
+      flags[slot] = oldFlags[i];
+    }
+  } // rehash()
+} // class NodeCache
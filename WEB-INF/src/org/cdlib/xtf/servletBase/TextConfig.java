@@ -33,6 +33,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import org.cdlib.xtf.textEngine.MappedFSDirectory;
 import org.cdlib.xtf.util.*;
 
 /** Common members and methods for servlet configuration classes */
@@ -116,6 +117,48 @@ public abstract class TextConfig
   /** Interval for index warming. Default: 60 (seconds) */
   public int indexWarmingUpdateInterval = 60;
   
+  /** Max size (in megabytes) of the query result cache. Default: 0 (off) */
+  public int queryCacheSize = 0;
+  
+  /** 
+   * Whether the query result cache should keep only the hits, and re-make
+   * the snippets for each request. Default: false.
+   */
+  public boolean queryCacheHitsOnly = false;
+  
+  /** 
+   * Max size (in megabytes) of the cache of document stored fields.
+   * Default: 16. Zero disables the cache.
+   */
+  public int docCacheSize = 16;
+  
+  /** 
+   * Max size (in megabytes) of the cache of search results within single
+   * documents (used by dynaXML.) Default: 8. Zero disables the cache.
+   */
+  public int searchTreeCacheSize = 8;
+  
+  /** 
+   * Max number of threads to use when searching a single large index.
+   * Default: 1 (no parallel searching.)
+   */
+  public int parallelSearchThreads = 1;
+  
+  /** Minimum number of chunks to give each search thread */
+  public int parallelSearchMinChunks = 100000;
+  
+  /** 
+   * Max number of threads to use when making the snippets of a result
+   * that is to be cached. Default: 1 (made by the request thread.)
+   */
+  public int parallelSnippetThreads = 1;
+  
+  /** 
+   * Whether to memory-map index files. Default: true, except on Windows
+   * where mapped files can't be renamed (see {@link MappedFSDirectory}.)
+   */
+  public boolean memoryMapIndexes = MappedFSDirectory.isSupported();
+  
   /** All the configuration attributes in the form of name/value pairs */
   public AttribList attribs = new AttribList();
 
@@ -294,6 +337,38 @@ public abstract class TextConfig
       indexWarmingUpdateInterval = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("queryCache.size")) {
+      queryCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("queryCache.hitsOnly")) {
+      queryCacheHitsOnly = parseBoolean(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("docCache.size")) {
+      docCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("searchTreeCache.size")) {
+      searchTreeCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("parallelSearch.threads")) {
+      parallelSearchThreads = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("parallelSearch.minChunks")) {
+      parallelSearchMinChunks = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("parallelSnippets.threads")) {
+      parallelSnippetThreads = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("memoryMap.indexes")) {
+      memoryMapIndexes = parseBoolean(tagAttr, strVal);
+      return true;
+    }
 
     // Not recognized.
     return false;
@@ -79,9 +79,11 @@ import org.apache.lucene.limit.ExcessiveWorkException;
 import org.apache.lucene.limit.TermLimitException;
 import org.cdlib.xtf.saxonExt.sql.SQLConnect;
 import org.cdlib.xtf.textEngine.DefaultQueryProcessor;
+import org.cdlib.xtf.textEngine.DocInfoCache;
 import org.cdlib.xtf.textEngine.IndexUtil;
 import org.cdlib.xtf.textEngine.IndexWarmer;
 import org.cdlib.xtf.textEngine.QueryProcessor;
+import org.cdlib.xtf.textEngine.QueryResultCache;
 import org.cdlib.xtf.textIndexer.tokenizer.XTFTokenizer;
 import org.cdlib.xtf.util.Attrib;
 import org.cdlib.xtf.util.AttribList;
@@ -954,6 +956,23 @@ public abstract class TextServlet extends HttpServlet
         warmer = indexWarmers.get(xtfHome);
         if (warmer == null) {
           warmer = new IndexWarmer(xtfHome, getConfig().indexWarmingUpdateInterval);
+          if (getConfig().queryCacheSize > 0) {
+            warmer.setResultCache(new QueryResultCache(
+              getConfig().queryCacheSize * 1024L * 1024L,
+              getConfig().queryCacheHitsOnly));
+          }
+          if (getConfig().docCacheSize > 0) {
+            warmer.setDocCache(new DocInfoCache(
+              getConfig().docCacheSize * 1024L * 1024L));
+          }
+          if (getConfig().searchTreeCacheSize > 0) {
+            warmer.setDocResultCache(new QueryResultCache(
+              getConfig().searchTreeCacheSize * 1024L * 1024L, true));
+          }
+          warmer.setParallelSearch(getConfig().parallelSearchThreads,
+                                   getConfig().parallelSearchMinChunks);
+          warmer.setParallelSnippets(getConfig().parallelSnippetThreads);
+          warmer.setMemoryMap(getConfig().memoryMapIndexes);
           indexWarmers.put(xtfHome, warmer);
         }
       }
@@ -40,6 +40,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.WeakHashMap;
 import org.apache.lucene.index.IndexReader;
@@ -65,6 +66,15 @@ public class BoostSet
   /** Number of warnings emitted so far. After 10, we suppress them. */
   private int nWarnings = 0;
 
+  /** 
+   * True to hold back warnings (when reading one segment of several, the
+   * warnings are instead given once the segments are combined.)
+   */
+  private boolean quiet = false;
+
+  /** Which (valid) lines of the boost file matched a document */
+  private BitSet foundLines = new BitSet();
+
   /** Set of boost values, one per document ID */
   private float[] boostByDoc;
 
@@ -81,8 +91,9 @@ public class BoostSet
    * @param field        Field used to key boost values
    * @return             Group data for the specified field
    */
-  public static BoostSet getCachedSet(IndexReader indexReader, File inFile,
-                                      String field)
+  public static synchronized BoostSet getCachedSet(IndexReader indexReader,
+                                                   File inFile,
+                                                   String field)
     throws IOException 
   {
     // See if we have a cache for this reader.
@@ -96,8 +107,14 @@ public class BoostSet
     BoostSet set = (BoostSet)readerCache.get(inFile);
     if (set == null || !set.field.equals(field)) 
     {
-      // Don't have cached data, so read and remember it.
-      set = new BoostSet(indexReader, inFile, field);
+      // Don't have cached data, so read (or compose from the segments) and
+      // remember it. The per-segment data outlives this reader, so make sure
+      // a changed boost file gets re-read.
+      //
+      set = (BoostSet)SegmentCache.load(indexReader, 
+                                        "boost|" + field + "|" + inFile + "|" +
+                                        inFile.lastModified(),
+                                        new SegmentLoader(inFile, field));
       readerCache.put(inFile, set);
     }
 
@@ -120,16 +137,27 @@ public class BoostSet
     return ret;
   } // getBoost()
 
+  /** Construct an empty set, to be filled in by the caller */
+  private BoostSet(String field) {
+    this.field = field;
+  }
+
   /** Do not construct directly; use
    *  {@link #getCachedSet(IndexReader, File, String)}
    *  instead. Constructs a BoostSet by reading a file containing document
    *  key -> boost factor mappings, and correlating it with the keys in the
    *  given index reader.
+   *
+   *  @param wholeIndex  false if the reader is just one segment of the
+   *                     index, in which case most of the file's keys won't
+   *                     be found, and we shouldn't warn about them.
    */
-  private BoostSet(IndexReader indexReader, File inFile, String field)
+  private BoostSet(IndexReader indexReader, File inFile, String field,
+                   boolean wholeIndex)
     throws IOException 
   {
     this.field = field;
+    this.quiet = !wholeIndex;
 
     Trace.debug("Loading boost set '" + inFile + "'...");
 
@@ -149,6 +177,7 @@ public class BoostSet
       lineIter = new LineIter(new BufferedReader(new FileReader(inFile)));
 
       // Process all matches
+      int lineNum = 0;
       while (!docIter.done() && !lineIter.done()) 
       {
         String docKey = docIter.key();
@@ -163,6 +192,7 @@ public class BoostSet
         else if (diff > 0) {
           warn("Boost document key '" + lineKey + "' not found in index");
           lineIter.next();
+          lineNum++;
           continue;
         }
 
@@ -170,9 +200,11 @@ public class BoostSet
         int docId = docIter.docId();
         if (docId >= 0 && docId < boostByDoc.length)
           boostByDoc[docId] = lineIter.boost();
+        foundLines.set(lineNum);
 
         docIter.next();
         lineIter.next();
+        lineNum++;
       }
 
       // Warn about any leftover docs
@@ -205,6 +237,8 @@ public class BoostSet
    * @param msg   The message to emit
    */
   private void warn(String msg) {
+    if (quiet)
+      return;
     ++nWarnings;
     if (nWarnings < 10)
       Trace.warning(msg);
@@ -212,6 +246,64 @@ public class BoostSet
       Trace.warning("Further warnings suppressed.");
   } // warn()
 
+  /**
+   * Re-read the boost file, giving any warnings about its format, and about
+   * keys that weren't found in any segment of the index.
+   */
+  private void warnMissing(File inFile)
+    throws IOException 
+  {
+    LineIter lineIter = new LineIter(new BufferedReader(new FileReader(inFile)));
+    try {
+      for (int lineNum = 0; !lineIter.done(); lineNum++) {
+        if (!foundLines.get(lineNum))
+          warn("Boost document key '" + lineIter.key() + "' not found in index");
+        lineIter.next();
+      }
+    }
+    finally {
+      lineIter.close();
+    }
+  } // warnMissing()
+
+  /** Builds a set per segment, and glues the segments together */
+  private static class SegmentLoader implements SegmentCache.Loader 
+  {
+    private File inFile;
+    private String field;
+
+    SegmentLoader(File inFile, String field) {
+      this.inFile = inFile;
+      this.field = field;
+    }
+
+    public Object load(IndexReader reader, boolean wholeIndex)
+      throws IOException 
+    {
+      return new BoostSet(reader, inFile, field, wholeIndex);
+    }
+
+    public Object compose(Object[] parts, int[] starts, int maxDoc)
+      throws IOException 
+    {
+      BoostSet ret = new BoostSet(field);
+      ret.boostByDoc = new float[maxDoc + 1];
+      Arrays.fill(ret.boostByDoc, DEFAULT_MARKER);
+      for (int i = 0; i < parts.length; i++) {
+        BoostSet part = (BoostSet)parts[i];
+        System.arraycopy(part.boostByDoc, 0, ret.boostByDoc, starts[i],
+                         part.boostByDoc.length - 1);
+        ret.foundLines.or(part.foundLines);
+      }
+
+      // Now that we know which keys matched in some segment, warn (once)
+      // about the rest.
+      //
+      ret.warnMissing(inFile);
+      return ret;
+    }
+  } // class SegmentLoader
+
   /**
    * Iterates all the document keys in an index
    */
@@ -275,7 +367,7 @@ public class BoostSet
     private void readDocKey() 
     {
       Term term = termEnum.term();
-      if (!term.field().equals(field)) {
+      if (term == null || !term.field().equals(field)) {
         done = true;
         return;
       }
@@ -352,9 +444,11 @@ public class BoostSet
         lineBoost = Float.parseFloat(line.substring(sepPos + 1));
 
         if (lineKey.compareTo(prevLineKey) <= 0) {
-          Trace.error(
-            "Error: Boost set lines out of order: '" + prevLineKey +
-            "' came before '" + lineKey + "', but should come after.");
+          if (!quiet) {
+            Trace.error(
+              "Error: Boost set lines out of order: '" + prevLineKey +
+              "' came before '" + lineKey + "', but should come after.");
+          }
           done = true;
           break;
         }
@@ -0,0 +1,168 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.Set;
+import org.apache.lucene.chunk.DocNumMap;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanRangeQuery;
+import org.apache.lucene.search.spans.SpanWildcardQuery;
+import org.cdlib.xtf.util.CharMap;
+import org.cdlib.xtf.util.FastCache;
+import org.cdlib.xtf.util.WordMap;
+
+/**
+ * Keeps the results of recent query rewrites, so that a query that has been
+ * seen before needn't go through the whole chain of rewriters again. Entries
+ * are keyed on the canonical form of the parsed query, plus the identity
+ * of the stop set, plural map, accent map, etc. that the rewriters used.<br>
+ *
+ * Rewritten queries are shared between threads, so they must not be
+ * modified after they are added to the cache.
+ *
+ * @author Martin Haye
+ */
+public class CompiledQueryCache 
+{
+  /** Stands in for a query that was rewritten to nothing */
+  public static final Query NO_QUERY = new BooleanQuery();
+
+  /** The cached queries */
+  private FastCache<String, Query> cache;
+
+  /**
+   * Construct a cache.
+   *
+   * @param size    Approximate number of queries to keep
+   */
+  public CompiledQueryCache(int size) {
+    cache = new FastCache<String, Query>(size);
+  }
+
+  /**
+   * Forms a canonical string for the given query. Two queries that have
+   * the same canonical form will be rewritten identically.
+   *
+   * @param q   The query to work on
+   * @return    The canonical form, or null if the query contains parts that
+   *            can't be distinguished this way (i.e. "more like this").
+   */
+  public static String canonicalForm(Query q) 
+  {
+    final StringBuffer buf = new StringBuffer(100);
+    final boolean[] canonical = new boolean[] { true };
+    buf.append(q.toString());
+
+    // The string form of a query doesn't capture everything (in particular
+    // the class of each sub-query and the number of spans to record), so
+    // add those.
+    //
+    buf.append("|shape=");
+    new XtfQueryTraverser() 
+    {
+      public void traverseQuery(Query q) 
+      {
+        buf.append(q.getClass().getName());
+        buf.append('^').append(q.getBoost());
+        if (q instanceof SpanQuery)
+          buf.append('/').append(((SpanQuery)q).getSpanRecording());
+        if (q instanceof SpanWildcardQuery)
+          buf.append('/').append(((SpanWildcardQuery)q).getTermLimit());
+        if (q instanceof SpanRangeQuery)
+          buf.append('/').append(((SpanRangeQuery)q).getTermLimit());
+        if (q instanceof BooleanQuery)
+          buf.append('/').append(((BooleanQuery)q).isCoordDisabled());
+        buf.append('(');
+        super.traverseQuery(q);
+        buf.append(')');
+      }
+
+      protected void traverse(MoreLikeThisQuery mlt) {
+        // Its parameters don't show up in the string form.
+        canonical[0] = false;
+      }
+    }.traverseQuery(q);
+
+    return canonical[0] ? buf.toString() : null;
+  } // canonicalForm()
+
+  /**
+   * Forms a key for a query to be rewritten with the given index data.
+   *
+   * @return  The key, or null if the query can't be cached.
+   */
+  public static String makeKey(Query q, Set tokFields, Set stopSet,
+                               WordMap pluralMap, CharMap accentMap,
+                               DocNumMap docNumMap, int chunkOverlap) 
+  {
+    String form = canonicalForm(q);
+    if (form == null)
+      return null;
+
+    StringBuffer buf = new StringBuffer(form.length() + 60);
+    buf.append(System.identityHashCode(tokFields)).append(',');
+    buf.append(System.identityHashCode(stopSet)).append(',');
+    buf.append(System.identityHashCode(pluralMap)).append(',');
+    buf.append(System.identityHashCode(accentMap)).append(',');
+    buf.append(System.identityHashCode(docNumMap)).append(',');
+    buf.append(chunkOverlap).append('|');
+    buf.append(form);
+    return buf.toString();
+  } // makeKey()
+
+  /**
+   * Get the rewritten query for the given key.
+   *
+   * @param key   Key formed by {@link #makeKey}
+   * @return      The rewritten query, {@link #NO_QUERY} if it was rewritten
+   *              to nothing, or null if not found.
+   */
+  public synchronized Query get(String key) {
+    return cache.get(key);
+  }
+
+  /**
+   * Record the rewritten query for the given key.
+   *
+   * @param key       Key formed by {@link #makeKey}
+   * @param rewritten The rewritten query, or null if it was rewritten to
+   *                  nothing.
+   */
+  public synchronized void put(String key, Query rewritten) {
+    cache.put(key, rewritten == null ? NO_QUERY : rewritten);
+  }
+
+  /** Remove all entries from the cache */
+  public synchronized void clear() {
+    cache.clear();
+  }
+} // class CompiledQueryCache
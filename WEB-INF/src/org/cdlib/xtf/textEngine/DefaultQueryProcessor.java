@@ -38,23 +38,27 @@ package org.cdlib.xtf.textEngine;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.lucene.chunk.DocNumMap;
 import org.apache.lucene.chunk.SpanChunkedNotQuery;
-import org.apache.lucene.chunk.SparseStringComparator;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.FieldSortedHitQueue;
-import org.apache.lucene.search.FlippableStringComparator;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.RecordingSearcher;
 import org.apache.lucene.search.SortField;
@@ -90,54 +94,14 @@ public class DefaultQueryProcessor extends QueryProcessor
   /** Map of all XtfSearchers, so we can re-use them */
   private static HashMap searchers = new HashMap();
 
-  /** Lucene reader from which to read index data */
-  private IndexReader indexReader;
-
-  /** Fetches spelling suggestions */
-  private SpellReader spellReader;
-
-  /** Keeps track of which chunks belong to which documents */
-  private DocNumMap docNumMap;
-
-  /** Max size of a chunk (in words) */
-  @SuppressWarnings("unused")
-  private int chunkSize;
-
-  /** Number of words a chunk shares with its successor */
-  private int chunkOverlap;
-
-  /** Stop-words to remove (e.g. "the", "a", "and", etc.) */
-  private Set stopSet;
-
-  /** Mapping of plural words to singular words */
-  private WordMap pluralMap;
-
-  /** Mapping of accented chars to chars without diacritics */
-  private CharMap accentMap;
-
-  /** Whether the index is "sparse" (i.e. more than 5 chunks per doc) */
-  private boolean isSparse;
-
-  /** Names of fields that are tokenized in this index */
-  private Set tokFields;
-
-  /** Total number of documents hit (not just those that scored high) */
-  private int nDocsHit;
-
-  /** Maximum document score (used to normalize scores) */
-  private float maxDocScore;
-
-  /** Document normalization factor (calculated from {@link #maxDocScore}) */
-  private float docScoreNorm;
-
   /** Used to warm up indexes prior to use */
   private IndexWarmer indexWarmer;
 
   /** Comparator used for sorting strings in "sparse" indexes */
-  private static final SparseStringComparator sparseStringComparator = new SparseStringComparator();
+  private static final OrdinalSortComparator sparseStringComparator = new OrdinalSortComparator(true);
 
   /** Comparator used for sorting strings in "compact" indexes */
-  private static final FlippableStringComparator compactStringComparator = new FlippableStringComparator();
+  private static final OrdinalSortComparator compactStringComparator = new OrdinalSortComparator(false);
   
   /** Comparator used to sort by total number of hits */
   private static final TotalHitsComparator totalHitsComparator = new TotalHitsComparator();
@@ -151,45 +115,55 @@ public class DefaultQueryProcessor extends QueryProcessor
    * This is main entry point. Takes a pre-parsed query request and handles
    * searching the index and forming the results.<br>
    *
-   * This method is synchronized because it uses two instance variables,
-   * so access by multiple threads would result in incorrect counting. For
-   * maximum efficiency, each thread should really use its own instance.
+   * All state for the request is kept in a private {@link RequestContext},
+   * so a single processor may safely be used by many threads at once.
    *
    * @param req      The pre-parsed request to process
    * @return         Zero or more document hits
    */
-  public synchronized QueryResult processRequest(final QueryRequest req)
+  public QueryResult processRequest(QueryRequest req)
     throws IOException 
   {
-    // Clear out our counters.
-    nDocsHit = 0;
-    maxDocScore = 0;
+    if (indexWarmer == null)
+      throw new IOException("Fatal: must call setIndexWarmer() before DefaultQueryProcessor.processRequest()");
+
+    // Get a snapshot of the reader, searcher, and document number map that
+    // will all be consistent with each other, and will stay open until we're
+    // done with them (even if a new index is rotated in meanwhile.)
+    //
+    XtfSearcher xtfSearcher = indexWarmer.acquireSearcher(req.indexPath);
+    try {
+      return processRequest(req, new RequestContext(xtfSearcher));
+    }
+    finally {
+      xtfSearcher.release();
+    }
+  } // processRequest()
 
+  /**
+   * Does the work of {@link #processRequest(QueryRequest)}, recording all
+   * per-request state in the given context.
+   *
+   * @param req      The pre-parsed request to process
+   * @param ctx      Fresh context to hold state for this request
+   * @return         Zero or more document hits
+   */
+  private QueryResult processRequest(final QueryRequest req,
+                                     final RequestContext ctx)
+    throws IOException 
+  {
     // Make an vector to store the hits (we'll make it into an array
     // later, when we know how many we have.)
     //
     Vector hitVec = new Vector(10);
 
-    if (indexWarmer == null)
-      throw new IOException("Fatal: must call setIndexWarmer() before DefaultQueryProcessor.processRequest()");
-
-    // Get a reader, searcher, and document number map that will all be
-    // consistent with each other and up-to-date.
-    //
-    XtfSearcher xtfSearcher = indexWarmer.getSearcher(req.indexPath);
-    synchronized (xtfSearcher) {
-      xtfSearcher.update();
-      indexReader = xtfSearcher.indexReader();
-      docNumMap = xtfSearcher.docNumMap();
-      chunkSize = xtfSearcher.chunkSize();
-      chunkOverlap = xtfSearcher.chunkOverlap();
-      stopSet = xtfSearcher.stopSet();
-      pluralMap = xtfSearcher.pluralMap();
-      accentMap = xtfSearcher.accentMap();
-      spellReader = xtfSearcher.spellReader();
-      isSparse = xtfSearcher.isSparse();
-      tokFields = xtfSearcher.tokenizedFields();
-    }
+    // Make local copies of the things we use most.
+    final IndexReader indexReader = ctx.indexReader;
+    final DocNumMap docNumMap = ctx.docNumMap;
+    final Set stopSet = ctx.stopSet;
+    final WordMap pluralMap = ctx.pluralMap;
+    final CharMap accentMap = ctx.accentMap;
+    final Set tokFields = ctx.tokFields;
 
     // Apply a work limit to the query if we were requested to. If no
     // specific limit was set, use a limiter with an infinite limit 
@@ -206,16 +180,6 @@ public class DefaultQueryProcessor extends QueryProcessor
     if (maxDocs < 0)
       maxDocs = docNumMap.getDocCount();
 
-    // Make a queue that will accumulate the hits and pick the first
-    // load of them for us. If there is a sort field specification,
-    // do it in field-sorted order; otherwise, sort by score.
-    //
-    final PriorityQueue docHitQueue = createHitQueue(indexReader,
-                                                     req.startDoc +
-                                                       req.maxDocs,
-                                                     req.sortMetaFields,
-                                                     isSparse);
-
     // Start making the result by filling in its context.
     QueryResult result = new QueryResult();
     result.context = new QueryContext();
@@ -231,65 +195,86 @@ public class DefaultQueryProcessor extends QueryProcessor
       return result;
     }
 
-    // Perform standard tokenization tasks: change words to lowercase,
-    // remove apostrophes, etc.
-    //
-    query = new StdTermRewriter(tokFields).rewriteQuery(query);
-    
-    // Normalize all Unicode encoding to normalized form C (NFC)
-    query = new UnicodeNormalizingRewriter(tokFields).rewriteQuery(query);
-
-    // If an accent map is present, remove diacritics.
-    if (accentMap != null)
-      query = new AccentFoldingRewriter(accentMap, tokFields).rewriteQuery(query);
-
-    // If a plural map is present, change plural words to non-plural.
-    if (pluralMap != null)
-      query = new PluralFoldingRewriter(pluralMap, tokFields).rewriteQuery(query);
-
-    // Rewrite the query for bigrams (if we have stop-words to deal with.)
-    if (stopSet != null)
-      query = new XtfBigramQueryRewriter(stopSet, chunkOverlap, tokFields).rewriteQuery(
-        query);
+    // Rewrite the query to match the way the index was built.
+    final Query finalQuery = rewriteQuery(query, ctx);
 
     // If there's nothing left (for instance if the query was all stop-words)
     // then there will be no results.
     //
-    if (query == null) {
+    if (finalQuery == null) {
       result.docHits = new DocHit[0];
       return result;
     }
 
-    // Fix up all the "infinite" slop entries to be actually limited to
-    // the chunk overlap size. That way, we'll get consistent results and
-    // the user won't be able to tell where the chunk boundaries are. 
-    // Also, attach the docNumMap to every SpanDechunkingQuery.
-    //
-    final Query finalQuery = new SlopFixupRewriter(docNumMap,
-                                                   stopSet,
-                                                   pluralMap,
-                                                   accentMap).rewriteQuery(query);
-
     // If debugging is enabled, print out the final rewritten and fixed
     // up query.
     //
     if (finalQuery != req.query)
       Trace.debug("Rewritten query: " + finalQuery.toString());
 
-    // While processing the query, we want to lazily generate DocHits,
-    // and only generate a DocHit once even if it's added to multiple
-    // groups.
+    // If only the number of hits is needed (e.g. to verify a spelling
+    // suggestion, or when a stylesheet asks for maxDocs="0"), we can take
+    // a much quicker path.
     //
-    final DocHitMakerImpl docHitMaker = new DocHitMakerImpl();
+    if (isCountOnly(req))
+      return countHits(req, ctx, limReader, finalQuery, result);
+
+    // We'll need a snippet maker to finish off the hits.
+    SnippetMaker snippetMaker = new SnippetMaker(limReader,
+                                                 docNumMap,
+                                                 stopSet,
+                                                 pluralMap,
+                                                 accentMap,
+                                                 tokFields,
+                                                 req.maxContext,
+                                                 req.termMode,
+                                                 req.returnMetaFields);
+    if (indexWarmer.docCache() != null)
+      snippetMaker.setDocCache(indexWarmer.docCache(), ctx.xtfSearcher);
+
+    // If the same query was run recently against this same index, re-use
+    // the results. Searches within a single document (e.g. by dynaXML)
+    // have a cache of their own, so they don't crowd out the others.
+    //
+    QueryResultCache resultCache = (req.docKey != null) 
+                                   ? indexWarmer.docResultCache()
+                                   : indexWarmer.resultCache();
+    String cacheKey = null;
+    if (resultCache != null && QueryResultCache.isCacheable(req)) 
+    {
+      cacheKey = QueryResultCache.makeKey(ctx.xtfSearcher, finalQuery, req);
+      QueryResultCache.Entry cached = (cacheKey == null) ? null : 
+        resultCache.get(cacheKey, ctx.xtfSearcher);
+      if (cached != null) 
+      {
+        ctx.nDocsHit = cached.totalDocs();
+        ctx.maxDocScore = cached.maxDocScore();
+
+        // Hits re-made from a hit list have to be loaded while we still
+        // have the searcher. Within a single document though, only the
+        // snippets actually shown will be wanted, so leave them lazy.
+        //
+        QueryResult cachedResult = cached.makeResult(snippetMaker);
+        if (cached.hitsOnly && req.docKey == null)
+          materializeHits(cachedResult);
+        return cachedResult;
+      }
+    }
+
+    // Make a queue that will accumulate the hits and pick the first
+    // load of them for us. If there is a sort field specification,
+    // do it in field-sorted order; otherwise, sort by score.
+    //
+    final PriorityQueue docHitQueue = createHitQueue(indexReader,
+                                                     req.startDoc +
+                                                       req.maxDocs,
+                                                     req.sortMetaFields,
+                                                     ctx.isSparse);
 
     // If we're to apply a set of additional boost sets to the documents,
     // get the set now.
     //
-    final BoostSet boostSet = (req.boostSetParams == null) ? null
-      : BoostSet.getCachedSet(indexReader,
-          new File(
-            req.boostSetParams.path),
-          req.boostSetParams.field);
+    final BoostSet boostSet = getBoostSet(req, indexReader);
 
     // Make a Lucene searcher that will access the index according to
     // our query.
@@ -302,40 +287,16 @@ public class DefaultQueryProcessor extends QueryProcessor
     //
     final GroupCounts[] groupCounts = (req.facetSpecs == null) ? null
                                       : prepGroups(req,
+                                                   ctx,
                                                    boostSet,
                                                    searcher,
                                                    finalQuery);
 
     // Now for the big show... go get the hits!
-    searcher.search(finalQuery, null,
-      new SpanHitCollector() 
-      {
-        public void collect(int doc, float score, FieldSpanSource spanSource) 
-        {
-          // Apply a boost (if there's a boost set)
-          score = applyBoost(doc, score, boostSet, req);
-
-          // Ignore deleted entries, and entries boosted down to zero.
-          if (score <= 0.0f)
-            return;
-
-          // Bump the count of documents hit, and update the max score.
-          nDocsHit++;
-          if (score > maxDocScore)
-            maxDocScore = score;
-
-          // Record the hit.
-          docHitMaker.reset(doc, score, spanSource);
-          if (req.maxDocs > 0)
-            docHitMaker.insertInto(docHitQueue);
-
-          // If grouping is enabled, add this document to the counts.
-          if (groupCounts != null) {
-            for (int i = 0; i < groupCounts.length; i++)
-              groupCounts[i].addDoc(docHitMaker);
-          }
-        } // collect()
-      });
+    HitCollector collector = new HitCollector(req, ctx, boostSet, docHitQueue,
+                                              groupCounts);
+    search(searcher, finalQuery, collector, limReader.maxDoc(), req.docKey,
+           ctx);
 
     // Take the high-ranking hits and add them to the hit vector.
     // Note that they come out of the hit queue in backwards order.
@@ -348,9 +309,9 @@ public class DefaultQueryProcessor extends QueryProcessor
     }
 
     // Calculate the document score normalization factor.
-    docScoreNorm = 1.0f;
-    if (req.normalizeScores && maxDocScore > 0.0f)
-      docScoreNorm = 1.0f / maxDocScore;
+    ctx.docScoreNorm = 1.0f;
+    if (req.normalizeScores && ctx.maxDocScore > 0.0f)
+      ctx.docScoreNorm = 1.0f / ctx.maxDocScore;
 
     // We'll need a query weight if we're being asked to explain the
     // scores.
@@ -360,26 +321,17 @@ public class DefaultQueryProcessor extends QueryProcessor
       weight = finalQuery.weight(searcher);
 
     // Finish off the hits (read in the fields, normalize, make snippets).
-    SnippetMaker snippetMaker = new SnippetMaker(limReader,
-                                                 docNumMap,
-                                                 stopSet,
-                                                 pluralMap,
-                                                 accentMap,
-                                                 tokFields,
-                                                 req.maxContext,
-                                                 req.termMode,
-                                                 req.returnMetaFields);
     for (int i = req.startDoc; i < nFound; i++) 
     {
       if (req.explainScores) {
         hitArray[i].finishWithExplain(snippetMaker,
-                                      docScoreNorm,
+                                      ctx.docScoreNorm,
                                       weight,
                                       boostSet,
                                       req.boostSetParams);
       }
       else
-        hitArray[i].finish(snippetMaker, docScoreNorm);
+        hitArray[i].finish(snippetMaker, ctx.docScoreNorm);
       if (result.textTerms == null)
         result.textTerms = hitArray[i].textTerms();
       hitVec.add(hitArray[i]);
@@ -394,6 +346,7 @@ public class DefaultQueryProcessor extends QueryProcessor
         finishGroup(result.facets[i].rootGroup,
                     snippetMaker,
                     req,
+                    ctx,
                     weight,
                     boostSet);
       } // for if
@@ -405,29 +358,266 @@ public class DefaultQueryProcessor extends QueryProcessor
     assert req.maxDocs < 0 || hitVec.size() <= req.maxDocs;
 
     // Pack up the results into a tidy array.
-    result.totalDocs = nDocsHit;
+    result.totalDocs = ctx.nDocsHit;
     result.startDoc = req.startDoc;
     result.endDoc = req.startDoc + hitVec.size();
     result.docHits = (DocHit[])hitVec.toArray(new DocHit[hitVec.size()]);
 
+    // If the complete result is going into the cache, where it will be
+    // shared, load all the hits and make their snippets now. Otherwise
+    // they're made lazily, as needed.
+    //
+    if (cacheKey != null && !resultCache.hitsOnly())
+      materializeHits(result);
+
     // Make spelling suggestions if applicable.
-    if (spellReader != null && req.spellcheckParams != null)
-      spellCheck(req, result, tokFields);
+    if (ctx.spellReader != null && req.spellcheckParams != null)
+      spellCheck(req, ctx, result);
+
+    // Save the results in case the same query comes along again.
+    if (cacheKey != null)
+      resultCache.put(cacheKey, ctx.xtfSearcher, result, ctx.maxDocScore);
 
     // All done.
     return result;
   } // processReq()
 
+  /**
+   * Decides whether a request needs only the number of hits and the max
+   * score, with no hits, snippets, or facets.
+   */
+  private static boolean isCountOnly(QueryRequest req) {
+    return req.maxDocs == 0 && req.facetSpecs == null && !req.explainScores;
+  }
+
+  /**
+   * Quick version of request processing, used when only the number of hits
+   * and the max score are needed. No spans are recorded and no hits are
+   * made, so there's no need to load stored fields or make snippets.
+   *
+   * @param req         The request to process
+   * @param ctx         Context for the request (receives the hit count and
+   *                    max score)
+   * @param limReader   Work-limited reader for the index
+   * @param finalQuery  The fully rewritten query
+   * @param result      Partially filled-in result to complete
+   * @return            The result (with no hits)
+   */
+  private QueryResult countHits(QueryRequest req, RequestContext ctx,
+                                IndexReader limReader, Query finalQuery,
+                                QueryResult result)
+    throws IOException 
+  {
+    RecordingSearcher searcher = new RecordingSearcher(limReader);
+    searcher.setRecordSpans(false);
+    HitCollector collector = new HitCollector(req,
+                                              ctx,
+                                              getBoostSet(req, ctx.indexReader),
+                                              null,
+                                              null);
+    search(searcher, finalQuery, collector, limReader.maxDoc(), req.docKey,
+           ctx);
+    searcher.close();
+
+    result.totalDocs = ctx.nDocsHit;
+    result.startDoc = req.startDoc;
+    result.endDoc = req.startDoc;
+    result.docHits = new DocHit[0];
+
+    // Make spelling suggestions if applicable.
+    if (ctx.spellReader != null && req.spellcheckParams != null)
+      spellCheck(req, ctx, result);
+    return result;
+  } // countHits()
+
+  /**
+   * Runs a query and collects the hits. If the index is large enough, the
+   * work is divided among several threads, each with its own collector, 
+   * and the results merged at the end.
+   *
+   * @param searcher    Searcher to run the query with
+   * @param finalQuery  The fully rewritten query
+   * @param collector   Receives the hits (and all the hits from any
+   *                    other threads.)
+   * @param maxDoc      Total number of chunks in the index
+   * @param docKey      If non-null, only the chunks of the document with
+   *                    this key are searched.
+   * @param ctx         Context for the request (receives the hit count and
+   *                    max score)
+   */
+  private void search(RecordingSearcher searcher, Query finalQuery,
+                      HitCollector collector, int maxDoc, String docKey,
+                      RequestContext ctx)
+    throws IOException 
+  {
+    // When searching within a single document, score only its chunks. If
+    // it was split into sub-documents, each has its own docInfo chunk after
+    // its text chunks, so we cover them all.
+    //
+    if (docKey != null) 
+    {
+      int[] range = findDoc(docKey, ctx);
+      if (range != null)
+        searcher.search(finalQuery, null, range[0], range[1], collector);
+      ctx.nDocsHit = collector.nDocsHit;
+      ctx.maxDocScore = collector.maxDocScore;
+      return;
+    }
+
+    int[] partStarts = (indexWarmer.searchPool() == null) ? null
+                       : partitionDocs(ctx.docNumMap, 
+                                       maxDoc,
+                                       indexWarmer.searchThreads(),
+                                       indexWarmer.minChunksPerThread());
+    if (partStarts == null)
+      searcher.search(finalQuery, null, collector);
+    else 
+    {
+      // Each partition gets its own queue and group counts. They're all
+      // merged together at the end.
+      //
+      HitCollector[] collectors = new HitCollector[partStarts.length];
+      collectors[0] = collector;
+      for (int i = 1; i < partStarts.length; i++)
+        collectors[i] = collector.emptyCopy();
+      searcher.search(finalQuery, null, partStarts, collectors, 
+                      indexWarmer.searchPool());
+      for (int i = 1; i < partStarts.length; i++)
+        collector.merge(collectors[i]);
+    }
+    ctx.nDocsHit = collector.nDocsHit;
+    ctx.maxDocScore = collector.maxDocScore;
+  } // search()
+
+  /**
+   * Locate the chunks of the document with the given key. Every chunk of a
+   * document carries its key, including the docInfo chunk of each of its
+   * sub-documents (if any), and they're all together in the index.
+   *
+   * @param docKey  Key of the document to find
+   * @param ctx     Context for the request
+   * @return        The first chunk and one past the last docInfo chunk, or
+   *                null if the document isn't in the index.
+   */
+  private static int[] findDoc(String docKey, RequestContext ctx)
+    throws IOException 
+  {
+    TermDocs termDocs = ctx.indexReader.termDocs(new Term("key", docKey));
+    try 
+    {
+      if (!termDocs.next())
+        return null;
+      int first = termDocs.doc();
+      int last = first;
+      while (termDocs.next())
+        last = termDocs.doc();
+
+      // The last chunk found should be the docInfo chunk of the last 
+      // sub-document, but check in case it's a text chunk.
+      //
+      if (ctx.docNumMap.getFirstChunk(last) < 0)
+        last = ctx.docNumMap.getDocNum(last);
+      int firstChunk = ctx.docNumMap.getFirstChunk(first);
+      if (firstChunk >= 0)
+        first = firstChunk;
+      if (last < first)
+        return null;
+      return new int[] { first, last + 1 };
+    }
+    finally {
+      termDocs.close();
+    }
+  } // findDoc()
+
+  /**
+   * Rewrites a query to match the way the index was built: tokenizing,
+   * normalizing, folding accents and plurals, bi-gramming stop words, and
+   * limiting slop. The result is cached, so a query that has been seen
+   * recently can skip the rewriters entirely.
+   *
+   * @param query   The query to rewrite (not modified)
+   * @param ctx     Context for the request
+   * @return        The rewritten query, or null if nothing is left.
+   */
+  private Query rewriteQuery(Query query, RequestContext ctx) 
+  {
+    // See if we've rewritten this query before.
+    CompiledQueryCache compiledQueries = ctx.xtfSearcher.compiledQueries();
+    String key = CompiledQueryCache.makeKey(query, ctx.tokFields, ctx.stopSet,
+                                            ctx.pluralMap, ctx.accentMap,
+                                            ctx.docNumMap, ctx.chunkOverlap);
+    if (key != null) {
+      Query cached = compiledQueries.get(key);
+      if (cached == CompiledQueryCache.NO_QUERY)
+        return null;
+      if (cached != null)
+        return cached;
+    }
+
+    // Nope. Do the rewriting, and remember the result.
+    Query rewritten = runRewriters(query, ctx);
+    if (key != null)
+      compiledQueries.put(key, rewritten);
+    return rewritten;
+  } // rewriteQuery()
+
+  /**
+   * Does the work of rewriting a query, without consulting the cache.
+   */
+  private Query runRewriters(Query query, RequestContext ctx) 
+  {
+    // Perform standard tokenization tasks: change words to lowercase,
+    // remove apostrophes, etc.
+    //
+    query = new StdTermRewriter(ctx.tokFields).rewriteQuery(query);
+    
+    // Normalize all Unicode encoding to normalized form C (NFC)
+    query = new UnicodeNormalizingRewriter(ctx.tokFields).rewriteQuery(query);
+
+    // If an accent map is present, remove diacritics.
+    if (ctx.accentMap != null)
+      query = new AccentFoldingRewriter(ctx.accentMap, ctx.tokFields).rewriteQuery(
+        query);
+
+    // If a plural map is present, change plural words to non-plural.
+    if (ctx.pluralMap != null)
+      query = new PluralFoldingRewriter(ctx.pluralMap, ctx.tokFields).rewriteQuery(
+        query);
+
+    // Rewrite the query for bigrams (if we have stop-words to deal with.)
+    if (ctx.stopSet != null)
+      query = new XtfBigramQueryRewriter(ctx.stopSet, ctx.chunkOverlap, 
+                                         ctx.tokFields).rewriteQuery(query);
+
+    // If there's nothing left (for instance if the query was all stop-words)
+    // then there will be no results.
+    //
+    if (query == null)
+      return null;
+
+    // Fix up all the "infinite" slop entries to be actually limited to
+    // the chunk overlap size. That way, we'll get consistent results and
+    // the user won't be able to tell where the chunk boundaries are. 
+    // Also, attach the docNumMap to every SpanDechunkingQuery.
+    //
+    return new SlopFixupRewriter(ctx.docNumMap,
+                                 ctx.stopSet,
+                                 ctx.pluralMap,
+                                 ctx.accentMap).rewriteQuery(query);
+  } // runRewriters()
+
   /**
    * Checks spelling of query terms, if spelling suggestion is enabled and
    * the result falls below the cutoff threshholds.
    *
    * @param req   Original query request
+   * @param ctx   Context of the original request (supplies the max doc
+   *              score, and the set of tokenized fields in case no field
+   *              list was specified in the query request.)
    * @param res   Results of the query
-   * @param tokFields  Set of tokenized fields (in case no field list was
-   *                   specified in the query request.)
    */
-  private void spellCheck(QueryRequest req, QueryResult res, Set tokFields)
+  private void spellCheck(QueryRequest req, RequestContext ctx,
+                          QueryResult res)
     throws IOException 
   {
     // We can use a handy reference to the spellcheck params, and to the
@@ -451,13 +641,13 @@ public class DefaultQueryProcessor extends QueryProcessor
     // Check the cutoffs. If the documents scored well, or there were
     // a lot of them, then suggestions aren't needed.
     //
-    if (params.docScoreCutoff > 0 && maxDocScore > params.docScoreCutoff)
+    if (params.docScoreCutoff > 0 && ctx.maxDocScore > params.docScoreCutoff)
       return;
     if (params.totalDocsCutoff > 0 && totalDocs > params.totalDocsCutoff)
       return;
 
     // Gather the query terms, grouped by field set.
-    Set spellFieldSet = params.fields != null ? params.fields : tokFields;
+    Set spellFieldSet = params.fields != null ? params.fields : ctx.tokFields;
     LinkedHashMap fieldsMap = gatherKeywords(req.query, spellFieldSet);
 
     // Make suggestions for each field set.
@@ -472,7 +662,7 @@ public class DefaultQueryProcessor extends QueryProcessor
       String[] terms = (String[])termsSet.toArray(new String[termsSet.size()]);
 
       // Get some suggestions
-      String[] suggested = spellReader.suggestKeywords(terms);
+      String[] suggested = ctx.spellReader.suggestKeywords(terms);
 
       // If no suggestions, skip these fields.
       if (suggested == null)
@@ -506,7 +696,7 @@ public class DefaultQueryProcessor extends QueryProcessor
       return;
 
     // Make sure the suggestions result in better results.
-    if (!spellingImprovesResults(req, res, spellFieldSet, out))
+    if (!spellingImprovesResults(req, ctx, res, spellFieldSet, out))
       return;
 
     // Record the final suggestions in an array.
@@ -520,6 +710,7 @@ public class DefaultQueryProcessor extends QueryProcessor
    * are more of them, and their max score is higher.
    *
    * @param origReq   Original query request
+   * @param origCtx   Context of the original request
    * @param origRes   Results of the original query
    * @param spellFieldSet  Set of fields to rewrite terms within
    * @param suggs     Map of terms to their suggested replacements
@@ -527,6 +718,7 @@ public class DefaultQueryProcessor extends QueryProcessor
    * @throws IOException
    */
   private boolean spellingImprovesResults(QueryRequest origReq,
+                                          RequestContext origCtx,
                                           QueryResult origRes,
                                           Set spellFieldSet, LinkedHashMap suggs)
     throws IOException 
@@ -537,13 +729,22 @@ public class DefaultQueryProcessor extends QueryProcessor
     QueryRequest newReq = (QueryRequest)origReq.clone();
     newReq.spellcheckParams = null;
 
-    // Before re-querying, save the max doc score.
-    float origMaxDocScore = maxDocScore;
-
-    // Now apply the spelling suggestions to the original query.
+    // We only need the count of hits and the max score, so skip making
+    // hits, snippets, and facets.
+    //
+    newReq.startDoc = 0;
+    newReq.maxDocs = 0;
+    newReq.facetSpecs = null;
+    newReq.explainScores = false;
+
+    // Now apply the spelling suggestions to the original query. The new
+    // request gets its own context (on the same searcher snapshot), so the
+    // original one is undisturbed.
+    //
     newReq.query = new SpellSuggRewriter(suggs, spellFieldSet).rewriteQuery(
       newReq.query);
-    QueryResult newRes = this.processRequest(newReq);
+    RequestContext newCtx = new RequestContext(origCtx.xtfSearcher);
+    QueryResult newRes = processRequest(newReq, newCtx);
 
     // If the new query returns nothing and the old query also returned
     // nothing, it's a semi-failure. There's no use suggesting the new
@@ -563,7 +764,7 @@ public class DefaultQueryProcessor extends QueryProcessor
     }
 
     // If the max doc score is lower, that's also a failure.
-    if (maxDocScore < origMaxDocScore) 
+    if (newCtx.maxDocScore < origCtx.maxDocScore) 
     {
       //System.out.print("Lower score: " + newReq.query.toString() + "... ");
       return false;
@@ -676,11 +877,13 @@ public class DefaultQueryProcessor extends QueryProcessor
    * creating the proper hit queue for each one.
    *
    * @param req       query request containing group specs
+   * @param ctx       context of the request
    * @param query     query to use to form dynamic groups
    * @param searcher  searcher for dynamic groups
    * @param boostSet  boost set for dynamic groups
    */
   private GroupCounts[] prepGroups(final QueryRequest req,
+                                   RequestContext ctx,
                                    final BoostSet boostSet,
                                    RecordingSearcher searcher, Query query)
     throws IOException 
@@ -693,11 +896,13 @@ public class DefaultQueryProcessor extends QueryProcessor
     {
       FacetSpec spec = req.facetSpecs[i];
       if (spec.field.startsWith("java:")) {
-        groupData[i] = createDynamicGroup(indexReader, spec.field);
+        groupData[i] = createDynamicGroup(ctx.indexReader, ctx.tokFields,
+                                          spec.field);
         dynamicGroupVec.add(groupData[i]);
       }
       else
-        groupData[i] = StaticGroupData.getCachedData(indexReader, spec.field);
+        groupData[i] = StaticGroupData.getCachedData(ctx.indexReader,
+                                                     spec.field);
     }
 
     // If there are dynamic groups, pre-scan the query and hand them the
@@ -732,9 +937,9 @@ public class DefaultQueryProcessor extends QueryProcessor
     GroupCounts[] groupCounts = new GroupCounts[req.facetSpecs.length];
     for (int i = 0; i < req.facetSpecs.length; i++) {
       FacetSpec spec = req.facetSpecs[i];
-      HitQueueMakerImpl maker = new HitQueueMakerImpl(indexReader,
+      HitQueueMakerImpl maker = new HitQueueMakerImpl(ctx.indexReader,
                                                       spec.sortDocsBy,
-                                                      isSparse);
+                                                      ctx.isSparse);
       groupCounts[i] = new GroupCounts(groupData[i], spec, maker);
     }
 
@@ -746,11 +951,13 @@ public class DefaultQueryProcessor extends QueryProcessor
    * Create a dynamic group based on a field specification.
    *
    * @param indexReader   Where to get the data from
+   * @param tokFields     Set of tokenized fields in the index
    * @param field         Special field name starting with "java:"
    * @return              Dynamic group data
    * @throws IOException
    */
-  private GroupData createDynamicGroup(IndexReader indexReader, String field)
+  private GroupData createDynamicGroup(IndexReader indexReader,
+                                       Set tokFields, String field)
     throws IOException 
   {
     // Parse out the class name and parameters
@@ -801,11 +1008,13 @@ public class DefaultQueryProcessor extends QueryProcessor
    * @param snippetMaker  Used to make snippets for any DocHits inside the
    *                      group.
    * @param req           Determines whether to finish with 'explain' or not
+   * @param ctx           Supplies the score normalization factor
    * @param weight        Used for score explanations
    * @param boostSet      Used for score explanations
    */
   private void finishGroup(ResultGroup group, SnippetMaker snippetMaker,
-                           QueryRequest req, Weight weight, BoostSet boostSet)
+                           QueryRequest req, RequestContext ctx,
+                           Weight weight, BoostSet boostSet)
     throws IOException 
   {
     // Finish DocHits for this group
@@ -816,23 +1025,122 @@ public class DefaultQueryProcessor extends QueryProcessor
         DocHitImpl hit = (DocHitImpl)group.docHits[k];
         if (req.explainScores) {
           hit.finishWithExplain(snippetMaker,
-                                docScoreNorm,
+                                ctx.docScoreNorm,
                                 weight,
                                 boostSet,
                                 req.boostSetParams);
         }
         else
-          hit.finish(snippetMaker, docScoreNorm);
+          hit.finish(snippetMaker, ctx.docScoreNorm);
       } // for k
     }
 
     // Now finish all the descendants.
     if (group.subGroups != null) {
       for (int j = 0; j < group.subGroups.length; j++)
-        finishGroup(group.subGroups[j], snippetMaker, req, weight, boostSet);
+        finishGroup(group.subGroups[j], snippetMaker, req, ctx, weight, boostSet);
     }
   } // finishGroup()
 
+  /**
+   * Loads the fields and makes the snippets for every hit in a result, both
+   * in the main list and in the facet groups. Each document is only loaded
+   * once, even if it appears in several places. If a snippet pool is
+   * available, the documents are divided among its threads.
+   *
+   * @param result    Result containing finished hits
+   * @throws IOException  If a document couldn't be read
+   */
+  private void materializeHits(QueryResult result)
+    throws IOException 
+  {
+    // Gather the distinct hits, and pick one to load for each document.
+    IdentityHashMap<DocHitImpl, DocHitImpl> allHits =
+      new IdentityHashMap<DocHitImpl, DocHitImpl>();
+    QueryResultCache.collectHits(result, allHits);
+    HashMap<Integer, DocHitImpl> byDoc = new HashMap<Integer, DocHitImpl>();
+    for (DocHitImpl hit : allHits.keySet()) {
+      if (!byDoc.containsKey(hit.doc))
+        byDoc.put(hit.doc, hit);
+    }
+    final DocHitImpl[] toLoad =
+      byDoc.values().toArray(new DocHitImpl[byDoc.size()]);
+
+    // Divide the documents among the threads (this one included.)
+    ExecutorService pool = indexWarmer.snippetPool();
+    final int nParts = (pool == null) ? 1
+                       : Math.min(indexWarmer.snippetThreads(), toLoad.length);
+    FutureTask[] tasks = new FutureTask[nParts];
+    for (int i = 1; i < nParts; i++)
+    {
+      final int part = i;
+      tasks[i] = new FutureTask(new Callable()
+      {
+        public Object call() {
+          for (int j = part; j < toLoad.length; j += nParts)
+            toLoad[j].materialize();
+          return null;
+        }
+      });
+      pool.execute(tasks[i]);
+    }
+
+    Throwable error = null;
+    try {
+      for (int j = 0; j < toLoad.length; j += nParts)
+        toLoad[j].materialize();
+    }
+    catch (Throwable t) {
+      error = t;
+    }
+
+    // Wait for the other threads, even if this one failed, since they're
+    // still using the index.
+    //
+    for (int i = 1; i < nParts; i++)
+    {
+      while (true)
+      {
+        try {
+          tasks[i].get();
+        }
+        catch (InterruptedException e) {
+          continue;
+        }
+        catch (ExecutionException e) {
+          if (error == null)
+            error = e.getCause();
+        }
+        break;
+      }
+    }
+
+    // Pass on the first error encountered, if any. A document that couldn't
+    // be read is reported as the IOException that caused it.
+    //
+    if (error instanceof HitLoadException &&
+        error.getCause() instanceof IOException)
+      throw (IOException)error.getCause();
+    if (error instanceof IOException)
+      throw (IOException)error;
+    if (error instanceof RuntimeException)
+      throw (RuntimeException)error;
+    if (error instanceof Error)
+      throw (Error)error;
+    if (error != null) {
+      IOException e = new IOException("Error loading hits: " + error);
+      e.initCause(error);
+      throw e;
+    }
+
+    // Hand the loaded data to any other hits on the same documents.
+    for (DocHitImpl hit : allHits.keySet()) {
+      DocHitImpl loaded = byDoc.get(hit.doc);
+      if (loaded != hit)
+        hit.shareLoaded(loaded);
+    }
+  } // materializeHits()
+
   /**
    * QueryProcessor maintains a static cache of Lucene searchers, one for
    * each index directory. If data is changed, normally it's not recognized
@@ -845,6 +1153,61 @@ public class DefaultQueryProcessor extends QueryProcessor
     searchers.clear();
   } // resetCache()
 
+  /**
+   * Divide the documents of an index into partitions for a parallel search.
+   * Each boundary falls just after a docInfo chunk, so that all the chunks
+   * of a document (and hence all its hits) are in the same partition.
+   *
+   * @param docNumMap   Maps chunks to documents
+   * @param maxDoc      Total number of chunks in the index
+   * @param maxParts    Max number of partitions to make
+   * @param minChunks   Minimum number of chunks per partition
+   * @return            First chunk of each partition, or null if the index
+   *                    isn't large enough to be worth dividing.
+   */
+  private static int[] partitionDocs(DocNumMap docNumMap, int maxDoc,
+                                     int maxParts, int minChunks) 
+  {
+    int nParts = Math.min(maxParts, maxDoc / minChunks);
+    if (nParts < 2)
+      return null;
+
+    int[] starts = new int[nParts];
+    int n = 1;
+    for (int i = 1; i < nParts; i++) 
+    {
+      int doc = docNumMap.getDocNum((int)((long)maxDoc * i / nParts));
+      if (doc < 0 || doc + 1 >= maxDoc)
+        break;
+      if (doc + 1 > starts[n - 1])
+        starts[n++] = doc + 1;
+    }
+
+    if (n < 2)
+      return null;
+    if (n < nParts) {
+      int[] trimmed = new int[n];
+      System.arraycopy(starts, 0, trimmed, 0, n);
+      starts = trimmed;
+    }
+    return starts;
+  } // partitionDocs()
+
+  /**
+   * If the request specifies a boost set, get it.
+   *
+   * @return  The boost set, or null if none.
+   */
+  private static BoostSet getBoostSet(QueryRequest req, IndexReader reader)
+    throws IOException 
+  {
+    if (req.boostSetParams == null)
+      return null;
+    return BoostSet.getCachedSet(reader,
+                                 new File(req.boostSetParams.path),
+                                 req.boostSetParams.field);
+  } // getBoostSet()
+
   /**
    * If a boost set was specified, boost the given document's score according to the
    * set.
@@ -1018,6 +1381,181 @@ public class DefaultQueryProcessor extends QueryProcessor
     return ret;
   } // createHitQueue()
 
+  /**
+   * Holds all the state for a single request, so that many requests can be
+   * processed at once by the same query processor.
+   */
+  private static class RequestContext 
+  {
+    /** Searcher snapshot the request runs against */
+    XtfSearcher xtfSearcher;
+
+    /** Lucene reader from which to read index data */
+    IndexReader indexReader;
+
+    /** Fetches spelling suggestions */
+    SpellReader spellReader;
+
+    /** Keeps track of which chunks belong to which documents */
+    DocNumMap docNumMap;
+
+    /** Max size of a chunk (in words) */
+    int chunkSize;
+
+    /** Number of words a chunk shares with its successor */
+    int chunkOverlap;
+
+    /** Stop-words to remove (e.g. "the", "a", "and", etc.) */
+    Set stopSet;
+
+    /** Mapping of plural words to singular words */
+    WordMap pluralMap;
+
+    /** Mapping of accented chars to chars without diacritics */
+    CharMap accentMap;
+
+    /** Whether the index is "sparse" (i.e. more than 5 chunks per doc) */
+    boolean isSparse;
+
+    /** Names of fields that are tokenized in this index */
+    Set tokFields;
+
+    /** Total number of documents hit (not just those that scored high) */
+    int nDocsHit;
+
+    /** Maximum document score (used to normalize scores) */
+    float maxDocScore;
+
+    /** Document normalization factor (calculated from {@link #maxDocScore}) */
+    float docScoreNorm;
+
+    /** Set up a context that will use the given (acquired) searcher */
+    RequestContext(XtfSearcher xtfSearcher) 
+    {
+      this.xtfSearcher = xtfSearcher;
+      indexReader = xtfSearcher.indexReader();
+      docNumMap = xtfSearcher.docNumMap();
+      chunkSize = xtfSearcher.chunkSize();
+      chunkOverlap = xtfSearcher.chunkOverlap();
+      stopSet = xtfSearcher.stopSet();
+      pluralMap = xtfSearcher.pluralMap();
+      accentMap = xtfSearcher.accentMap();
+      spellReader = xtfSearcher.spellReader();
+      isSparse = xtfSearcher.isSparse();
+      tokFields = xtfSearcher.tokenizedFields();
+    }
+  } // class RequestContext
+
+  /**
+   * Collects the hits for a request (or for one partition of the index, in
+   * a parallel search) into a hit queue and group counts.
+   */
+  private class HitCollector extends SpanHitCollector 
+  {
+    private QueryRequest req;
+    private RequestContext ctx;
+    private BoostSet boostSet;
+    private PriorityQueue docHitQueue;
+    private GroupCounts[] groupCounts;
+
+    /**
+     * We want to lazily generate DocHits, and only generate a DocHit once
+     * even if it's added to multiple groups.
+     */
+    private DocHitMakerImpl docHitMaker = new DocHitMakerImpl();
+
+    /** Number of documents hit (not just those that scored high) */
+    int nDocsHit = 0;
+
+    /** Maximum document score */
+    float maxDocScore = 0.0f;
+
+    /**
+     * Make a collector.
+     *
+     * @param req           Request being processed
+     * @param ctx           Context for the request
+     * @param boostSet      Boost set to apply, or null for none
+     * @param docHitQueue   Queue to add hits to, or null to only count them
+     * @param groupCounts   Group counts to add hits to, or null for none
+     */
+    HitCollector(QueryRequest req, RequestContext ctx, BoostSet boostSet, 
+                 PriorityQueue docHitQueue, GroupCounts[] groupCounts) 
+    {
+      this.req = req;
+      this.ctx = ctx;
+      this.boostSet = boostSet;
+      this.docHitQueue = docHitQueue;
+      this.groupCounts = groupCounts;
+    }
+
+    /**
+     * Make a collector with the same parameters but its own (empty) queue
+     * and group counts, for another partition of a parallel search.
+     */
+    HitCollector emptyCopy() 
+      throws IOException 
+    {
+      PriorityQueue queue = null;
+      if (docHitQueue != null) {
+        queue = createHitQueue(ctx.indexReader, 
+                               req.startDoc + req.maxDocs,
+                               req.sortMetaFields,
+                               ctx.isSparse);
+      }
+
+      GroupCounts[] counts = null;
+      if (groupCounts != null) {
+        counts = new GroupCounts[groupCounts.length];
+        for (int i = 0; i < groupCounts.length; i++)
+          counts[i] = groupCounts[i].emptyCopy();
+      }
+
+      return new HitCollector(req, ctx, boostSet, queue, counts);
+    } // emptyCopy()
+
+    public void collect(int doc, float score, FieldSpanSource spanSource) 
+    {
+      // Apply a boost (if there's a boost set)
+      score = applyBoost(doc, score, boostSet, req);
+
+      // Ignore deleted entries, and entries boosted down to zero.
+      if (score <= 0.0f)
+        return;
+
+      // Bump the count of documents hit, and update the max score.
+      nDocsHit++;
+      if (score > maxDocScore)
+        maxDocScore = score;
+
+      // Record the hit.
+      docHitMaker.reset(doc, score, spanSource);
+      if (docHitQueue != null && req.maxDocs > 0)
+        docHitMaker.insertInto(docHitQueue);
+
+      // If grouping is enabled, add this document to the counts.
+      if (groupCounts != null) {
+        for (int i = 0; i < groupCounts.length; i++)
+          groupCounts[i].addDoc(docHitMaker);
+      }
+    } // collect()
+
+    /** Add in the hits from another partition of a parallel search. */
+    void merge(HitCollector other) 
+    {
+      nDocsHit += other.nDocsHit;
+      maxDocScore = Math.max(maxDocScore, other.maxDocScore);
+      if (docHitQueue != null) {
+        while (other.docHitQueue.size() > 0)
+          docHitQueue.insert(other.docHitQueue.pop());
+      }
+      if (groupCounts != null) {
+        for (int i = 0; i < groupCounts.length; i++)
+          groupCounts[i].merge(other.groupCounts[i]);
+      }
+    } // merge()
+  } // class HitCollector
+
   private static class DocHitMakerImpl implements GroupCounts.DocHitMaker 
   {
     private int doc;
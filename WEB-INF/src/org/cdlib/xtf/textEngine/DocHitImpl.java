@@ -30,6 +30,7 @@ package org.cdlib.xtf.textEngine;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import org.apache.lucene.document.DateTools;
@@ -39,6 +40,7 @@ import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.FieldSpanSource;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.spans.FieldSpans;
+import org.cdlib.xtf.util.Attrib;
 import org.cdlib.xtf.util.AttribList;
 
 /**
@@ -179,6 +181,70 @@ public class DocHitImpl extends DocHit
     }
   } // finishWithExplain()
 
+  /**
+   * Makes an unfinished copy of this hit, sharing its spans but none of the
+   * loaded fields or snippets. The copy can then be finished with a
+   * different snippet maker.
+   */
+  DocHitImpl copyUnfinished()
+  {
+    DocHitImpl copy = new DocHitImpl(doc, score);
+    copy.fieldSpans = fieldSpans;
+    return copy;
+  } // copyUnfinished()
+
+  /**
+   * Loads all the fields and snippet text for this hit now, rather than
+   * waiting for them to be requested. Afterward the hit no longer
+   * changes, so it may safely be shared by several threads.
+   */
+  void materialize()
+  {
+    if (docKey == null)
+      load();
+    int nSnippets = nSnippets();
+    for (int i = 0; i < nSnippets; i++)
+      snippet(i, true);
+  } // materialize()
+
+  /**
+   * Takes on the fields and snippets already loaded by another hit on the
+   * same document (e.g. the same document appearing both in the main hit
+   * list and in a facet group), rather than loading them all over again.
+   */
+  void shareLoaded(DocHitImpl other)
+  {
+    assert other.doc == doc;
+    fieldSpans = other.fieldSpans;
+    snippets = other.snippets;
+    docKey = other.docKey;
+    fileDate = other.fileDate;
+    recordNum = other.recordNum;
+    subDocument = other.subDocument;
+    chunkCount = other.chunkCount;
+    metaData = other.metaData;
+  } // shareLoaded()
+
+  /**
+   * Gives a rough estimate of the number of bytes of memory this hit
+   * occupies (used to size caches.)
+   */
+  long estimateSize()
+  {
+    long size = 64;
+    if (fieldSpans != null)
+      size += 48 * fieldSpans.getSpanCount("text");
+    if (metaData != null) {
+      for (Iterator iter = metaData.iterator(); iter.hasNext();)
+        size += 32 + ((Attrib)iter.next()).value.length() * 2;
+    }
+    if (snippets != null) {
+      for (int i = 0; i < snippets.length; i++)
+        size += 48 + (snippets[i].text == null ? 0 : snippets[i].text.length() * 2);
+    }
+    return size;
+  } // estimateSize()
+
   /**
    * Read in the document info chunk and record the path, date, etc. that
    * we find there.
@@ -189,7 +255,7 @@ public class DocHitImpl extends DocHit
     Document docContents;
     try {
       assert !snippetMaker.reader.isDeleted(doc);
-      docContents = snippetMaker.reader.document(doc);
+      docContents = snippetMaker.loadDocInfo(doc);
     }
     catch (IOException e) {
       throw new HitLoadException(e);
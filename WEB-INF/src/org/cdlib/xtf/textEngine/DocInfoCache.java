@@ -0,0 +1,240 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.SetBasedFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Caches the stored fields of recently returned documents, so that popular
+ * documents which show up in request after request needn't be read from
+ * the index each time. Entries are keyed on the index version, document
+ * number, and the set of fields loaded. They are discarded when a new index
+ * is rotated in, or when the total size of the cache exceeds its limit.<br>
+ *
+ * Only the raw stored values are kept; marking up search terms within them
+ * is still done for each request, since it depends on the query.
+ *
+ * @author Martin Haye
+ */
+public class DocInfoCache 
+{
+  /** Max total estimated size of all entries, in bytes */
+  private long maxBytes;
+
+  /** Current total estimated size of all entries, in bytes */
+  private long curBytes = 0;
+
+  /** The entries, kept in least-recently-used order */
+  private LinkedHashMap<String, Entry> entries = 
+    new LinkedHashMap<String, Entry>(1000, 0.75f, true);
+
+  /** Number of successful lookups */
+  private long nHits = 0;
+
+  /** Number of unsuccessful lookups */
+  private long nMisses = 0;
+
+  /** Number of entries removed to stay under the size limit */
+  private long nEvictions = 0;
+
+  /**
+   * Fields XTF itself needs from every document info record, regardless of
+   * which meta-data fields were requested.
+   */
+  private static final String[] specialFields = {
+    "key", "fileDate", "chunkCount", "recordNum", "subDocument"
+  };
+
+  /**
+   * Construct a cache.
+   *
+   * @param maxBytes    Limit on the estimated size (in bytes) of all the
+   *                    entries in the cache.
+   */
+  public DocInfoCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Make a selector that loads just the special XTF fields plus the given
+   * meta-data fields.
+   *
+   * @param returnMetaFields  Meta-data fields to load, or null for all.
+   * @return                  The selector, or null to load all fields.
+   */
+  public static FieldSelector makeSelector(Set returnMetaFields) 
+  {
+    if (returnMetaFields == null)
+      return null;
+    Set toLoad = new HashSet(returnMetaFields);
+    for (int i = 0; i < specialFields.length; i++)
+      toLoad.add(specialFields[i]);
+    return new SetBasedFieldSelector(toLoad, new HashSet());
+  } // makeSelector()
+
+  /**
+   * Forms a string identifying a set of meta-data fields to load, for use
+   * in cache keys.
+   *
+   * @param returnMetaFields  Meta-data fields to load, or null for all.
+   */
+  public static String fieldsKey(Set returnMetaFields) 
+  {
+    if (returnMetaFields == null)
+      return "*";
+    return new TreeSet(returnMetaFields).toString();
+  } // fieldsKey()
+
+  /**
+   * Read the stored fields of a document, from the cache if possible.
+   *
+   * @param searcher    Searcher (and hence index version) to read from
+   * @param reader      Reader to use if the document isn't cached
+   * @param doc         Document to read
+   * @param selector    Fields to read (null for all)
+   * @param fieldsKey   Key formed by {@link #fieldsKey(Set)} for the same
+   *                    fields as the selector.
+   * @return            The document (which must not be modified, since it
+   *                    may be shared with other threads.)
+   */
+  public Document load(XtfSearcher searcher, IndexReader reader, int doc,
+                       FieldSelector selector, String fieldsKey)
+    throws IOException 
+  {
+    String key = searcher.indexPath() + "|version=" + searcher.version() +
+                 "|doc=" + doc + "|fields=" + fieldsKey;
+
+    // Try the cache first.
+    synchronized (this) 
+    {
+      Entry ent = entries.get(key);
+      if (ent != null && ent.searcher != searcher) {
+        remove(key);
+        ent = null;
+      }
+      if (ent != null) {
+        ++nHits;
+        return ent.doc;
+      }
+      ++nMisses;
+    }
+
+    // Not found; do the expensive work outside the lock.
+    Entry ent = new Entry();
+    ent.searcher = searcher;
+    ent.doc = (selector == null) ? reader.document(doc)
+              : reader.document(doc, selector);
+    ent.size = 100 + key.length() * 2;
+    for (Field f : (List<Field>)ent.doc.getFields()) {
+      String value = f.stringValue();
+      ent.size += 48 + (value == null ? 0 : value.length() * 2);
+    }
+
+    // Entries bigger than the whole cache aren't worth keeping.
+    if (ent.size > maxBytes)
+      return ent.doc;
+
+    synchronized (this) 
+    {
+      remove(key);
+      entries.put(key, ent);
+      curBytes += ent.size;
+
+      // Discard the least-recently-used entries until we're under the limit.
+      Iterator<Entry> iter = entries.values().iterator();
+      while (curBytes > maxBytes && iter.hasNext()) {
+        Entry old = iter.next();
+        iter.remove();
+        curBytes -= old.size;
+        ++nEvictions;
+      }
+    }
+    return ent.doc;
+  } // load()
+
+  /**
+   * Discard all entries made by the given searcher. Called when a new
+   * index is rotated in.
+   */
+  public synchronized void invalidate(XtfSearcher searcher) 
+  {
+    int nRemoved = 0;
+    for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext();) {
+      Entry ent = iter.next();
+      if (ent.searcher == searcher) {
+        iter.remove();
+        curBytes -= ent.size;
+        ++nRemoved;
+      }
+    }
+
+    if (nRemoved > 0)
+      Trace.info("Document cache: discarded " + nRemoved + " entries. " + this);
+  } // invalidate()
+
+  /** Remove an entry, if present */
+  private void remove(String key) {
+    Entry old = entries.remove(key);
+    if (old != null)
+      curBytes -= old.size;
+  }
+
+  /** Summarizes the cache statistics */
+  public synchronized String toString() {
+    return "entries=" + entries.size() + ", bytes=" + curBytes + 
+           ", hits=" + nHits + ", misses=" + nMisses + 
+           ", evictions=" + nEvictions;
+  }
+
+  /** A single cached document */
+  private static class Entry 
+  {
+    /** Searcher that read the document */
+    XtfSearcher searcher;
+
+    /** The stored fields of the document */
+    Document doc;
+
+    /** Estimated size of the entry, in bytes */
+    long size;
+  } // class Entry
+} // class DocInfoCache
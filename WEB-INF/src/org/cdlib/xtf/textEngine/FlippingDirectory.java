@@ -63,6 +63,12 @@ public class FlippingDirectory extends Directory
   {
     wrapped = other;
   }
+  
+  /** Get the directory currently being wrapped */
+  public Directory wrapped()
+  {
+    return wrapped;
+  }
 
   /////////////////////////////////////////////////////////////////////////////
   // Delegated methods
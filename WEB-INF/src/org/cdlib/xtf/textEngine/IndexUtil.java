@@ -32,6 +32,10 @@ package org.cdlib.xtf.textEngine;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -48,6 +52,9 @@ import javax.xml.transform.sax.SAXTransformerFactory;
 import net.sf.saxon.Filter;
 import net.sf.saxon.value.StringValue;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.cdlib.xtf.saxonExt.sql.SQLConnect;
 import org.cdlib.xtf.textIndexer.CrimsonBugWorkaround;
 import org.cdlib.xtf.textIndexer.IndexInfo;
@@ -56,6 +63,7 @@ import org.cdlib.xtf.util.Attrib;
 import org.cdlib.xtf.util.AttribList;
 import org.cdlib.xtf.util.DocTypeDeclRemover;
 import org.cdlib.xtf.util.Path;
+import org.cdlib.xtf.util.Trace;
 import org.cdlib.xtf.util.XTFSaxonErrorListener;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -506,4 +514,100 @@ public class IndexUtil
     //
     SQLConnect.closeThreadConnections();
   } // applyPreFilter()
+
+  /**
+   * Figure out the file-system directory behind a Lucene directory, looking
+   * through any wrappers. This is the directory actually being read, which
+   * after an index rotation may differ from the configured index path.
+   *
+   * @param dir   The Lucene directory
+   * @return      The file-system directory, or null if it isn't file-based.
+   */
+  public static File indexDir(Directory dir) 
+  {
+    while (true) 
+    {
+      if (dir instanceof FlippingDirectory)
+        dir = ((FlippingDirectory)dir).wrapped();
+      else if (dir instanceof MappedFSDirectory)
+        dir = ((MappedFSDirectory)dir).wrapped();
+      else if (dir instanceof FSDirectory)
+        return ((FSDirectory)dir).getFile();
+      else
+        return null;
+    }
+  } // indexDir()
+
+  /**
+   * Memory-map a table written by the indexer alongside an index (such as
+   * a facet or sort table), and check its header. Where mapping isn't
+   * supported (see {@link MappedFSDirectory#isSupported()}) the table is
+   * read into memory instead. Every such table starts
+   * with a magic number (int), format version (int), the index version it
+   * was built from (long), and the maxDoc() of that index (int).
+   *
+   * @param file        The table file
+   * @param kind        Kind of table, for messages (e.g. "facet")
+   * @param magic       Expected magic number
+   * @param format      Expected format version
+   * @param headerSize  Size of the table's full header
+   * @param reader      Reader the table will be used with
+   * @return            The mapped table, or null if it doesn't exist, isn't
+   *                    recognized, or was built from a different version 
+   *                    of the index.
+   */
+  public static ByteBuffer mapTable(File file, String kind, int magic,
+                                    int format, int headerSize,
+                                    IndexReader reader)
+    throws IOException 
+  {
+    if (!file.canRead()) {
+      Trace.debug("No " + kind + " table " + file);
+      return null;
+    }
+
+    ByteBuffer buf;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (MappedFSDirectory.isSupported())
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      else {
+        byte[] bytes = new byte[(int)channel.size()];
+        raf.readFully(bytes);
+        buf = ByteBuffer.wrap(bytes);
+      }
+    }
+    finally {
+      // The mapping remains valid after the file is closed.
+      raf.close();
+    }
+
+    // Check the header, and make sure it matches this index.
+    if (buf.capacity() < headerSize ||
+        buf.getInt(0) != magic ||
+        buf.getInt(4) != format) 
+    {
+      Trace.warning("Ignoring unrecognized " + kind + " table " + file);
+      return null;
+    }
+    if (buf.getLong(8) != reader.getVersion() ||
+        buf.getInt(16) != reader.maxDoc()) 
+    {
+      Trace.debug("Ignoring out-of-date " + kind + " table " + file);
+      return null;
+    }
+
+    return buf;
+  } // mapTable()
+
+  /** Make an IntBuffer view of part of a byte buffer */
+  public static IntBuffer intSlice(ByteBuffer buf, int pos, int count) 
+  {
+    buf.limit(pos + (count * 4));
+    buf.position(pos);
+    IntBuffer ret = buf.slice().asIntBuffer();
+    buf.limit(buf.capacity());
+    return ret;
+  } // intSlice()
 } // class FileCalc
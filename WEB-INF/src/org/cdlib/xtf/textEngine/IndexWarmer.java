@@ -31,25 +31,51 @@ package org.cdlib.xtf.textEngine;
  */
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.Trace;
 
 /**
  * Handles background warming of new (or changed) indexes, so that servlets can
  * continue serving using their existing index, and switch quickly to the new
- * one when it is ready.
+ * one when it is ready.<br>
+ *
+ * Searchers are handed out as reference-counted snapshots: each caller of
+ * {@link #acquireSearcher(String)} must call {@link XtfSearcher#release()}
+ * when done. When a new index is flipped in, the old searcher is closed
+ * only after the last request using it has released it.
  *
  * @author Martin Haye
  */
 public class IndexWarmer
 {
   private String xtfHome;
-  private HashMap<String, Entry> entries  = new HashMap();
+  private Map<String, Entry> entries  = new ConcurrentHashMap();
   private BgThread bgThread;
   private int updateInterval;
+  private QueryResultCache resultCache;
+  private QueryResultCache docResultCache;
+  private DocInfoCache docCache;
+  private ExecutorService searchPool;
+  private int searchThreads;
+  private int minChunksPerThread;
+  private ExecutorService snippetPool;
+  private int snippetThreads;
+  private boolean memoryMap;
+  private volatile boolean closed = false;
+  
+  /** 
+   * Max number of times to retry acquiring a searcher that was retired 
+   * between fetching and acquiring it.
+   */
+  private static final int MAX_ACQUIRE_TRIES = 10;
   
   /**
    * Construct the warmer and start up the background warming thread.
@@ -73,56 +99,241 @@ public class IndexWarmer
     }
   }
   
-  /** Shuts down the background thread, if it's running. */
+  /**
+   * Attach a cache for query results. Entries made with a given searcher
+   * will be discarded when that searcher is retired.
+   */
+  public void setResultCache(QueryResultCache cache) {
+    resultCache = cache;
+  }
+  
+  /** Get the cache for query results, or null if none. */
+  public QueryResultCache resultCache() {
+    return resultCache;
+  }
+  
+  /**
+   * Attach a cache for the results of searches within a single document
+   * (see {@link QueryRequest#docKey}). Entries made with a given searcher
+   * will be discarded when that searcher is retired.
+   */
+  public void setDocResultCache(QueryResultCache cache) {
+    docResultCache = cache;
+  }
+  
+  /** Get the cache for single-document search results, or null if none. */
+  public QueryResultCache docResultCache() {
+    return docResultCache;
+  }
+  
+  /**
+   * Attach a cache for the stored fields of document hits. Entries made
+   * with a given searcher will be discarded when that searcher is retired.
+   */
+  public void setDocCache(DocInfoCache cache) {
+    docCache = cache;
+  }
+  
+  /** Get the cache for document stored fields, or null if none. */
+  public DocInfoCache docCache() {
+    return docCache;
+  }
+  
+  /**
+   * Enable parallel searching, in which the documents of a large index are
+   * divided into partitions that are searched by separate threads.
+   * 
+   * @param nThreads    Max number of threads to use for a single query
+   *                    (0 or 1 disables parallel searching.)
+   * @param minChunks   Don't give any thread fewer than this number of
+   *                    chunks to search.
+   */
+  public void setParallelSearch(int nThreads, int minChunks)
+  {
+    if (nThreads < 2)
+      return;
+    searchThreads = nThreads;
+    minChunksPerThread = Math.max(1, minChunks);
+    searchPool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() 
+    {
+      private int count = 0;
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "XTF search " + (++count));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+  
+  /** Get the pool for parallel searching, or null if disabled. */
+  public ExecutorService searchPool() {
+    return searchPool;
+  }
+  
+  /** Max number of threads to use for a single query */
+  public int searchThreads() {
+    return searchThreads;
+  }
+  
+  /** Minimum number of chunks to give each search thread */
+  public int minChunksPerThread() {
+    return minChunksPerThread;
+  }
+  
+  /**
+   * Enable parallel snippet making, in which the hits of a result bound for
+   * the cache are loaded by several threads. These are kept separate from
+   * the search threads, so snippets never hold up other queries' searches.
+   * 
+   * @param nThreads    Max number of threads to use for a single result
+   *                    (0 or 1 makes snippets in the request thread.)
+   */
+  public void setParallelSnippets(int nThreads)
+  {
+    if (nThreads < 2)
+      return;
+    snippetThreads = nThreads;
+    snippetPool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() 
+    {
+      private int count = 0;
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "XTF snippets " + (++count));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+  
+  /** Get the pool for parallel snippet making, or null if disabled. */
+  public ExecutorService snippetPool() {
+    return snippetPool;
+  }
+  
+  /** Max number of threads to use for the snippets of a single result */
+  public int snippetThreads() {
+    return snippetThreads;
+  }
+  
+  /**
+   * Controls whether index files are memory-mapped rather than read through
+   * buffered file I/O. Applies to indexes opened from now on.
+   */
+  public void setMemoryMap(boolean flag) {
+    if (flag && !MappedFSDirectory.isSupported()) {
+      Trace.warning("Memory-mapped indexes aren't supported on this " +
+                    "platform; using buffered file I/O instead.");
+      flag = false;
+    }
+    memoryMap = flag;
+  }
+  
+  /** Open the Lucene directory for an index, mapped if so configured. */
+  private Directory openDirectory(File path) throws IOException
+  {
+    FSDirectory dir = NativeFSDirectory.getDirectory(path);
+    return memoryMap ? new MappedFSDirectory(dir) : dir;
+  }
+  
+  /** 
+   * Shuts down the background thread and thread pools, if running. After
+   * this, {@link #acquireSearcher(String)} fails.
+   */
   public void close()
   {
+    closed = true;
+    
     if (bgThread != null)
     {
       bgThread.shouldStop = true;
       bgThread.interrupt();
     }
     
-    // Close all open indexes.
-    for (Entry e : entries.values()) 
+    if (searchPool != null)
+      searchPool.shutdown();
+    if (snippetPool != null)
+      snippetPool.shutdown();
+    
+    // Release all open indexes. Any that are still in use will be closed
+    // when their last user releases them.
+    //
+    synchronized (this)
     {
-      if (e.curSearcher != null) {
-        try {
-          e.curSearcher.close();
-        } catch (IOException e1) {
-          // ignore close problems
+      for (Entry e : entries.values()) 
+      {
+        if (e.curSearcher != null) {
+          try {
+            e.curSearcher.release();
+          } catch (IOException e1) {
+            // ignore close problems
+          }
+          e.curSearcher = null;
         }
-      }
-      if (e.newSearcher != null) {
-        try {
-          e.curSearcher.close();
-        } catch (IOException e1) {
-          // ignore close problems
+        if (e.newSearcher != null) {
+          try {
+            e.newSearcher.release();
+          } catch (IOException e1) {
+            // ignore close problems
+          }
+          e.newSearcher = null;
         }
       }
+      entries.clear();
     }
   }
   
   /**
    * Get a searcher for the given index path. If there isn't one already,
    * we create one in the foreground (we don't return til it's ready).
+   * The searcher returned has been acquired on behalf of the caller, who
+   * must call {@link XtfSearcher#release()} when finished with it.
    */
-  public synchronized XtfSearcher getSearcher(String indexPath) 
+  public XtfSearcher acquireSearcher(String indexPath) 
     throws IOException
   {
     indexPath = Path.resolveRelOrAbs(xtfHome, indexPath);
-    Entry ent = entries.get(indexPath);
 
     // If this is the background warmer thread, this must be a request as part
     // of validation so use the new searcher.
     //
     if (Thread.currentThread() == bgThread) {
       String nonPendingPath = indexPath.replaceAll("-pending$", "");
-      ent = entries.get(nonPendingPath);
+      Entry ent = entries.get(nonPendingPath);
       assert ent != null;
+      if (!ent.newSearcher.acquire())
+        throw new IOException("Searcher closed during validation");
       return ent.newSearcher;
     }
+
+    // Normally the searcher is ready to go, and we can grab it without
+    // locking. If we lose a race with a flip (that is, the searcher was
+    // retired between fetching and acquiring it), simply try again.
+    //
+    for (int tries = 0; tries < MAX_ACQUIRE_TRIES; tries++)
+    {
+      if (closed)
+        throw new IOException("Index warmer has been closed");
+      Entry ent = entries.get(indexPath);
+      XtfSearcher searcher = (ent == null) ? null : ent.curSearcher;
+      if (searcher == null)
+        searcher = openSearcher(indexPath);
+      if (searcher.acquire())
+        return searcher;
+    }
+    throw new IOException("Unable to acquire searcher for index " + indexPath);
+  }
+
+  /**
+   * Called when no searcher is available yet for the given (resolved) index
+   * path, to create one in the foreground.
+   */
+  private synchronized XtfSearcher openSearcher(String indexPath) 
+    throws IOException
+  {
+    if (closed)
+      throw new IOException("Index warmer has been closed");
     
     // Look up (or create if necessary) the entry for this path.
+    Entry ent = entries.get(indexPath);
     if (ent == null) {
       ent = new Entry(Path.resolveRelOrAbs(xtfHome, indexPath));
       entries.put(indexPath, ent);
@@ -148,7 +359,8 @@ public class IndexWarmer
       }
       else {
         // Read the index and ancillary files (plural/accent map, spelling, etc.)
-        ent.curSearcher = new XtfSearcher(indexPath, 0); // disable update check
+        ent.curSearcher = new XtfSearcher(indexPath, 
+          openDirectory(new File(indexPath)), 0); // disable update check
       }
             
       if (ent.curSearcher == null)
@@ -254,13 +466,13 @@ public class IndexWarmer
         //
         if (ent.newPath.exists() && ent.pendingPath.exists()) {
           indexPath = ent.pendingPath;
-          dir = new FlippingDirectory(NativeFSDirectory.getDirectory(indexPath));
+          dir = new FlippingDirectory(warmer.openDirectory(indexPath));
         }
         
         // Old-style warming is simpler.
         else {
           indexPath = ent.currentPath;
-          dir = NativeFSDirectory.getDirectory(indexPath);
+          dir = warmer.openDirectory(indexPath);
         }
         
         // Okay, load up the index along with ancillary files. Disable its update check.
@@ -282,8 +494,13 @@ public class IndexWarmer
         }
         
         // Ready to flip! Make sure everybody is locked out while we do it.
+        XtfSearcher oldSearcher = ent.curSearcher;
         synchronized (warmer) 
         {
+          // Don't flip to a searcher nobody will ever release.
+          if (warmer.closed)
+            throw new IOException("Index warmer has been closed");
+          
           // If rotating...
           if (dir instanceof FlippingDirectory)
           {
@@ -299,7 +516,15 @@ public class IndexWarmer
             // so that the Lucene IndexReader doesn't have to close and reopen
             // all its files.
             //
-            ((FlippingDirectory)dir).flipTo(NativeFSDirectory.getDirectory(ent.currentPath));
+            ((FlippingDirectory)dir).flipTo(warmer.openDirectory(ent.currentPath));
+            
+            // Requests still running on the old searcher must now find its
+            // files in the spare directory.
+            //
+            if (oldSearcher != null && oldSearcher.directory() instanceof FlippingDirectory) {
+              ((FlippingDirectory)oldSearcher.directory()).flipTo(
+                warmer.openDirectory(ent.sparePath));
+            }
           }
           
           // Finally record the flip in the entry, so that future requests will
@@ -310,6 +535,21 @@ public class IndexWarmer
           Trace.untab();
           Trace.info("Done.");
         }
+        
+        // Drop our reference to the old searcher. It will be closed as soon
+        // as any requests still using it are finished. Also, cached results
+        // from it are no longer any use.
+        //
+        if (oldSearcher != null)
+        {
+          if (warmer.resultCache != null)
+            warmer.resultCache.invalidate(oldSearcher);
+          if (warmer.docResultCache != null)
+            warmer.docResultCache.invalidate(oldSearcher);
+          if (warmer.docCache != null)
+            warmer.docCache.invalidate(oldSearcher);
+          oldSearcher.release();
+        }
       } 
       catch (Throwable exc) 
       {
@@ -320,6 +560,16 @@ public class IndexWarmer
         ent.exceptionTime = System.currentTimeMillis();
         Trace.untab();
         Trace.error(String.format("Error warming index '%s': %s", ent.indexPath, exc.toString()));
+
+        // Don't leave a half-warmed searcher hanging around.
+        if (ent.newSearcher != null) {
+          try {
+            ent.newSearcher.release();
+          } catch (IOException e) {
+            // ignore close problems
+          }
+          ent.newSearcher = null;
+        }
       }
     }
     
@@ -335,7 +585,7 @@ public class IndexWarmer
     File sparePath;
     File newPath;
     
-    XtfSearcher curSearcher;
+    volatile XtfSearcher curSearcher;
     XtfSearcher newSearcher;
     
     Throwable   exception;
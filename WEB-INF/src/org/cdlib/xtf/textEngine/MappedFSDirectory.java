@@ -0,0 +1,290 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+
+/**
+ * Wraps a file-system directory so that files opened for reading are
+ * memory-mapped rather than read through buffered file I/O. This avoids the
+ * buffer refills (and per-clone buffers) that dominate postings and position
+ * reads, and lets the operating system's page cache serve the index directly.
+ * Writes and all other operations go to the wrapped directory.<br><br>
+ *
+ * A mapping stays valid even if the file is later renamed, so this works
+ * fine with the directory rotation done by {@link IndexWarmer}. Java can't
+ * unmap a file, though; that only happens when the buffer is garbage
+ * collected. Windows refuses to delete or rename a file that is still
+ * mapped, which would break rotation there, so check {@link #isSupported()}
+ * before using this class.
+ *
+ * @author Martin Haye
+ */
+public class MappedFSDirectory extends Directory
+{
+  /** Largest chunk of a file we map as a single buffer */
+  private static final int CHUNK_SIZE = 1 << 30;
+
+  /** The directory we're wrapping */
+  private FSDirectory wrapped;
+
+  /** Whether mapped files can safely be renamed or deleted on this platform */
+  private static final boolean supported = 
+    System.getProperty("os.name").indexOf("Windows") < 0;
+
+  /**
+   * Tell whether memory mapping is safe on this platform, i.e. whether a
+   * file that's still mapped can be renamed or deleted. False on Windows.
+   */
+  public static boolean isSupported() {
+    return supported;
+  }
+
+  /** Wrap a file-system directory */
+  public MappedFSDirectory(FSDirectory toWrap) {
+    wrapped = toWrap;
+  }
+
+  /** Get the directory being wrapped */
+  public FSDirectory wrapped() {
+    return wrapped;
+  }
+
+  /** Open a file for reading by mapping it into memory */
+  @Override
+  public IndexInput openInput(String name) throws IOException 
+  {
+    File file = new File(wrapped.getFile(), name);
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try 
+    {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      int nChunks = (int)((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+      ByteBuffer[] buffers = new ByteBuffer[Math.max(1, nChunks)];
+      long pos = 0;
+      for (int i = 0; i < buffers.length; i++) {
+        long size = Math.min(CHUNK_SIZE, length - pos);
+        buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        pos += size;
+      }
+      return new MappedInput(buffers, length);
+    }
+    finally {
+      // The mapping remains valid after the file is closed.
+      raf.close();
+    }
+  } // openInput()
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Delegated methods
+  /////////////////////////////////////////////////////////////////////////////
+  
+  @Override
+  public void clearLock(String name) throws IOException {
+    wrapped.clearLock(name);
+  }
+  
+  @Override
+  public void close() throws IOException {
+    wrapped.close();
+  }
+  
+  @Override
+  public IndexOutput createOutput(String name) throws IOException {
+    return wrapped.createOutput(name);
+  }
+  
+  @Override
+  public void deleteFile(String name) throws IOException {
+    wrapped.deleteFile(name);
+  }
+  
+  @Override
+  public boolean fileExists(String name) throws IOException {
+    return wrapped.fileExists(name);
+  }
+  
+  @Override
+  public long fileLength(String name) throws IOException {
+    return wrapped.fileLength(name);
+  }
+  
+  @Override
+  public long fileModified(String name) throws IOException {
+    return wrapped.fileModified(name);
+  }
+  
+  @Override
+  public LockFactory getLockFactory() {
+    return wrapped.getLockFactory();
+  }
+  
+  @Override
+  public String getLockID() {
+    return wrapped.getLockID();
+  }
+  
+  @Override
+  public String[] list() throws IOException {
+    return wrapped.list();
+  }
+  
+  @Override
+  public Lock makeLock(String name) {
+    return wrapped.makeLock(name);
+  }
+  
+  @Override
+  @SuppressWarnings("deprecation")
+  public void renameFile(String from, String to) throws IOException {
+    wrapped.renameFile(from, to);
+  }
+  
+  @Override
+  public void setLockFactory(LockFactory lockFactory) {
+    wrapped.setLockFactory(lockFactory);
+  }
+  
+  @Override
+  public void touchFile(String name) throws IOException {
+    wrapped.touchFile(name);
+  }
+
+  @Override
+  public String toString() {
+    return "mapped:" + wrapped.toString();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Reads from a file mapped as one or more buffers. Clones share the
+   * mapping but keep their own position.
+   */
+  private static class MappedInput extends IndexInput 
+  {
+    private ByteBuffer[] buffers;
+    private long length;
+    private int curBufNum;
+    private ByteBuffer curBuf;
+
+    MappedInput(ByteBuffer[] buffers, long length) {
+      this.buffers = buffers;
+      this.length = length;
+      curBufNum = 0;
+      curBuf = buffers[0];
+    }
+
+    public byte readByte() throws IOException 
+    {
+      try {
+        return curBuf.get();
+      }
+      catch (BufferUnderflowException e) {
+        nextBuffer();
+        return curBuf.get();
+      }
+    }
+
+    public void readBytes(byte[] b, int offset, int len) throws IOException 
+    {
+      while (len > curBuf.remaining()) {
+        int avail = curBuf.remaining();
+        curBuf.get(b, offset, avail);
+        offset += avail;
+        len -= avail;
+        nextBuffer();
+      }
+      curBuf.get(b, offset, len);
+    }
+
+    /** Advance to the start of the next buffer */
+    private void nextBuffer() throws IOException 
+    {
+      if (curBufNum + 1 >= buffers.length)
+        throw new IOException("read past EOF");
+      curBuf = buffers[++curBufNum];
+      curBuf.position(0);
+    }
+
+    public long getFilePointer() {
+      return ((long)curBufNum * CHUNK_SIZE) + curBuf.position();
+    }
+
+    public void seek(long pos) throws IOException 
+    {
+      if (pos < 0 || pos > length)
+        throw new IOException("seek out of range: " + pos);
+      int bufNum = (int)(pos / CHUNK_SIZE);
+      int bufPos = (int)(pos % CHUNK_SIZE);
+
+      // Seeking to the very end of a file that fills its last buffer.
+      if (bufNum == buffers.length) {
+        bufNum--;
+        bufPos = CHUNK_SIZE;
+      }
+      curBufNum = bufNum;
+      curBuf = buffers[bufNum];
+      curBuf.position(bufPos);
+    }
+
+    public long length() {
+      return length;
+    }
+
+    public void close() throws IOException {
+      // Nothing to do; the mapping is released when no longer referenced.
+    }
+
+    public Object clone() 
+    {
+      MappedInput clone = (MappedInput)super.clone();
+      clone.buffers = new ByteBuffer[buffers.length];
+      for (int i = 0; i < buffers.length; i++)
+        clone.buffers[i] = buffers[i].duplicate();
+      clone.curBuf = clone.buffers[curBufNum];
+      clone.curBuf.position(curBuf.position());
+      return clone;
+    }
+  } // class MappedInput
+} // class MappedFSDirectory
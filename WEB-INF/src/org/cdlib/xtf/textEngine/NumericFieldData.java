@@ -71,7 +71,7 @@ public class NumericFieldData
    * @param field   Which field to read
    * @return        FRBR tags for the specified field
    */
-  public static NumericFieldData getCachedData(IndexReader reader, String field)
+  public static synchronized NumericFieldData getCachedData(IndexReader reader, String field)
     throws IOException 
   {
     // See if we have a cache for this reader.
@@ -85,8 +85,11 @@ public class NumericFieldData
     NumericFieldData data = (NumericFieldData)readerCache.get(field);
     if (data == null) 
     {
-      // Don't have cached data, so read and remember it.
-      data = new NumericFieldData(reader, field);
+      // Don't have cached data, so read (or compose from the segments) and
+      // remember it.
+      //
+      data = (NumericFieldData)SegmentCache.load(reader, "numeric|" + field,
+                                                  new SegmentLoader(field));
       readerCache.put(field, data);
     }
 
@@ -107,11 +110,21 @@ public class NumericFieldData
     return ret;
   }
 
+  /** Construct an empty data set, to be filled in by the caller */
+  private NumericFieldData() {
+  }
+
   /**
    * Load data from the given field of the reader, and parse the values as
    * numbers.
+   *
+   * @param reader      Reader to load from
+   * @param field       Field to load
+   * @param wholeIndex  true if reader covers the whole index; otherwise
+   *                    it's a single segment that might lack the field.
    */
-  private NumericFieldData(IndexReader reader, String field)
+  private NumericFieldData(IndexReader reader, String field, 
+                           boolean wholeIndex)
     throws IOException 
   {
     TermDocs termDocs = reader.termDocs();
@@ -120,8 +133,11 @@ public class NumericFieldData
     try 
     {
       // First, collect all the doc/value pairs.
-      if (termEnum.term() == null)
+      if (termEnum.term() == null) {
+        if (!wholeIndex)
+          return;
         throw new IOException("no terms in field " + field);
+      }
 
       do 
       {
@@ -199,4 +215,39 @@ public class NumericFieldData
   public final int docPos(int docId) {
     return docs.binarySearch(docId);
   }
+
+  /** Builds data per segment, and glues the segments together */
+  private static class SegmentLoader implements SegmentCache.Loader 
+  {
+    private String field;
+
+    SegmentLoader(String field) {
+      this.field = field;
+    }
+
+    public Object load(IndexReader reader, boolean wholeIndex)
+      throws IOException 
+    {
+      return new NumericFieldData(reader, field, wholeIndex);
+    }
+
+    public Object compose(Object[] parts, int[] starts, int maxDoc) 
+    {
+      // Segments are in document order, so simply offsetting and
+      // concatenating keeps everything sorted.
+      //
+      NumericFieldData ret = new NumericFieldData();
+      for (int i = 0; i < parts.length; i++) 
+      {
+        NumericFieldData part = (NumericFieldData)parts[i];
+        for (int j = 0; j < part.size(); j++) {
+          ret.docs.add(part.doc(j) + starts[i]);
+          ret.values.add(part.value(j));
+        }
+      }
+      ret.docs.compact();
+      ret.values.compact();
+      return ret;
+    }
+  } // class SegmentLoader
 } // class NumericFieldData
@@ -0,0 +1,132 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreDocComparator;
+import org.apache.lucene.search.SortComparatorSource;
+import org.apache.lucene.search.SortField;
+
+/*
+ * Sorts documents by the value of a field, comparing the ordinals from a
+ * {@link SortOrds} table rather than strings. Documents with no value for
+ * the field sort at the end, unless ":flipEmpty" is appended to the field 
+ * name, in which case they sort at the start.
+ */
+public class OrdinalSortComparator implements SortComparatorSource 
+{
+  /** Version of the serialized form (SortComparatorSource is Serializable) */
+  private static final long serialVersionUID = 1L;
+
+  /** Whether to use sparse tables (for indexes with many chunks per doc) */
+  private boolean sparse;
+
+  /**
+   * Construct a comparator source.
+   *
+   * @param sparse  true if the index is sparse (many chunks per document),
+   *                so only documents having a value should be tabled.
+   */
+  public OrdinalSortComparator(boolean sparse) {
+    this.sparse = sparse;
+  }
+
+  /** Make a comparator for the given field using the given reader */
+  public ScoreDocComparator newComparator(IndexReader reader, String fieldName)
+    throws IOException 
+  {
+    // Grab the flipEmpty modifier if present
+    boolean flipEmpty = false;
+    if (fieldName.endsWith(":flipEmpty")) {
+      flipEmpty = true;
+      fieldName = fieldName.replace(":flipEmpty", "");
+    }
+    return new OrdComp(SortOrds.getCachedData(reader, fieldName, sparse),
+                       flipEmpty);
+  } // newComparator()
+
+  private static class OrdComp implements ScoreDocComparator 
+  {
+    private SortOrds ords;
+    private int emptyOrd;
+
+    OrdComp(SortOrds ords, boolean flipEmpty) {
+      this.ords = ords;
+      emptyOrd = flipEmpty ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    }
+
+    /** Get the ordinal to sort a document by */
+    private int sortOrd(int doc) {
+      int ord = ords.ord(doc);
+      return (ord == 0) ? emptyOrd : ord;
+    }
+
+    /**
+     * Compares two ScoreDoc objects and returns a result indicating their
+     * sort order.
+     * @param d1 First ScoreDoc
+     * @param d2 Second ScoreDoc
+     * @return <code>-1</code> if <code>i</code> should come before <code>j</code><br><code>1</code> if <code>i</code> should come after <code>j</code><br><code>0</code> if they are equal
+     * @see java.util.Comparator
+     */
+    public int compare(ScoreDoc d1, ScoreDoc d2) 
+    {
+      int o1 = sortOrd(d1.doc);
+      int o2 = sortOrd(d2.doc);
+      if (o1 < o2)
+        return -1;
+      else if (o1 > o2)
+        return 1;
+      else
+        return 0;
+    }
+
+    /**
+     * Returns the value used to sort the given document.
+     * @param i Document
+     * @return Serializable object
+     */
+    public Comparable sortValue(ScoreDoc i) {
+      String term = ords.term(ords.ord(i.doc));
+      return (term != null) ? term : "";
+    }
+
+    /**
+     * Returns the type of sort.
+     * @return One of the constants in SortField.
+     * @see SortField
+     */
+    public int sortType() {
+      return SortField.CUSTOM;
+    }
+  } // class OrdComp
+} // class OrdinalSortComparator
@@ -97,6 +97,13 @@ public class QueryRequest implements Cloneable
   /** Optional: list of metadata fields to return (defaults to all) */
   public String returnMetaFields = null;
 
+  /**
+   * Optional: key of a single document to search within. Only that
+   * document's chunks are scored, so a search within one document costs
+   * little no matter how large the index is.
+   */
+  public String docKey = null;
+
   // Creates an exact copy of this query request.
   public Object clone() 
   {
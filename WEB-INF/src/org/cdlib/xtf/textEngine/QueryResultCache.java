@@ -0,0 +1,466 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.lucene.search.Query;
+import org.cdlib.xtf.textEngine.facet.FacetSpec;
+import org.cdlib.xtf.textEngine.facet.ResultFacet;
+import org.cdlib.xtf.textEngine.facet.ResultGroup;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Caches the results of recent queries, so that popular queries (browse
+ * pages, facet landing pages, etc.) needn't be re-run against the index.
+ * Entries are keyed on the fully rewritten query plus every request
+ * parameter that affects the result, and on the version of the index that
+ * produced them. They are discarded when a new index is rotated in, or when
+ * the total size of the cache exceeds its limit.<br>
+ *
+ * In "hits only" mode, the cache keeps just the ranked hit lists (with
+ * their spans), and each request re-loads fields and re-makes snippets
+ * for the hits it returns. This takes much less memory per entry.
+ *
+ * @author Martin Haye
+ */
+public class QueryResultCache 
+{
+  /** Max total estimated size of all entries, in bytes */
+  private long maxBytes;
+
+  /** Current total estimated size of all entries, in bytes */
+  private long curBytes = 0;
+
+  /** Whether to keep only hit lists rather than complete results */
+  private boolean hitsOnly;
+
+  /** The entries, kept in least-recently-used order */
+  private LinkedHashMap<String, Entry> entries = 
+    new LinkedHashMap<String, Entry>(100, 0.75f, true);
+
+  /** Number of successful lookups */
+  private long nHits = 0;
+
+  /** Number of unsuccessful lookups */
+  private long nMisses = 0;
+
+  /** Number of entries removed to stay under the size limit */
+  private long nEvictions = 0;
+
+  /**
+   * Construct a cache.
+   *
+   * @param maxBytes    Limit on the estimated size (in bytes) of all the
+   *                    entries in the cache.
+   * @param hitsOnly    true to keep only hit lists, re-making snippets on
+   *                    each request; false to keep complete results.
+   */
+  public QueryResultCache(long maxBytes, boolean hitsOnly) {
+    this.maxBytes = maxBytes;
+    this.hitsOnly = hitsOnly;
+  }
+
+  /** Tells whether the cache keeps only hit lists */
+  public boolean hitsOnly() {
+    return hitsOnly;
+  }
+
+  /**
+   * Decides whether the results of a request can be cached. Requests that
+   * explain scores, or that ask for all the hits, are never cached (except
+   * within a single document, where all the hits is a modest number.)
+   */
+  public static boolean isCacheable(QueryRequest req) {
+    return !req.explainScores && (req.maxDocs >= 0 || req.docKey != null);
+  }
+
+  /**
+   * Forms a key for the given request.
+   *
+   * @param searcher    Searcher (and hence index version) the request
+   *                    will run against.
+   * @param finalQuery  The query, after all rewriting is complete
+   * @param req         The original request
+   * @return            A string that is equal for requests that will
+   *                    produce the same results, or null if the query
+   *                    can't be cached.
+   */
+  public static String makeKey(XtfSearcher searcher, Query finalQuery,
+                               QueryRequest req) 
+  {
+    final StringBuffer buf = new StringBuffer(200);
+    buf.append(searcher.indexPath());
+    buf.append("|version=").append(searcher.version());
+    String form = CompiledQueryCache.canonicalForm(finalQuery);
+    if (form == null)
+      return null;
+    buf.append("|query=").append(form);
+
+    buf.append("|sort=").append(req.sortMetaFields);
+    buf.append("|startDoc=").append(req.startDoc);
+    buf.append("|maxDocs=").append(req.maxDocs);
+    buf.append("|maxContext=").append(req.maxContext);
+    buf.append("|termMode=").append(req.termMode);
+    buf.append("|normalize=").append(req.normalizeScores);
+    buf.append("|returnMeta=").append(req.returnMetaFields);
+    buf.append("|doc=").append(req.docKey);
+
+    if (req.facetSpecs != null) 
+    {
+      for (int i = 0; i < req.facetSpecs.length; i++) {
+        FacetSpec spec = req.facetSpecs[i];
+        buf.append("|facet=").append(spec.field);
+        buf.append(',').append(spec.groupSelector);
+        buf.append(',').append(spec.sortGroupsBy);
+        buf.append(',').append(spec.includeEmptyGroups);
+        buf.append(',').append(spec.sortDocsBy);
+      }
+    }
+
+    if (req.boostSetParams != null) {
+      buf.append("|boost=").append(req.boostSetParams.path);
+      buf.append(',').append(req.boostSetParams.field);
+      buf.append(',').append(req.boostSetParams.exponent);
+      buf.append(',').append(req.boostSetParams.defaultBoost);
+    }
+
+    if (req.spellcheckParams != null) {
+      buf.append("|spell=").append(req.spellcheckParams.fields);
+      buf.append(',').append(req.spellcheckParams.docScoreCutoff);
+      buf.append(',').append(req.spellcheckParams.totalDocsCutoff);
+    }
+
+    return buf.toString();
+  } // makeKey()
+
+  /**
+   * Look up a cached result.
+   *
+   * @param key       Key formed by {@link #makeKey}
+   * @param searcher  Searcher the request is running against. Entries made
+   *                  by any other searcher are ignored.
+   * @return          The entry, or null if not found.
+   */
+  public synchronized Entry get(String key, XtfSearcher searcher) 
+  {
+    Entry ent = entries.get(key);
+    if (ent != null && ent.searcher != searcher) {
+      remove(key);
+      ent = null;
+    }
+
+    if (ent == null)
+      ++nMisses;
+    else
+      ++nHits;
+    return ent;
+  } // get()
+
+  /**
+   * Add a result to the cache. In full mode, the hits in the result must
+   * already be fully loaded (so that they can be safely shared between 
+   * threads); in hits-only mode, an unfinished copy of the hits is stored 
+   * instead. Either way the cache keeps its own copy of the result, so the
+   * caller is free to change the one passed in.
+   *
+   * @param key           Key formed by {@link #makeKey}
+   * @param searcher      Searcher that produced the result
+   * @param result        The result to add (fully loaded)
+   * @param maxDocScore   Maximum (non-normalized) document score
+   */
+  public void put(String key, XtfSearcher searcher, QueryResult result,
+                  float maxDocScore) 
+  {
+    Entry ent = new Entry();
+    ent.searcher = searcher;
+    ent.maxDocScore = maxDocScore;
+    ent.hitsOnly = hitsOnly;
+
+    // Do the expensive work outside the lock.
+    IdentityHashMap<DocHitImpl, DocHitImpl> hits = 
+      new IdentityHashMap<DocHitImpl, DocHitImpl>();
+    if (!hitsOnly)
+      collectHits(result, hits);
+    ent.result = copyResult(result, hits);
+
+    ent.size = 200 + key.length() * 2;
+    for (DocHitImpl hit : hits.values())
+      ent.size += hit.estimateSize();
+
+    // Entries bigger than the whole cache aren't worth keeping.
+    if (ent.size > maxBytes)
+      return;
+
+    synchronized (this) 
+    {
+      remove(key);
+      entries.put(key, ent);
+      curBytes += ent.size;
+
+      // Discard the least-recently-used entries until we're under the limit.
+      Iterator<Entry> iter = entries.values().iterator();
+      while (curBytes > maxBytes && iter.hasNext()) {
+        Entry old = iter.next();
+        iter.remove();
+        curBytes -= old.size;
+        ++nEvictions;
+      }
+    }
+  } // put()
+
+  /**
+   * Discard all entries made by the given searcher. Called when a new
+   * index is rotated in.
+   */
+  public synchronized void invalidate(XtfSearcher searcher) 
+  {
+    int nRemoved = 0;
+    for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext();) {
+      Entry ent = iter.next();
+      if (ent.searcher == searcher) {
+        iter.remove();
+        curBytes -= ent.size;
+        ++nRemoved;
+      }
+    }
+
+    if (nRemoved > 0)
+      Trace.info("Query cache: discarded " + nRemoved + " entries. " + this);
+  } // invalidate()
+
+  /** Remove all entries from the cache */
+  public synchronized void clear() {
+    entries.clear();
+    curBytes = 0;
+  }
+
+  /** Remove one entry */
+  private void remove(String key) {
+    Entry old = entries.remove(key);
+    if (old != null)
+      curBytes -= old.size;
+  }
+
+  /** Number of successful lookups so far */
+  public synchronized long hits() {
+    return nHits;
+  }
+
+  /** Number of unsuccessful lookups so far */
+  public synchronized long misses() {
+    return nMisses;
+  }
+
+  /** Number of entries discarded to stay under the size limit */
+  public synchronized long evictions() {
+    return nEvictions;
+  }
+
+  /** Current number of entries in the cache */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Current estimated size (in bytes) of all entries */
+  public synchronized long byteSize() {
+    return curBytes;
+  }
+
+  /** Summarizes the cache statistics */
+  public synchronized String toString() {
+    return "entries=" + entries.size() + ", bytes=" + curBytes + 
+           ", hits=" + nHits + ", misses=" + nMisses + 
+           ", evictions=" + nEvictions;
+  }
+
+  /**
+   * Make a copy of a result, in which each distinct hit is replaced by an
+   * unfinished copy of itself, unless the map already says what to replace
+   * it with (e.g. mapping loaded hits to themselves shares them rather than
+   * copying.)
+   *
+   * @param result    Result to copy
+   * @param copies    Map of original hit to copy (filled in with each hit
+   *                  copied), so that hits shared between the main list and
+   *                  the facets remain shared in the copy.
+   */
+  static QueryResult copyResult(QueryResult result,
+                                Map<DocHitImpl, DocHitImpl> copies) 
+  {
+    QueryResult out = new QueryResult();
+    out.context = result.context;
+    out.textTerms = result.textTerms;
+    out.totalDocs = result.totalDocs;
+    out.startDoc = result.startDoc;
+    out.endDoc = result.endDoc;
+    out.scoresNormalized = result.scoresNormalized;
+    out.suggestions = result.suggestions;
+    out.docHits = copyHits(result.docHits, copies);
+
+    if (result.facets != null) 
+    {
+      out.facets = new ResultFacet[result.facets.length];
+      for (int i = 0; i < result.facets.length; i++) {
+        out.facets[i] = new ResultFacet();
+        out.facets[i].field = result.facets[i].field;
+        out.facets[i].rootGroup = copyGroup(result.facets[i].rootGroup, copies);
+      }
+    }
+    return out;
+  } // copyResult()
+
+  /** Copy a group and all its descendants (see {@link #copyResult}) */
+  private static ResultGroup copyGroup(ResultGroup group,
+                                       Map<DocHitImpl, DocHitImpl> copies) 
+  {
+    if (group == null)
+      return null;
+    ResultGroup out = new ResultGroup();
+    out.value = group.value;
+    out.rank = group.rank;
+    out.totalSubGroups = group.totalSubGroups;
+    out.totalDocs = group.totalDocs;
+    out.startDoc = group.startDoc;
+    out.endDoc = group.endDoc;
+    out.docHits = copyHits(group.docHits, copies);
+    if (group.subGroups != null) {
+      out.subGroups = new ResultGroup[group.subGroups.length];
+      for (int i = 0; i < group.subGroups.length; i++)
+        out.subGroups[i] = copyGroup(group.subGroups[i], copies);
+    }
+    return out;
+  } // copyGroup()
+
+  /** Copy an array of hits (see {@link #copyResult}) */
+  private static DocHit[] copyHits(DocHit[] hits,
+                                   Map<DocHitImpl, DocHitImpl> copies) 
+  {
+    if (hits == null)
+      return null;
+    DocHit[] out = new DocHit[hits.length];
+    for (int i = 0; i < hits.length; i++) {
+      DocHitImpl copy = copies.get(hits[i]);
+      if (copy == null) {
+        copy = ((DocHitImpl)hits[i]).copyUnfinished();
+        copies.put((DocHitImpl)hits[i], copy);
+      }
+      out[i] = copy;
+    }
+    return out;
+  } // copyHits()
+
+  /** Gather every distinct hit in a result (main list and facets) */
+  static void collectHits(QueryResult result,
+                          Map<DocHitImpl, DocHitImpl> hits)
+  {
+    collectHits(result.docHits, hits);
+    if (result.facets != null) {
+      for (int i = 0; i < result.facets.length; i++)
+        collectHits(result.facets[i].rootGroup, hits);
+    }
+  } // collectHits()
+
+  /** Gather every distinct hit in a group and its descendants */
+  private static void collectHits(ResultGroup group,
+                                  Map<DocHitImpl, DocHitImpl> hits)
+  {
+    if (group == null)
+      return;
+    collectHits(group.docHits, hits);
+    if (group.subGroups != null) {
+      for (int i = 0; i < group.subGroups.length; i++)
+        collectHits(group.subGroups[i], hits);
+    }
+  } // collectHits()
+
+  /** Gather every distinct hit in an array */
+  private static void collectHits(DocHit[] docHits,
+                                  Map<DocHitImpl, DocHitImpl> hits)
+  {
+    if (docHits == null)
+      return;
+    for (int i = 0; i < docHits.length; i++)
+      hits.put((DocHitImpl)docHits[i], (DocHitImpl)docHits[i]);
+  } // collectHits()
+
+  /** A single cached result */
+  public static class Entry 
+  {
+    /** Searcher that produced the result */
+    XtfSearcher searcher;
+
+    /** The result (with unfinished hits in hits-only mode) */
+    QueryResult result;
+
+    /** Whether {@link #result} contains only unfinished hits */
+    boolean hitsOnly;
+
+    /** Max (non-normalized) document score */
+    float maxDocScore;
+
+    /** Estimated size in bytes */
+    long size;
+
+    /** Total number of documents hit by the query */
+    public int totalDocs() {
+      return result.totalDocs;
+    }
+
+    /** Max (non-normalized) document score */
+    public float maxDocScore() {
+      return maxDocScore;
+    }
+
+    /**
+     * Produce a result for a new request. For a complete result, a copy is
+     * made that shares the (unchanging) loaded hits. Otherwise, the copy's
+     * hits are finished with the given snippet maker, but not yet loaded.
+     */
+    public QueryResult makeResult(SnippetMaker snippetMaker) 
+    {
+      IdentityHashMap<DocHitImpl, DocHitImpl> copies = 
+        new IdentityHashMap<DocHitImpl, DocHitImpl>();
+      if (!hitsOnly) {
+        collectHits(result, copies);
+        return copyResult(result, copies);
+      }
+
+      QueryResult out = copyResult(result, copies);
+
+      // Scores were normalized before the hits were cached.
+      for (DocHitImpl hit : copies.values())
+        hit.finish(snippetMaker, 1.0f);
+      return out;
+    } // makeResult()
+  } // class Entry
+} // class QueryResultCache
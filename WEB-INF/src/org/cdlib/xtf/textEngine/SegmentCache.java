@@ -0,0 +1,173 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexSegments;
+
+/**
+ * Keeps per-segment copies of expensive reader-derived data (facet groups,
+ * numeric field values, boost sets, docInfo chunk lists), so that when an 
+ * index is re-opened after an incremental update, only the data for new or 
+ * changed segments has to be built. The per-segment parts are then composed
+ * into data covering the full reader.<br><br>
+ *
+ * Readers take part only once they're registered under a name identifying
+ * the index (see {@link #register(IndexReader, String)}); otherwise, data is
+ * simply built from the full reader.
+ *
+ * @author Martin Haye
+ */
+public class SegmentCache 
+{
+  /** Keys of the segments for each registered reader */
+  private static WeakHashMap readerKeys = new WeakHashMap();
+
+  /** Maps segment key to a map of data key -> data */
+  private static HashMap segmentData = new HashMap();
+
+  /**
+   * Builds data for a single segment, and composes the parts from several
+   * segments into data covering a full reader.
+   */
+  public interface Loader 
+  {
+    /**
+     * Build data from the given reader. Document IDs are relative to that
+     * reader.
+     *
+     * @param reader        Segment (or full reader) to build from
+     * @param wholeIndex    true if the reader covers the whole index
+     */
+    Object load(IndexReader reader, boolean wholeIndex)
+      throws IOException;
+
+    /**
+     * Combine data from each segment into data for the full reader.
+     *
+     * @param parts   Data for each segment, in order
+     * @param starts  First document ID of each segment
+     * @param maxDoc  maxDoc() of the full reader
+     */
+    Object compose(Object[] parts, int[] starts, int maxDoc)
+      throws IOException;
+  } // interface Loader
+
+  /**
+   * Register a reader so that data for it will be built and cached per
+   * segment. Also discards cached data for segments no longer in use by
+   * any registered reader.
+   *
+   * @param reader      Reader obtained from IndexReader.open()
+   * @param indexName   Identifies the index, stable across re-opens
+   */
+  public static synchronized void register(IndexReader reader,
+                                           String indexName)
+    throws IOException 
+  {
+    IndexSegments segs = IndexSegments.get(reader);
+    if (segs == null)
+      return;
+
+    String[] keys = new String[segs.size()];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = indexName + "|" + segs.key(i);
+    readerKeys.put(reader, keys);
+
+    // Throw out data for segments nobody is using any more.
+    HashSet liveKeys = new HashSet();
+    for (Iterator iter = readerKeys.values().iterator(); iter.hasNext();) {
+      String[] rk = (String[])iter.next();
+      for (int i = 0; i < rk.length; i++)
+        liveKeys.add(rk[i]);
+    }
+    segmentData.keySet().retainAll(liveKeys);
+  } // register()
+
+  /**
+   * Get data for a reader, re-using the parts for any segments that were
+   * already built for this or an earlier reader of the same index.
+   *
+   * @param reader    Reader to get data for
+   * @param dataKey   Identifies the data (e.g. type and field name)
+   * @param loader    Builds and composes the data as needed
+   * @return          Data covering the full reader
+   */
+  public static Object load(IndexReader reader, String dataKey, Loader loader)
+    throws IOException 
+  {
+    String[] keys;
+    synchronized (SegmentCache.class) {
+      keys = (String[])readerKeys.get(reader);
+    }
+    IndexSegments segs = (keys == null) ? null : IndexSegments.get(reader);
+    if (segs == null || segs.size() != keys.length)
+      return loader.load(reader, true);
+
+    Object[] parts = new Object[keys.length];
+    int[] starts = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) 
+    {
+      starts[i] = segs.start(i);
+      parts[i] = get(keys[i], dataKey);
+      if (parts[i] == null) {
+        parts[i] = loader.load(segs.reader(i), keys.length == 1);
+        put(keys[i], dataKey, parts[i]);
+      }
+    }
+
+    if (parts.length == 1)
+      return parts[0];
+    return loader.compose(parts, starts, reader.maxDoc());
+  } // load()
+
+  /** Look up the cached data for a segment */
+  private static synchronized Object get(String segKey, String dataKey) {
+    HashMap map = (HashMap)segmentData.get(segKey);
+    return (map == null) ? null : map.get(dataKey);
+  }
+
+  /** Record the data for a segment */
+  private static synchronized void put(String segKey, String dataKey, 
+                                       Object data) 
+  {
+    HashMap map = (HashMap)segmentData.get(segKey);
+    if (map == null) {
+      map = new HashMap();
+      segmentData.put(segKey, map);
+    }
+    map.put(dataKey, data);
+  }
+} // class SegmentCache
@@ -67,24 +67,42 @@ public class SlopFixupRewriter extends XtfQueryRewriter
     this.accentMap = accentMap;
   }
 
-  public boolean forceRewrite(Query q) {
-    return (q instanceof SpanNearQuery) || (q instanceof SpanOrNearQuery) ||
-           (q instanceof SpanChunkedNotQuery) ||
+  public boolean forceRewrite(Query q) 
+  {
+    // Near queries only need to change if their slop is too large.
+    if (q instanceof SpanNearQuery) {
+      SpanNearQuery nq = (SpanNearQuery)q;
+      return targetSlop(nq.getField(), nq.getSlop()) != nq.getSlop();
+    }
+    if (q instanceof SpanOrNearQuery) {
+      SpanOrNearQuery nq = (SpanOrNearQuery)q;
+      return targetSlop(nq.getField(), nq.getSlop()) != nq.getSlop();
+    }
+
+    // The rest always need index-specific information attached.
+    return (q instanceof SpanChunkedNotQuery) ||
            (q instanceof SpanDechunkingQuery) ||
            (q instanceof SpanWildcardQuery) || (q instanceof SpanRangeQuery) ||
            (q instanceof MoreLikeThisQuery);
   }
 
-  public Query rewrite(SpanNearQuery nq) 
+  /**
+   * Figure out the maximum slop for a near query. For text queries, it's
+   * the chunk overlap size. For meta-data fields, it's the bump between 
+   * multiple values for the same field, *minus one* to prevent matches 
+   * across the boundary.
+   */
+  private int targetSlop(String field, int slop) 
   {
-    // For text queries, set the max to the chunk overlap size. For
-    // meta-data fields, set it to the bump between multiple values
-    // for the same field, *minus one* to prevent matches across 
-    // the boundary.
-    //
-    boolean isText = nq.getField().equals("text");
+    boolean isText = field.equals("text");
     int maxSlop = isText ? docNumMap.getChunkOverlap() : (1000000 - 1);
-    int targetSlop = Math.min(nq.getSlop(), maxSlop);
+    return Math.min(slop, maxSlop);
+  }
+
+  public Query rewrite(SpanNearQuery nq) 
+  {
+    // If the slop is fine, only the sub-queries (if any) need rewriting.
+    int targetSlop = targetSlop(nq.getField(), nq.getSlop());
     if (targetSlop == nq.getSlop())
       return super.rewrite(nq);
 
@@ -97,14 +115,8 @@ public class SlopFixupRewriter extends XtfQueryRewriter
 
   public Query rewrite(SpanOrNearQuery nq) 
   {
-    // For text queries, set the max to the chunk overlap size. For
-    // meta-data fields, set it to the bump between multiple values
-    // for the same field, *minus one* to prevent matches across 
-    // the boundary.
-    //
-    boolean isText = nq.getField().equals("text");
-    int maxSlop = isText ? docNumMap.getChunkOverlap() : (1000000 - 1);
-    int targetSlop = Math.min(nq.getSlop(), maxSlop);
+    // If the slop is fine, only the sub-queries (if any) need rewriting.
+    int targetSlop = targetSlop(nq.getField(), nq.getSlop());
     if (targetSlop == nq.getSlop())
       return super.rewrite(nq);
 
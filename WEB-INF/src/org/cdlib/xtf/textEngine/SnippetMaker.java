@@ -41,6 +41,7 @@ import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.chunk.DocNumMap;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.mark.ContextMarker;
 import org.apache.lucene.mark.MarkCollector;
@@ -106,6 +107,15 @@ public class SnippetMaker
   /** List of metadata fields to return in the doc hits, or null for all */
   private Set<String> returnMetaFields;
 
+  /** Selects the stored fields to load for a document hit (null for all) */
+  private FieldSelector fieldSelector;
+
+  /** Cache of document stored fields, or null if none */
+  private DocInfoCache docCache;
+
+  /** Searcher whose documents are being loaded (used for the cache) */
+  private XtfSearcher searcher;
+
   // Precompiled patterns for quickly matching common chars special to XML
   private static final Pattern ampPattern = Pattern.compile("&");
   private static final Pattern ltPattern = Pattern.compile("<");
@@ -143,6 +153,7 @@ public class SnippetMaker
       this.returnMetaFields = new HashSet(Arrays.asList(returnMetaFields.split("[, ]+")));
     else
       this.returnMetaFields = null;
+    fieldSelector = DocInfoCache.makeSelector(this.returnMetaFields);
 
     // Use the indexer's actual analyzer, so that our results always
     // agree (especially the positions which are critical.)
@@ -150,6 +161,35 @@ public class SnippetMaker
     analyzer = new XTFTextAnalyzer(null, pluralMap, accentMap);
   } // constructor
 
+  /**
+   * Use a cache when loading the stored fields of document hits.
+   *
+   * @param cache     Cache to use
+   * @param searcher  Searcher the reader came from
+   */
+  public void setDocCache(DocInfoCache cache, XtfSearcher searcher) {
+    this.docCache = cache;
+    this.searcher = searcher;
+  }
+
+  /**
+   * Load the stored fields of a document hit: just the ones XTF needs plus
+   * those requested in the query, from the cache if one is available.
+   *
+   * @param doc   Document to load
+   * @return      The document (which must not be modified)
+   */
+  public Document loadDocInfo(int doc)
+    throws IOException 
+  {
+    if (docCache != null) {
+      return docCache.load(searcher, reader, doc, fieldSelector, 
+                           DocInfoCache.fieldsKey(returnMetaFields));
+    }
+    return (fieldSelector == null) ? reader.document(doc)
+           : reader.document(doc, fieldSelector);
+  } // loadDocInfo()
+
   /**
    * Obtain a list of stop-words in the index (e.g. "the", "a", "and",
    * etc.)
@@ -0,0 +1,463 @@
+package org.cdlib.xtf.textEngine;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Vector;
+import java.util.WeakHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.IntList;
+import org.cdlib.xtf.util.Path;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Maps each document to the ordinal (position in term order) of its value
+ * in a sort field, so that sorting compares ints rather than strings. For
+ * sparse indexes (many chunks per document) only the documents having a
+ * value are stored, and looked up by binary search; otherwise there's one
+ * entry per document.<br><br>
+ *
+ * Ordinals start at 1; 0 means the document has no value. The tables can
+ * be written by the indexer (see {@link #writeTables(File)}) and are then 
+ * memory-mapped instead of scanning the terms, as long as the index hasn't 
+ * changed since.
+ *
+ * @author Martin Haye
+ */
+public class SortOrds 
+{
+  /** Name of the file (in the index directory) listing the sort fields */
+  public static final String SORT_FIELDS_FILE = "sortFields.txt";
+
+  /** Sub-directory of the index in which sort tables are stored */
+  public static final String TABLE_DIR = "sort";
+
+  /** Marks the start of a sort table file ("XTFO") */
+  private static final int TABLE_MAGIC = 0x5854464F;
+
+  /** Version of the sort table format we read and write */
+  private static final int TABLE_FORMAT = 1;
+
+  /** Size of the fixed header at the start of each table */
+  private static final int TABLE_HEADER_SIZE = 32;
+
+  /** Cached data. If the reader goes away, our cache will too. */
+  private static WeakHashMap cache = new WeakHashMap();
+
+  /** Term for each ordinal (entry 0 is unused) */
+  private String[] terms;
+
+  /** Ordinal for each document (dense form only) */
+  private int[] ordByDoc;
+
+  /** Documents having a value, in ascending order (sparse form only) */
+  private IntBuffer docs;
+
+  /** Ordinal for each of the 'docs' (sparse form only) */
+  private IntBuffer ords;
+
+  /** Number of entries in 'docs' and 'ords' */
+  private int nEntries;
+
+  /** True if any document has more than one value */
+  private boolean multiValued;
+
+  /**
+   * Retrieves the ordinals for a given field of a given reader, from the
+   * cache if possible.
+   *
+   * @param reader  Where to read the data from
+   * @param field   Which field to read
+   * @param sparse  true to keep only documents having a value (and disallow
+   *                documents with more than one.)
+   * @return        Ordinals for the specified field
+   */
+  public static synchronized SortOrds getCachedData(IndexReader reader,
+                                                    String field,
+                                                    boolean sparse)
+    throws IOException 
+  {
+    // See if we have a cache for this reader.
+    HashMap readerCache = (HashMap)cache.get(reader);
+    if (readerCache == null) {
+      readerCache = new HashMap();
+      cache.put(reader, readerCache);
+    }
+
+    // Now see if we've already read data for this field.
+    String key = field + (sparse ? "|sparse" : "|dense");
+    SortOrds data = (SortOrds)readerCache.get(key);
+    if (data == null) 
+    {
+      // Try for a table written by the indexer, then fall back to reading
+      // the terms.
+      //
+      File indexDir = IndexUtil.indexDir(reader.directory());
+      if (indexDir != null)
+        data = mapTable(tableFile(indexDir.toString(), field), reader, sparse);
+      if (data == null)
+        data = new SortOrds(reader, field, sparse);
+      readerCache.put(key, data);
+    }
+
+    return data;
+  } // getCachedData()
+
+  /** Construct an empty object, to be filled in by the caller */
+  private SortOrds() {
+  }
+
+  /**
+   * Read the terms for a field and record the ordinal of each document's
+   * value.
+   *
+   * @param reader  Where to read the data from
+   * @param field   Which field to read
+   * @param sparse  true to form the sparse (rather than dense) table
+   */
+  private SortOrds(IndexReader reader, String field, boolean sparse)
+    throws IOException 
+  {
+    TermDocs termDocs = reader.termDocs();
+    TermEnum termEnum = reader.terms(new Term(field, ""));
+
+    Vector termVec = new Vector();
+    termVec.add(null); // ordinal 0 means no value
+    IntList docList = new IntList();
+    IntList ordList = new IntList();
+    int[] dense = sparse ? null : new int[reader.maxDoc()];
+
+    try 
+    {
+      if (termEnum.term() == null)
+        throw new RuntimeException("no terms in field " + field);
+
+      do 
+      {
+        Term term = termEnum.term();
+        if (!term.field().equals(field))
+          break;
+
+        int ord = termVec.size();
+        termVec.add(term.text());
+
+        termDocs.seek(termEnum);
+        while (termDocs.next()) 
+        {
+          int doc = termDocs.doc();
+          if (dense != null) {
+            if (dense[doc] != 0)
+              multiValued = true;
+            dense[doc] = ord; // later terms win, like Lucene's FieldCache
+          }
+          else {
+            docList.add(doc);
+            ordList.add(ord);
+          }
+        }
+      } while (termEnum.next());
+    }
+    finally {
+      termDocs.close();
+      termEnum.close();
+    }
+
+    terms = (String[])termVec.toArray(new String[termVec.size()]);
+
+    if (dense != null) {
+      ordByDoc = dense;
+      return;
+    }
+
+    // Sort the sparse entries by document, and make sure no document has
+    // more than one value.
+    //
+    int[] map = docList.calcSortMap();
+    docList.remap(map);
+    ordList.remap(map);
+    for (int i = 1; i < docList.size(); i++) 
+    {
+      if (docList.get(i - 1) == docList.get(i)) {
+        throw new RuntimeException(
+          "A document has more than one term ('" + 
+          terms[ordList.get(i - 1)] + "', '" + terms[ordList.get(i)] +
+          "') in field " + field);
+      }
+    }
+
+    nEntries = docList.size();
+    docs = IntBuffer.wrap(docList.toArray());
+    ords = IntBuffer.wrap(ordList.toArray());
+  } // constructor
+
+  /** Get the ordinal of a document's value, or 0 if it has none */
+  public final int ord(int doc) 
+  {
+    if (ordByDoc != null)
+      return (doc < ordByDoc.length) ? ordByDoc[doc] : 0;
+
+    int lo = 0;
+    int hi = nEntries - 1;
+    while (lo <= hi) 
+    {
+      int mid = (lo + hi) >>> 1;
+      int midDoc = docs.get(mid);
+      if (midDoc < doc)
+        lo = mid + 1;
+      else if (midDoc > doc)
+        hi = mid - 1;
+      else
+        return ords.get(mid);
+    }
+    return 0;
+  } // ord()
+
+  /** Get the term for an ordinal, or null for ordinal 0 */
+  public final String term(int ord) {
+    return terms[ord];
+  }
+
+  /**
+   * Get the sort table file for a given field of an index.
+   *
+   * @param indexPath   Directory containing the index
+   * @param field       Name of the sort field
+   */
+  public static File tableFile(String indexPath, String field) {
+    return new File(Path.normalizePath(indexPath + "/" + TABLE_DIR + "/" + 
+                                       field + ".ord"));
+  }
+
+  /**
+   * Read in the list of sort fields recorded for an index by the indexer.
+   *
+   * @param indexPath   Directory containing the index
+   * @return            Set of field names (empty if none recorded)
+   */
+  public static Set readSortFields(String indexPath)
+    throws IOException 
+  {
+    LinkedHashSet sortFields = new LinkedHashSet();
+    File file = new File(Path.normalizePath(indexPath + "/" + 
+                                            SORT_FIELDS_FILE));
+    if (file.canRead()) {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      String line;
+      while ((line = reader.readLine()) != null)
+        sortFields.add(line);
+      reader.close();
+    }
+    return sortFields;
+  } // readSortFields()
+
+  /**
+   * Build and write a sort table for every sort field of an index. This
+   * should be done after the index has been optimized, since any later 
+   * change to the index makes the tables stale (they're then ignored.)
+   *
+   * @param indexDir    Directory containing the index
+   */
+  public static void writeTables(File indexDir)
+    throws IOException 
+  {
+    String indexPath = indexDir.toString();
+    Set fields = readSortFields(indexPath);
+    if (fields.isEmpty())
+      return;
+
+    File tableDir = new File(indexDir, TABLE_DIR);
+    if (!tableDir.isDirectory() && !tableDir.mkdirs())
+      throw new IOException("Unable to create directory " + tableDir);
+
+    IndexReader reader = IndexReader.open(indexDir);
+    try 
+    {
+      for (Iterator iter = fields.iterator(); iter.hasNext();) 
+      {
+        String field = (String)iter.next();
+        SortOrds data;
+        try {
+          data = new SortOrds(reader, field, false);
+        }
+        catch (RuntimeException e) {
+          // No terms in the field (e.g. all its documents were deleted.)
+          tableFile(indexPath, field).delete();
+          continue;
+        }
+        data.writeTable(tableFile(indexPath, field), reader);
+      }
+    }
+    finally {
+      reader.close();
+    }
+  } // writeTables()
+
+  /**
+   * Write this (dense) data out as a sort table that can later be 
+   * memory-mapped. Only documents having a value are written.
+   *
+   * @param file    File to write to (replaced if it exists)
+   * @param reader  The reader the data was built from
+   */
+  private void writeTable(File file, IndexReader reader)
+    throws IOException 
+  {
+    int nDocs = 0;
+    for (int i = 0; i < ordByDoc.length; i++) {
+      if (ordByDoc[i] != 0)
+        ++nDocs;
+    }
+
+    // As with the other index files, don't overwrite in place since that 
+    // would mess with indexes that have hard-links to the existing file.
+    //
+    File tmpFile = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try 
+    {
+      out.writeInt(TABLE_MAGIC);
+      out.writeInt(TABLE_FORMAT);
+      out.writeLong(reader.getVersion());
+      out.writeInt(reader.maxDoc());
+      out.writeInt(terms.length);
+      out.writeInt(nDocs);
+      out.writeInt(multiValued ? 1 : 0);
+
+      for (int i = 0; i < ordByDoc.length; i++) {
+        if (ordByDoc[i] != 0)
+          out.writeInt(i);
+      }
+      for (int i = 0; i < ordByDoc.length; i++) {
+        if (ordByDoc[i] != 0)
+          out.writeInt(ordByDoc[i]);
+      }
+
+      for (int i = 1; i < terms.length; i++) {
+        byte[] bytes = terms[i].getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+    finally {
+      out.close();
+    }
+
+    file.delete();
+    if (!tmpFile.renameTo(file))
+      throw new IOException("Unable to rename " + tmpFile + " to " + file);
+  } // writeTable()
+
+  /**
+   * Memory-map a sort table previously written by the indexer.
+   *
+   * @param file    The table file
+   * @param reader  Reader the data will be used with
+   * @param sparse  true to form the sparse table, false for dense
+   * @return        The data, or null if the table doesn't exist, is
+   *                damaged, was built from a different version of the 
+   *                index, or can't be used in sparse form.
+   */
+  private static SortOrds mapTable(File file, IndexReader reader, 
+                                   boolean sparse)
+  {
+    try 
+    {
+      ByteBuffer buf = IndexUtil.mapTable(file, "sort", TABLE_MAGIC, 
+                                          TABLE_FORMAT, TABLE_HEADER_SIZE,
+                                          reader);
+      if (buf == null)
+        return null;
+
+      // The sparse form can't represent multiple values per document; 
+      // scanning the terms will produce the proper error.
+      //
+      if (sparse && buf.getInt(28) != 0)
+        return null;
+
+      int nTerms = buf.getInt(20);
+      int nDocs = buf.getInt(24);
+      if (buf.capacity() < TABLE_HEADER_SIZE + (nDocs * 8L)) {
+        Trace.warning("Ignoring truncated sort table " + file);
+        return null;
+      }
+
+      SortOrds ret = new SortOrds();
+      ret.multiValued = (buf.getInt(28) != 0);
+      ret.nEntries = nDocs;
+      ret.docs = IndexUtil.intSlice(buf, TABLE_HEADER_SIZE, nDocs);
+      ret.ords = IndexUtil.intSlice(buf, TABLE_HEADER_SIZE + (nDocs * 4), 
+                                    nDocs);
+
+      // Decode the terms.
+      buf.position(TABLE_HEADER_SIZE + (nDocs * 8));
+      ret.terms = new String[nTerms];
+      byte[] bytes = new byte[256];
+      for (int i = 1; i < nTerms; i++) {
+        int len = buf.getInt();
+        if (len > bytes.length)
+          bytes = new byte[len * 2];
+        buf.get(bytes, 0, len);
+        ret.terms[i] = new String(bytes, 0, len, "UTF-8");
+      }
+
+      // For the dense form, spread the entries out by document.
+      if (!sparse) 
+      {
+        ret.ordByDoc = new int[reader.maxDoc()];
+        for (int i = 0; i < nDocs; i++)
+          ret.ordByDoc[ret.docs.get(i)] = ret.ords.get(i);
+        ret.docs = ret.ords = null;
+        ret.nEntries = 0;
+      }
+
+      return ret;
+    }
+    catch (Exception e) {
+      Trace.warning("Error mapping sort table " + file + ": " + e);
+      return null;
+    }
+  } // mapTable()
+} // class SortOrds
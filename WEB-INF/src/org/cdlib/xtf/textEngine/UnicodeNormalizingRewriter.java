@@ -55,8 +55,12 @@ public class UnicodeNormalizingRewriter extends XtfQueryRewriter
   /** How many recent mappings to maintain */
   private static final int CACHE_SIZE = 5000;
 
-  /** Keep a cache of lookups performed to-date */
-  private FastCache<String, String> cache = new FastCache(CACHE_SIZE);
+  /** 
+   * Keep a cache of lookups performed to-date. It's shared by all instances
+   * (since a new rewriter is made for every query), so access to it must
+   * be synchronized.
+   */
+  private static FastCache<String, String> cache = new FastCache(CACHE_SIZE);
 
   /** Set of fields that are tokenized in the index */
   private Set tokenizedFields;
@@ -86,15 +90,11 @@ public class UnicodeNormalizingRewriter extends XtfQueryRewriter
     if (!tokenizedFields.contains(t.field()))
       return q;
 
-    // Only do the (sometimes lengthy) normalization step if we haven't already 
-    // looked up this token.
+    // Normalize the text. The (sometimes lengthy) normalization step is only
+    // done if we haven't already looked up this token.
     //
     String text = t.text();
-    if (!cache.contains(text)) {
-      String normalizedText = Normalizer.normalize(text);
-      cache.put(text, normalizedText);
-    }
-    String newText = cache.get(text);
+    String newText = normalize(text);
     if (newText.equals(text))
       return q;
     
@@ -116,19 +116,31 @@ public class UnicodeNormalizingRewriter extends XtfQueryRewriter
     if (!tokenizedFields.contains(t.field()))
       return q;
 
-    // Only do the (sometimes lengthy) normalization step if we haven't already 
-    // looked up this token.
+    // Normalize the text. The (sometimes lengthy) normalization step is only
+    // done if we haven't already looked up this token.
     //
     String text = t.text();
-    if (!cache.contains(text)) {
-      String normalizedText = Normalizer.normalize(text);
-      cache.put(text, normalizedText);
-    }
-    String newText = cache.get(text);
+    String newText = normalize(text);
     if (newText.equals(text))
       return q;
     
     Term newTerm = new Term(t.field(), newText);
     return copyBoost(q, new XtfSpanWildcardQuery(newTerm, q.getTermLimit()));
   }
+
+  /** Normalize a word to NFC, using the cache if possible. */
+  private static String normalize(String text) 
+  {
+    synchronized (cache) {
+      String normalizedText = cache.get(text);
+      if (normalizedText != null)
+        return normalizedText;
+    }
+    
+    String normalizedText = Normalizer.normalize(text);
+    synchronized (cache) {
+      cache.put(text, normalizedText);
+    }
+    return normalizedText;
+  }
 } // class UnicodeNormalizingRewriter
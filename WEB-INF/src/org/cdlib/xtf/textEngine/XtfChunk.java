@@ -48,4 +48,5 @@ class XtfChunk extends Chunk
   String sectionType;
   int[] nodeNumbers;
   int[] wordOffsets;
+  byte[] packedTokens;
 }
@@ -3,11 +3,13 @@ package org.cdlib.xtf.textEngine;
 import java.io.IOException;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.Token;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.chunk.Chunk;
 import org.apache.lucene.chunk.ChunkSource;
 import org.apache.lucene.chunk.DocNumMap;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
+import org.cdlib.xtf.textIndexer.PackedTokens;
 import org.cdlib.xtf.util.Trace;
 
 /*
@@ -75,6 +77,8 @@ class XtfChunkSource extends ChunkSource
 
     Document doc = reader.document(chunkNum);
     chunk.text = doc.get(field);
+    if (field.equals("text"))
+      chunk.packedTokens = doc.getBinaryValue(PackedTokens.FIELD_NAME);
 
     // Record the starting node number and word offset.
     try {
@@ -87,6 +91,19 @@ class XtfChunkSource extends ChunkSource
     }
   } // loadText()
 
+  /**
+   * Make a token stream for the chunk's text. If the indexer stored the
+   * tokens, we can skip the work of running the analyzer.
+   */
+  protected TokenStream tokenize(Chunk ct)
+    throws IOException 
+  {
+    XtfChunk chunk = (XtfChunk)ct;
+    if (chunk.packedTokens != null)
+      return PackedTokens.unpack(chunk.packedTokens, chunk.text);
+    return super.tokenize(chunk);
+  } // tokenize()
+
   /**
    * Read in and tokenize a chunk. Maintains a cache of recently loaded
    * chunks for speed.
@@ -88,29 +88,81 @@ public class XtfDocNumMap implements DocNumMap
 
     try 
     {
-      // Figure out how many entries we'll have, and make our array 
-      // that big.
+      // The list for each segment is cached, so an incremental update only
+      // has to scan the new segments.
       //
-      Term term = new Term("docInfo", "1");
-      nDocs = reader.docFreq(term);
-      docNums = new int[nDocs];
-
-      // Get a list of all the "header" chunks for documents in this
-      // index (i.e., documents with a "docInfo" field.)
-      //
-      TermDocs docHeaders = reader.termDocs(term);
-
-      // Record each document number.
-      int i = 0;
-      while (docHeaders.next())
-        docNums[i++] = docHeaders.doc();
-      nDocs = i; // Account for possibly deleted docs
+      int[] nums = (int[])SegmentCache.load(reader, "docInfo", 
+                                            new SegmentLoader());
+      nDocs = nums.length;
+      docNums = nums;
     }
     catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Read the document number of every docInfo chunk in a reader.
+   */
+  private static int[] readDocNums(IndexReader reader)
+    throws IOException 
+  {
+    // Figure out how many entries we'll have, and make our array 
+    // that big.
+    //
+    Term term = new Term("docInfo", "1");
+    int[] nums = new int[reader.docFreq(term)];
+
+    // Get a list of all the "header" chunks for documents in this
+    // index (i.e., documents with a "docInfo" field.)
+    //
+    TermDocs docHeaders = reader.termDocs(term);
+
+    // Record each document number.
+    int i = 0;
+    try {
+      while (docHeaders.next())
+        nums[i++] = docHeaders.doc();
+    }
+    finally {
+      docHeaders.close();
+    }
+
+    // Account for possibly deleted docs
+    if (i < nums.length) {
+      int[] tmp = new int[i];
+      System.arraycopy(nums, 0, tmp, 0, i);
+      nums = tmp;
+    }
+    return nums;
+  } // readDocNums()
+
+  /** Reads doc numbers per segment, and glues the segments together */
+  private static class SegmentLoader implements SegmentCache.Loader 
+  {
+    public Object load(IndexReader reader, boolean wholeIndex)
+      throws IOException 
+    {
+      return readDocNums(reader);
+    }
+
+    public Object compose(Object[] parts, int[] starts, int maxDoc) 
+    {
+      int total = 0;
+      for (int i = 0; i < parts.length; i++)
+        total += ((int[])parts[i]).length;
+
+      int[] ret = new int[total];
+      int n = 0;
+      for (int i = 0; i < parts.length; i++) {
+        int[] part = (int[])parts[i];
+        for (int j = 0; j < part.length; j++)
+          ret[n++] = part[j] + starts[i];
+      }
+      return ret;
+    }
+  } // class SegmentLoader
+
   /** Get the max number of words per chunk */
   public int getChunkSize() {
     return chunkSize;
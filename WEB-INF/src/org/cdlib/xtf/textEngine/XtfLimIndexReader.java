@@ -42,9 +42,16 @@ public class XtfLimIndexReader extends LimIndexReader
 {
   private int killCheckCounter = 0;
 
+  /** 
+   * Thread handling the request. Work may be done by other threads too
+   * (in a parallel search), but this is the one being watched.
+   */
+  private Thread requestThread;
+
   /** Construct the index reader */
   public XtfLimIndexReader(IndexReader toWrap, int workLimit) {
     super(toWrap, workLimit);
+    requestThread = Thread.currentThread();
   } // constructor
 
   /**
@@ -60,12 +67,12 @@ public class XtfLimIndexReader extends LimIndexReader
   {
     super.work(amount);
 
-    // Every once in a while, check if our thread has exceeded its time
+    // Every once in a while, check if the request has exceeded its time
     // limit and should kill itself.
     //
     if (killCheckCounter++ > 1000) {
       killCheckCounter = 0;
-      if (ThreadWatcher.shouldDie(Thread.currentThread()))
+      if (ThreadWatcher.shouldDie(requestThread))
         throw new RuntimeException("Runaway request - time limit exceeded");
     }
   } // work()
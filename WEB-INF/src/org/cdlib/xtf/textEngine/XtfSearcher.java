@@ -37,6 +37,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import org.apache.lucene.bigram.BigramQueryRewriter;
 import org.apache.lucene.chunk.DocNumMap;
@@ -56,7 +57,12 @@ import org.cdlib.xtf.util.WordMap;
 
 /**
  * Used to keep a set of searcher, reader, and doc-num-map that are consistent
- * with each other and also up-to-date.
+ * with each other and also up-to-date.<br>
+ *
+ * A searcher may be shared by many threads. Each user should call
+ * {@link #acquire()} before using it and {@link #release()} afterward; the
+ * creator holds the initial reference. When the last reference is released
+ * the searcher is closed.
  *
  * @author Martin Haye
  */
@@ -113,6 +119,16 @@ public class XtfSearcher
   /** Whether this index is "sparse" (i.e. more than 5 chunks per doc) */
   private boolean isSparse;
 
+  /** Recently rewritten queries (they depend on the stop set, etc.) */
+  private CompiledQueryCache compiledQueries = 
+    new CompiledQueryCache(COMPILED_QUERY_CACHE_SIZE);
+
+  /** Approximate number of rewritten queries to keep */
+  private static final int COMPILED_QUERY_CACHE_SIZE = 500;
+
+  /** Number of outstanding references (the creator holds the first one) */
+  private AtomicInteger refCount = new AtomicInteger(1);
+
   /**
    * Construct a searcher set on the given directory.
    *
@@ -162,6 +178,12 @@ public class XtfSearcher
   public void update()
     throws IOException 
   {
+    // If update checking is disabled, there's no need to look at the disk
+    // at all once we're open.
+    //
+    if (curVersion >= 0 && updatePeriod == 0)
+      return;
+
     // It would be too time-consuming to read the index version number
     // every single time. So only check it periodically.
     //
@@ -184,8 +206,15 @@ public class XtfSearcher
 
     // Okay, better re-open to get the fresh data.
     close();
+    compiledQueries.clear();
     indexReader = IndexReader.open(directory);
 
+    // Let field caches be built per segment, and shared with earlier and
+    // later versions of this index (including rotated copies of it.)
+    //
+    SegmentCache.register(indexReader, 
+      new File(indexPath).getAbsolutePath().replaceAll("(-(new|pending|spare))?/*$", ""));
+
     // Fetch the index information chunk.
     Hits match = new IndexSearcher(indexReader).search(
       new TermQuery(new Term("indexInfo", "1")));
@@ -322,6 +351,34 @@ public class XtfSearcher
     return tokenizedFields;
   }
 
+  /**
+   * Get the cache of recently rewritten queries for this index.
+   */
+  public CompiledQueryCache compiledQueries() {
+    return compiledQueries;
+  }
+
+  /**
+   * Gets the path of the index directory this searcher was opened on.
+   */
+  public String indexPath() {
+    return indexPath;
+  }
+
+  /**
+   * Gets the Lucene directory this searcher reads from.
+   */
+  public Directory directory() {
+    return directory;
+  }
+
+  /**
+   * Gets the version number of the index this searcher has in memory.
+   */
+  public long version() {
+    return curVersion;
+  }
+
   /**
    * Gets the reader this searcher is using to read indexes.
    */
@@ -389,6 +446,36 @@ public class XtfSearcher
     return isSparse;
   }
 
+  /**
+   * Adds a reference to this searcher, so that it won't be closed while in
+   * use. Each successful call must be balanced by a call to
+   * {@link #release()}.
+   *
+   * @return true if the reference was added, or false if the searcher has
+   *         already been closed (the caller should obtain a newer one.)
+   */
+  public boolean acquire()
+  {
+    while (true) {
+      int count = refCount.get();
+      if (count <= 0)
+        return false;
+      if (refCount.compareAndSet(count, count + 1))
+        return true;
+    }
+  } // acquire()
+
+  /**
+   * Drops a reference to this searcher. When the last reference is dropped,
+   * the searcher and all its dependencies are closed.
+   */
+  public void release()
+    throws IOException 
+  {
+    if (refCount.decrementAndGet() == 0)
+      close();
+  } // release()
+
   /**
    * Close down the searcher and all its dependencies.
    */
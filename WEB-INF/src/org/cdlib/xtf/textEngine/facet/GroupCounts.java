@@ -92,6 +92,67 @@ public class GroupCounts
       conservativePrep();
   } // constructor
 
+  /**
+   * Construct an object with the same groups and selections as another,
+   * but with all counts at zero.
+   */
+  private GroupCounts(GroupCounts other) 
+  {
+    data = other.data;
+    spec = other.spec;
+    hitQueueMaker = other.hitQueueMaker;
+
+    if (!data.isDynamic()) {
+      count = new int[data.nGroups()];
+      score = new float[data.nGroups()];
+    }
+    mark = new int[data.nGroups()];
+    selection = other.selection.clone();
+    startDoc = other.startDoc.clone();
+    maxDocs = other.maxDocs.clone();
+    hitQueue = new PriorityQueue[data.nGroups()];
+    sortedChild = other.sortedChild;
+    sortedSibling = other.sortedSibling;
+  } // constructor
+
+  /**
+   * Make an empty copy of this object, for counting a separate set of
+   * documents (e.g. one partition of a parallel search.) The counts can 
+   * later be combined using {@link #merge(GroupCounts)}.
+   */
+  public GroupCounts emptyCopy() {
+    return new GroupCounts(this);
+  }
+
+  /**
+   * Add in the counts, scores, and hits from another object made by
+   * {@link #emptyCopy()}. The documents counted by the two must not
+   * overlap.
+   */
+  public void merge(GroupCounts other) 
+  {
+    assert other.data == data;
+    for (int group = 0; group < data.nGroups(); group++) 
+    {
+      if (!data.isDynamic()) {
+        count[group] += other.count[group];
+        score[group] = Math.max(score[group], other.score[group]);
+      }
+
+      // Combine the hit queues, if any.
+      PriorityQueue otherQueue = other.hitQueue[group];
+      if (otherQueue == null)
+        continue;
+      if (hitQueue[group] == null) {
+        hitQueue[group] = otherQueue;
+        continue;
+      }
+      while (otherQueue.size() > 0)
+        hitQueue[group].insert(otherQueue.pop());
+    }
+    other.hitQueue = new PriorityQueue[data.nGroups()];
+  } // merge()
+
   /** Gather data about which groups to gather DocHits for. */
   private void conservativePrep() 
   {
@@ -29,23 +29,45 @@ package org.cdlib.xtf.textEngine.facet;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
 import java.util.WeakHashMap;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermPositions;
 import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.IntList;
+import org.cdlib.xtf.textEngine.IndexUtil;
+import org.cdlib.xtf.textEngine.SegmentCache;
+import org.cdlib.xtf.util.Path;
+import org.cdlib.xtf.util.Trace;
 
 /**
  * This class contains the mapping, for a given field, from documents to
- * one or more term values in that document.
+ * one or more term values in that document.<br><br>
+ *
+ * The data can either be built by scanning the terms of the field, or
+ * memory-mapped from a facet table written at index time (see 
+ * {@link #writeTables(File)}). Tables are stamped with the version of the
+ * index they were built from, and are ignored if the index has changed
+ * since.
  *
  * @author Martin Haye
  */
@@ -54,8 +76,26 @@ public class StaticGroupData extends GroupData
   /** The particular field we have data from */
   private String field;
 
+  /** Name of the file (in the index directory) listing the facet fields */
+  public static final String FACET_FIELDS_FILE = "facetFields.txt";
+
+  /** Sub-directory of the index in which facet tables are stored */
+  public static final String TABLE_DIR = "facets";
+
+  /** Marks the start of a facet table file ("XTFT") */
+  private static final int TABLE_MAGIC = 0x58544654;
+
+  /** Version of the facet table format we read and write */
+  private static final int TABLE_FORMAT = 1;
+
+  /** Size of the fixed header at the start of each table */
+  private static final int TABLE_HEADER_SIZE = 32;
+
   /** Array of document IDs */
-  private int[] docs;
+  private IntBuffer docs;
+
+  /** Number of documents in the 'docs' array */
+  private int nDocs;
 
   /**
    * Array of links: 0..docs.length is either positive to indicate a single group
@@ -63,19 +103,34 @@ public class StaticGroupData extends GroupData
    * of groups. docs.length..links.length holds the extra groups; each entry is
    * a group number, negative to mean end of the groups for a single doc.
    */
-  private int[] links;
+  private IntBuffer links;
 
   /** Array of group names */
   private String[] groups;
 
   /** The parent of each group, or -1 for none */
-  private int[] groupParents;
+  private IntBuffer groupParents;
 
   /** The first child of each group, or -1 for none. */
-  private int[] groupChildren;
+  private IntBuffer groupChildren;
 
   /** The next sibling of each group, or -1 for none. */
-  private int[] groupSiblings;
+  private IntBuffer groupSiblings;
+
+  /** 
+   * For data built from a single segment, the terms that were processed 
+   * (in term order), used when combining segments. Null otherwise.
+   */
+  private String[] termTexts;
+
+  /** Group number for each of the termTexts */
+  private int[] termGroups;
+
+  /** 
+   * For data built from a single segment, true if the segment had no terms
+   * at all in or after our field.
+   */
+  private boolean noTerms;
 
   /** Cached data. If the reader goes away, our cache will too. */
   private static WeakHashMap cache = new WeakHashMap();
@@ -87,12 +142,36 @@ public class StaticGroupData extends GroupData
    * 
    * Synchronized so that if a bunch of threads come in wanting to load the same
    * data, we won't waste time and memory loading it over and over.
+   * 
+   * If the reader's directory is on disk, a facet table written there by
+   * the indexer is used if present and up to date.
    *
    * @param reader  Where to read the data from
    * @param field   Which field to read
    * @return        Group data for the specified field
    */
-  public static synchronized StaticGroupData getCachedData(IndexReader reader, String field)
+  public static StaticGroupData getCachedData(IndexReader reader, String field)
+    throws IOException 
+  {
+    File indexDir = IndexUtil.indexDir(reader.directory());
+    return getCachedData(reader, 
+                         (indexDir == null) ? null : indexDir.toString(),
+                         field);
+  } // getCachedData()
+
+  /**
+   * Like {@link #getCachedData(IndexReader, String)}, but looks for the
+   * pre-built facet table in the given index directory. Falls back to 
+   * scanning the terms if there's no table or it is out of date.
+   *
+   * @param reader    Where to read the data from
+   * @param indexPath Directory of the index, or null to skip facet tables
+   * @param field     Which field to read
+   * @return          Group data for the specified field
+   */
+  public static synchronized StaticGroupData getCachedData(IndexReader reader,
+                                                           String indexPath,
+                                                           String field)
     throws IOException 
   {
     // See if we have a cache for this reader.
@@ -106,8 +185,15 @@ public class StaticGroupData extends GroupData
     StaticGroupData data = (StaticGroupData)readerCache.get(field);
     if (data == null) 
     {
-      // Don't have cached data, so read and remember it.
-      data = new StaticGroupData(reader, field);
+      // Don't have cached data. Try for a table built by the indexer, and
+      // failing that, read it from the terms. Either way, remember it.
+      //
+      if (indexPath != null)
+        data = mapTable(tableFile(indexPath, field), reader, field);
+      if (data == null) {
+        data = (StaticGroupData)SegmentCache.load(reader, "facet|" + field,
+                                                  new SegmentLoader(field));
+      }
       readerCache.put(field, data);
     }
 
@@ -124,6 +210,22 @@ public class StaticGroupData extends GroupData
    */
   public StaticGroupData(IndexReader reader, String field)
     throws IOException 
+  {
+    this(reader, field, true);
+  }
+
+  /**
+   * Read in the term data for a given field.
+   *
+   * @param reader      Where to read the term data from
+   * @param field       Which field to read
+   * @param wholeIndex  false if the reader is a single segment of the index,
+   *                    in which case the field may be missing, and we keep
+   *                    the term list so the segments can later be combined.
+   */
+  private StaticGroupData(IndexReader reader, String field, 
+                          boolean wholeIndex)
+    throws IOException 
   {
     this.field = field;
 
@@ -135,6 +237,8 @@ public class StaticGroupData extends GroupData
     HashMap childMap = new HashMap();
     HashMap docMap = new HashMap();
     HashSet lcTerms = new HashSet();
+    Vector termVec = wholeIndex ? null : new Vector();
+    IntList termKeys = wholeIndex ? null : new IntList();
     int nLinks = 0;
 
     // Add a default root group.
@@ -146,10 +250,12 @@ public class StaticGroupData extends GroupData
     //
     try 
     {
-      if (termEnum.term() == null)
+      boolean more = (termEnum.term() != null);
+      if (!more && wholeIndex)
         throw new RuntimeException("no terms in field " + field);
+      noTerms = !more;
 
-      do 
+      for (; more; more = termEnum.next()) 
       {
         Term term = termEnum.term();
         if (!term.field().equals(field))
@@ -171,6 +277,10 @@ public class StaticGroupData extends GroupData
         if (termText.length() == 0)
           termText = "<empty>";
         Integer termKey = addTermKey(termText, groupVec, groupMap, childMap);
+        if (termVec != null) {
+          termVec.add(term.text());
+          termKeys.add(termKey.intValue());
+        }
 
         // Now process each document which contains this term.
         termPositions.seek(termEnum);
@@ -195,34 +305,459 @@ public class StaticGroupData extends GroupData
           docGroups.add(termKey);
           nLinks++;
         } // while( termPositions.next() )
-      } while (termEnum.next());
+      } // for
     }
     finally {
       termPositions.close();
       termEnum.close();
     }
 
-    // Build the final array of groups. Basically we just take the last
-    // component of each path.
+    // Keep the term list if we'll need to combine segments later.
+    if (termVec != null) {
+      termTexts = (String[])termVec.toArray(new String[termVec.size()]);
+      termGroups = termKeys.toArray();
+    }
+
+    // Build the final array of groups.
+    buildGroups(groupVec);
+
+    // Build the group parent/child/sibling tables.
+    buildHierarchy(childMap);
+
+    // Now we're ready to build our final arrays that condense all the
+    // document -> group information.
     //
+    buildLinks(docMap, nLinks);
+  } // constructor
+
+  /** Construct an empty object, to be filled in by the caller */
+  private StaticGroupData(String field) {
+    this.field = field;
+  }
+
+  /**
+   * Build the final array of groups. Basically we just take the last
+   * component of each path.
+   */
+  private void buildGroups(Vector groupVec) 
+  {
     groups = (String[])groupVec.toArray(new String[groupVec.size()]);
     for (int i = 0; i < groups.length; i++) {
       int lastSep = groups[i].lastIndexOf("::");
       if (lastSep >= 0)
         groups[i] = groups[i].substring(lastSep + 2);
     }
+  } // buildGroups()
 
-    // Build the group parent/child/sibling tables.
-    buildHierarchy(childMap);
+  /**
+   * Combine data built from each segment of an index into data for the whole
+   * index. The result is the same as what scanning the full reader would
+   * produce, but much quicker to arrive at.
+   *
+   * @param field   The field the data is for
+   * @param parts   Data for each segment, in order
+   * @param starts  First document ID of each segment
+   */
+  private static StaticGroupData compose(String field, Object[] parts,
+                                         int[] starts) 
+  {
+    // Just as for a scan of the full reader, it's an error if none of the
+    // segments have any terms.
+    //
+    checkTerms(field, parts);
 
-    // Now we're ready to build our final arrays that condense all the
-    // document -> group information.
+    StaticGroupData ret = new StaticGroupData(field);
+
+    // Gather the terms from all the segments, in term order.
+    TreeSet allTerms = new TreeSet();
+    for (int i = 0; i < parts.length; i++)
+      allTerms.addAll(Arrays.asList(((StaticGroupData)parts[i]).termTexts));
+
+    // Assign groups just as a scan of the full reader would, including
+    // skipping terms that differ only in case from an earlier one.
     //
-    docs = new int[docMap.size()];
-    links = new int[nLinks];
-    buildLinks(docMap);
+    HashMap groupMap = new HashMap();
+    Vector groupVec = new Vector();
+    HashMap childMap = new HashMap();
+    HashSet lcTerms = new HashSet();
+    HashSet skippedTerms = new HashSet();
+
+    groupVec.add("");
+    groupMap.put("", Integer.valueOf(0));
+
+    for (Iterator iter = allTerms.iterator(); iter.hasNext();) 
+    {
+      String text = (String)iter.next();
+      String lcTerm = text.toLowerCase();
+      if (lcTerms.contains(lcTerm)) {
+        skippedTerms.add(text);
+        continue;
+      }
+      lcTerms.add(lcTerm);
+      ret.addTermKey(text.length() == 0 ? "<empty>" : text, 
+                     groupVec, groupMap, childMap);
+    }
+
+    ret.buildGroups(groupVec);
+    ret.buildHierarchy(childMap);
+
+    // Figure out how each segment's groups map to the combined groups.
+    int[][] groupXlat = new int[parts.length][];
+    for (int i = 0; i < parts.length; i++) 
+    {
+      StaticGroupData part = (StaticGroupData)parts[i];
+      String[] paths = part.groupPaths();
+      int[] xlat = groupXlat[i] = new int[paths.length];
+      for (int g = 0; g < paths.length; g++) {
+        Integer key = (Integer)groupMap.get(paths[g]);
+        xlat[g] = (key == null) ? -1 : key.intValue();
+      }
+
+      // Documents with a skipped term don't get linked to it.
+      for (int t = 0; t < part.termTexts.length; t++) {
+        if (skippedTerms.contains(part.termTexts[t]))
+          xlat[part.termGroups[t]] = -1;
+      }
+    }
+
+    // Count up the documents and links we'll need.
+    IntList docGroups = new IntList();
+    int nDocs = 0;
+    int nLinks = 0;
+    for (int i = 0; i < parts.length; i++) 
+    {
+      StaticGroupData part = (StaticGroupData)parts[i];
+      for (int j = 0; j < part.nDocs; j++) 
+      {
+        part.docGroups(j, groupXlat[i], docGroups);
+        if (docGroups.isEmpty())
+          continue;
+        nDocs++;
+        nLinks += (docGroups.size() == 1) ? 1 : (docGroups.size() + 1);
+      }
+    }
+
+    // And fill them in.
+    int[] docs = new int[nDocs];
+    int[] links = new int[nLinks];
+    int topLink = nDocs;
+    int d = 0;
+    for (int i = 0; i < parts.length; i++) 
+    {
+      StaticGroupData part = (StaticGroupData)parts[i];
+      for (int j = 0; j < part.nDocs; j++) 
+      {
+        part.docGroups(j, groupXlat[i], docGroups);
+        if (docGroups.isEmpty())
+          continue;
+        docs[d] = part.docs.get(j) + starts[i];
+        if (docGroups.size() == 1)
+          links[d] = docGroups.get(0);
+        else 
+        {
+          links[d] = -topLink;
+          for (int k = 0; k < docGroups.size(); k++) {
+            int groupNum = docGroups.get(k);
+            links[topLink++] = (k == docGroups.size() - 1) ? -groupNum 
+                                                           : groupNum;
+          }
+        }
+        d++;
+      }
+    }
+    assert topLink == links.length : "incorrect calculation";
+
+    ret.nDocs = nDocs;
+    ret.docs = IntBuffer.wrap(docs);
+    ret.links = IntBuffer.wrap(links);
+    return ret;
+  } // compose()
+
+  /**
+   * Throw an error if none of the segments had any terms in or after the
+   * field.
+   */
+  private static void checkTerms(String field, Object[] parts) 
+  {
+    for (int i = 0; i < parts.length; i++) {
+      if (!((StaticGroupData)parts[i]).noTerms)
+        return;
+    }
+    throw new RuntimeException("no terms in field " + field);
+  } // checkTerms()
+
+  /**
+   * Get the translated groups of one of our documents.
+   *
+   * @param docIndex    Index of the document in the 'docs' array
+   * @param xlat        Translation of our group numbers (-1 to skip)
+   * @param out         Receives the groups
+   */
+  private void docGroups(int docIndex, int[] xlat, IntList out) 
+  {
+    out.clear();
+    int first = links.get(docIndex);
+    for (int link = (first >= 0) ? docIndex : -first; link >= 0;
+         link = nextLink(link)) 
+    {
+      int group = xlat[linkGroup(link)];
+      if (group >= 0)
+        out.add(group);
+    }
+  } // docGroups()
+
+  /** Re-form the full hierarchical path of each group */
+  private String[] groupPaths() 
+  {
+    String[] paths = new String[groups.length];
+    for (int g = 0; g < groups.length; g++)
+      groupPath(g, paths);
+    return paths;
+  }
+
+  /** Calculate (and record) the full path of a group */
+  private String groupPath(int group, String[] paths) 
+  {
+    if (paths[group] == null) {
+      int parent = parent(group);
+      paths[group] = (parent <= 0) ? groups[group] 
+                     : (groupPath(parent, paths) + "::" + groups[group]);
+    }
+    return paths[group];
+  } // groupPath()
+
+  /** Builds data per segment, and glues the segments together */
+  private static class SegmentLoader implements SegmentCache.Loader 
+  {
+    private String field;
+
+    SegmentLoader(String field) {
+      this.field = field;
+    }
+
+    public Object load(IndexReader reader, boolean wholeIndex)
+      throws IOException 
+    {
+      // Always keep the term list, since segments we build now may be 
+      // combined with others after the next update.
+      //
+      StaticGroupData data = new StaticGroupData(reader, field, false);
+      if (wholeIndex)
+        checkTerms(field, new Object[] { data });
+      return data;
+    }
+
+    public Object compose(Object[] parts, int[] starts, int maxDoc) {
+      return StaticGroupData.compose(field, parts, starts);
+    }
+  } // class SegmentLoader
+
+  /**
+   * Construct from a memory-mapped facet table. The buffer must already
+   * have been validated by {@link #mapTable(File, IndexReader, String)}.
+   */
+  private StaticGroupData(String field, ByteBuffer buf)
+    throws IOException 
+  {
+    this.field = field;
+
+    buf.position(20);
+    int nGroups = buf.getInt();
+    nDocs = buf.getInt();
+    int nLinks = buf.getInt();
+
+    int pos = TABLE_HEADER_SIZE;
+    docs = IndexUtil.intSlice(buf, pos, nDocs);
+    pos += nDocs * 4;
+    links = IndexUtil.intSlice(buf, pos, nLinks);
+    pos += nLinks * 4;
+    groupParents = IndexUtil.intSlice(buf, pos, nGroups);
+    pos += nGroups * 4;
+    groupChildren = IndexUtil.intSlice(buf, pos, nGroups);
+    pos += nGroups * 4;
+    groupSiblings = IndexUtil.intSlice(buf, pos, nGroups);
+    pos += nGroups * 4;
+
+    // The group names are variable-length, so we decode them up front.
+    buf.position(pos);
+    groups = new String[nGroups];
+    byte[] bytes = new byte[256];
+    for (int i = 0; i < nGroups; i++) {
+      int len = buf.getInt();
+      if (len > bytes.length)
+        bytes = new byte[len * 2];
+      buf.get(bytes, 0, len);
+      groups[i] = new String(bytes, 0, len, "UTF-8");
+    }
   } // constructor
 
+  /**
+   * Get the facet table file for a given field of an index.
+   *
+   * @param indexPath   Directory containing the index
+   * @param field       Name of the facet field
+   */
+  public static File tableFile(String indexPath, String field) {
+    return new File(Path.normalizePath(indexPath + "/" + TABLE_DIR + "/" + 
+                                       field + ".tbl"));
+  }
+
+  /**
+   * Read in the list of facet fields recorded for an index by the indexer.
+   *
+   * @param indexPath   Directory containing the index
+   * @return            Set of field names (empty if none recorded)
+   */
+  public static Set readFacetFields(String indexPath)
+    throws IOException 
+  {
+    LinkedHashSet facetFields = new LinkedHashSet();
+    File file = new File(Path.normalizePath(indexPath + "/" + 
+                                            FACET_FIELDS_FILE));
+    if (file.canRead()) {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      String line;
+      while ((line = reader.readLine()) != null)
+        facetFields.add(line);
+      reader.close();
+    }
+    return facetFields;
+  } // readFacetFields()
+
+  /**
+   * Build and write a facet table for every facet field of an index. This
+   * should be done after the index has been optimized, since any later 
+   * change to the index makes the tables stale (they're then ignored.)
+   *
+   * @param indexDir    Directory containing the index
+   */
+  public static void writeTables(File indexDir)
+    throws IOException 
+  {
+    String indexPath = indexDir.toString();
+    Set fields = readFacetFields(indexPath);
+    if (fields.isEmpty())
+      return;
+
+    File tableDir = new File(indexDir, TABLE_DIR);
+    if (!tableDir.isDirectory() && !tableDir.mkdirs())
+      throw new IOException("Unable to create directory " + tableDir);
+
+    IndexReader reader = IndexReader.open(indexDir);
+    try 
+    {
+      for (Iterator iter = fields.iterator(); iter.hasNext();) 
+      {
+        String field = (String)iter.next();
+        StaticGroupData data;
+        try {
+          data = new StaticGroupData(reader, field);
+        }
+        catch (RuntimeException e) {
+          // No terms in the field (e.g. all its documents were deleted.)
+          tableFile(indexPath, field).delete();
+          continue;
+        }
+        data.writeTable(tableFile(indexPath, field), reader);
+      }
+    }
+    finally {
+      reader.close();
+    }
+  } // writeTables()
+
+  /**
+   * Write this data out as a facet table that can later be memory-mapped.
+   *
+   * @param file    File to write to (replaced if it exists)
+   * @param reader  The reader the data was built from
+   */
+  public void writeTable(File file, IndexReader reader)
+    throws IOException 
+  {
+    // As with the other index files, don't overwrite in place since that 
+    // would mess with indexes that have hard-links to the existing file.
+    // Instead, write a new one and then rename.
+    //
+    File tmpFile = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try 
+    {
+      out.writeInt(TABLE_MAGIC);
+      out.writeInt(TABLE_FORMAT);
+      out.writeLong(reader.getVersion());
+      out.writeInt(reader.maxDoc());
+      out.writeInt(groups.length);
+      out.writeInt(nDocs);
+      out.writeInt(links.capacity());
+
+      writeInts(out, docs);
+      writeInts(out, links);
+      writeInts(out, groupParents);
+      writeInts(out, groupChildren);
+      writeInts(out, groupSiblings);
+
+      for (int i = 0; i < groups.length; i++) {
+        byte[] bytes = groups[i].getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+    finally {
+      out.close();
+    }
+
+    file.delete();
+    if (!tmpFile.renameTo(file))
+      throw new IOException("Unable to rename " + tmpFile + " to " + file);
+  } // writeTable()
+
+  /** Write out the entire contents of an int buffer */
+  private static void writeInts(DataOutputStream out, IntBuffer buf)
+    throws IOException 
+  {
+    for (int i = 0; i < buf.capacity(); i++)
+      out.writeInt(buf.get(i));
+  }
+
+  /**
+   * Memory-map a facet table previously written by the indexer.
+   *
+   * @param file    The table file
+   * @param reader  Reader the data will be used with
+   * @param field   Name of the facet field
+   * @return        The mapped data, or null if the table doesn't exist, is
+   *                damaged, or was built from a different version of the 
+   *                index.
+   */
+  private static StaticGroupData mapTable(File file, IndexReader reader,
+                                          String field)
+  {
+    try 
+    {
+      ByteBuffer buf = IndexUtil.mapTable(file, "facet", TABLE_MAGIC, 
+                                          TABLE_FORMAT, TABLE_HEADER_SIZE,
+                                          reader);
+      if (buf == null)
+        return null;
+
+      long minSize = TABLE_HEADER_SIZE + 
+                     ((long)buf.getInt(24) + buf.getInt(28) + 
+                      (buf.getInt(20) * 3L)) * 4;
+      if (buf.capacity() < minSize) {
+        Trace.warning("Ignoring truncated facet table " + file);
+        return null;
+      }
+
+      return new StaticGroupData(field, buf);
+    }
+    catch (Exception e) {
+      Trace.warning("Error mapping facet table " + file + ": " + e);
+      return null;
+    }
+  } // mapTable()
+
   /**
    * Add the given term to the group vector and map. If it's hierarchical,
    * add relationships for the parent and all ancestors as well.
@@ -293,13 +828,13 @@ public class StaticGroupData extends GroupData
    */
   private void buildHierarchy(HashMap childMap) 
   {
-    groupParents = new int[groups.length];
+    int[] groupParents = new int[groups.length];
     Arrays.fill(groupParents, -1);
 
-    groupChildren = new int[groups.length];
+    int[] groupChildren = new int[groups.length];
     Arrays.fill(groupChildren, -1);
 
-    groupSiblings = new int[groups.length];
+    int[] groupSiblings = new int[groups.length];
     Arrays.fill(groupSiblings, -1);
 
     for (Iterator iter = childMap.keySet().iterator(); iter.hasNext();) 
@@ -323,15 +858,23 @@ public class StaticGroupData extends GroupData
         prev = child;
       }
     }
+
+    this.groupParents = IntBuffer.wrap(groupParents);
+    this.groupChildren = IntBuffer.wrap(groupChildren);
+    this.groupSiblings = IntBuffer.wrap(groupSiblings);
   } // buildHierarchy()
 
   /**
    * Perform the final build step, forming the 'docs' and 'links' arrays.
    *
    * @param docMap  Map of document ID to vector of group IDs
+   * @param nLinks  Total number of links required
    */
-  private void buildLinks(HashMap docMap) 
+  private void buildLinks(HashMap docMap, int nLinks) 
   {
+    int[] docs = new int[docMap.size()];
+    int[] links = new int[nLinks];
+
     // Get an array of all the documents, sorted by document ID.
     ArrayList keyList = new ArrayList(docMap.keySet());
     assert keyList.size() == docs.length : "incorrect calculation";
@@ -365,6 +908,10 @@ public class StaticGroupData extends GroupData
 
     // We should have just the right number of links; no more, no less.
     assert topLink == links.length : "incorrect calculation";
+
+    this.nDocs = docs.length;
+    this.docs = IntBuffer.wrap(docs);
+    this.links = IntBuffer.wrap(links);
   } // buildLinks()
 
   /**
@@ -376,21 +923,31 @@ public class StaticGroupData extends GroupData
    */
   public final int firstLink(int docId) 
   {
-    int found = Arrays.binarySearch(docs, docId);
-    if (found < 0 || found >= docs.length)
-      return -1;
-
-    if (links[found] >= 0)
-      return found;
-    else
-      return -links[found];
+    // Binary search for the document.
+    int lo = 0;
+    int hi = nDocs - 1;
+    while (lo <= hi) 
+    {
+      int mid = (lo + hi) >>> 1;
+      int midDoc = docs.get(mid);
+      if (midDoc < docId)
+        lo = mid + 1;
+      else if (midDoc > docId)
+        hi = mid - 1;
+      else 
+      {
+        int link = links.get(mid);
+        return (link >= 0) ? mid : -link;
+      }
+    }
+    return -1;
   } // getDocLink()
 
   /** Return the ID of the link after the specified one, or -1 if no more */
   public final int nextLink(int linkId) {
-    if (linkId < docs.length)
+    if (linkId < nDocs)
       return -1;
-    else if (links[linkId] < 0)
+    else if (links.get(linkId) < 0)
       return -1;
     else
       return linkId + 1;
@@ -398,7 +955,7 @@ public class StaticGroupData extends GroupData
 
   /** Returns the group number of the specified link */
   public final int linkGroup(int linkId) {
-    int n = links[linkId];
+    int n = links.get(linkId);
     return (n < 0) ? -n : n;
   } // getLinkGroup()
 
@@ -419,26 +976,26 @@ public class StaticGroupData extends GroupData
 
   /** Get the parent of the given group, or -1 if group is the root */
   public final int parent(int groupId) {
-    return groupParents[groupId];
+    return groupParents.get(groupId);
   }
 
   /** Get the number of children a group has */
   public final int nChildren(int groupId) {
     int nChildren = 0;
-    for (int kid = groupChildren[groupId]; kid >= 0;
-         kid = groupSiblings[kid])
+    for (int kid = groupChildren.get(groupId); kid >= 0;
+         kid = groupSiblings.get(kid))
       nChildren++;
     return nChildren;
   }
 
   /** Get the first child of the given group, or -1 if it has no children */
   public final int child(int groupId) {
-    return groupChildren[groupId];
+    return groupChildren.get(groupId);
   }
 
   /** Get the sibling of the given group, or -1 if no more */
   public final int sibling(int groupId) {
-    return groupSiblings[groupId];
+    return groupSiblings.get(groupId);
   }
 
   /** Compare two groups for sort order */
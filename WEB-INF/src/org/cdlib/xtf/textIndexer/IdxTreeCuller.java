@@ -96,6 +96,26 @@ public class IdxTreeCuller
   public void cullIndex(File xtfHome, IndexInfo idxInfo, 
                         File srcRootFile, SubDirFilter subDirFilter)
     throws Exception 
+  {
+    cullIndex(xtfHome, idxInfo, srcRootFile, subDirFilter, null);
+  } // cullIndex()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Like {@link #cullIndex(File,IndexInfo,File,SubDirFilter)}, but uses the
+   * manifest of source files built up while scanning the source tree to
+   * avoid checking each file on disk. Files in directories that weren't
+   * scanned are still checked individually. The manifest is updated to
+   * reflect any documents removed.
+   *
+   * @param manifest        Manifest of the index's source files, or null
+   *                        to check every file on disk.
+   */
+  public void cullIndex(File xtfHome, IndexInfo idxInfo, 
+                        File srcRootFile, SubDirFilter subDirFilter,
+                        SrcManifest manifest)
+    throws Exception 
   {
     // Start with no Path fields encountered, and no documents culled.
     int docCount = 0;
@@ -109,6 +129,7 @@ public class IdxTreeCuller
       // throw, skip the index.
       //
       String idxPath = Path.resolveRelOrAbs(xtfHome, idxInfo.indexPath);
+      File idxDir = new File(idxPath);
       indexReader = IndexReader.open(NativeFSDirectory.getDirectory(idxPath));
       termEnum = indexReader.terms(new Term("key", ""));
 
@@ -141,7 +162,7 @@ public class IdxTreeCuller
         docCount++;
 
         // If the source XML document doesn't exist...
-        if (!currFile.exists()) 
+        if (isMissing(key, currFile, manifest)) 
         {
           // In a non-optimized index, the document may still be in the term list
           // but actually have been deleted.
@@ -156,6 +177,10 @@ public class IdxTreeCuller
           Trace.tab();
           Trace.info("[" + relPath + "] ... ");
 
+          // The manifest will be out of date until we're done.
+          if (manifest != null && cullCount == 0)
+            SrcManifest.invalidate(idxDir);
+
           // Delete all chunks for the missing document.
           int nDel = indexReader.deleteDocuments(new Term("key", key));
 
@@ -194,6 +219,8 @@ public class IdxTreeCuller
           Trace.untab();
 
           // Track how many documents we've culled.
+          if (manifest != null)
+            manifest.remove(key);
           cullCount++;
 
           // Output info.
@@ -226,10 +253,15 @@ public class IdxTreeCuller
       } // if( docCount == cullCount )
 
       // Close the term enumeration and reader.
+      int numDocs = indexReader.numDocs();
       termEnum.close();
       termEnum = null;
       indexReader.close();
       indexReader = null;
+
+      // Bring the manifest up to date.
+      if (manifest != null && cullCount > 0 && !indexDeleted)
+        manifest.save(idxDir, numDocs);
       
       // The current index isn't empty, but if we deleted a
       // document from it, say so.
@@ -284,6 +316,26 @@ public class IdxTreeCuller
     }
   } // cullIndex()
 
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Determine whether the source file for a document no longer exists. If
+   * the manifest says the file's directory was scanned, the answer is
+   * already known; otherwise, check the file itself.
+   */
+  private boolean isMissing(String key, File currFile, SrcManifest manifest)
+  {
+    if (manifest != null) 
+    {
+      int entry = manifest.find(key);
+      if (entry >= 0 && manifest.wasSeen(entry))
+        return false;
+      if (entry >= 0 && manifest.wasScanned(key))
+        return true;
+    }
+    return !currFile.exists();
+  } // isMissing()
+
   ////////////////////////////////////////////////////////////////////////////
   private void deleteIndex(File idxDirToCull)
     throws IOException 
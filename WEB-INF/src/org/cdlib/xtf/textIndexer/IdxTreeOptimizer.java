@@ -30,11 +30,16 @@ package org.cdlib.xtf.textIndexer;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.cdlib.xtf.lazyTree.LazyTreeBuilder;
 import org.cdlib.xtf.textEngine.NativeFSDirectory;
+import org.cdlib.xtf.textEngine.SortOrds;
+import org.cdlib.xtf.textEngine.facet.StaticGroupData;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.Trace;
 
@@ -59,6 +64,13 @@ import org.cdlib.xtf.util.Trace;
  */
 public class IdxTreeOptimizer 
 {
+  /** 
+   * Marker file written to an index's lazy directory once all its lazy 
+   * files have been converted to the packed node format.
+   */
+  static final String LAZY_UPGRADED_FILE = 
+    "upgraded-" + LazyTreeBuilder.PACKED_NODES_VERSION;
+
   ////////////////////////////////////////////////////////////////////////////
 
   /**
@@ -108,7 +120,8 @@ public class IdxTreeOptimizer
   ////////////////////////////////////////////////////////////////////////////
 
   /**
-   * Performs the actual work of optimizing a Lucene index.
+   * Performs the actual work of optimizing a Lucene index, and then writes
+   * its facet and sort tables.
    * <br><br>
    *
    * @param  idxDirToOptimize   The index database directory clean. This
@@ -150,6 +163,17 @@ public class IdxTreeOptimizer
       // Close the index.
       indexWriter.close();
 
+      // Now that the index is in its final form, build the facet and sort
+      // tables so the servlets can map them instead of scanning the terms.
+      //
+      StaticGroupData.writeTables(idxDirToOptimize);
+      SortOrds.writeTables(idxDirToOptimize);
+
+      // Convert any lazy tree files made before the packed node format
+      // (only needed once per index.)
+      //
+      upgradeLazyTree(new File(idxDirToOptimize, "lazy"));
+
       // Indicate that we're done.
       Trace.more(Trace.info, "Done.");
     } //  try( to open the specified index )
@@ -161,4 +185,67 @@ public class IdxTreeOptimizer
 
     Trace.untab();
   } // optimizeIndex()
+
+  /**
+   * Converts the lazy tree files of an index to the current format, unless
+   * that has already been done. Once every file has been converted, a 
+   * marker file is written so later runs needn't open them all again.
+   *
+   * @param lazyDir   The index's lazy file directory
+   */
+  static void upgradeLazyTree(File lazyDir) 
+  {
+    File marker = new File(lazyDir, LAZY_UPGRADED_FILE);
+    if (!lazyDir.isDirectory() || marker.exists())
+      return;
+
+    int[] nFailed = new int[1];
+    upgradeLazyFiles(lazyDir, nFailed);
+    if (nFailed[0] > 0)
+      return;
+
+    try {
+      new FileOutputStream(marker).close();
+    }
+    catch (IOException e) {
+      Trace.warning("Unable to create '" + marker + "': " + e);
+    }
+  } // upgradeLazyTree()
+
+  /**
+   * Converts lazy tree files in the given directory (and its
+   * sub-directories) to the current format, if they're older. A file that
+   * can't be converted is left as it is.
+   *
+   * @param lazyDir   Directory to scan
+   * @param nFailed   Element 0 is incremented for each file that couldn't
+   *                  be converted
+   * @return          Number of files converted
+   */
+  static int upgradeLazyFiles(File lazyDir, int[] nFailed) 
+  {
+    String[] subFiles = lazyDir.list();
+    if (subFiles == null)
+      return 0;
+
+    int nConverted = 0;
+    for (int i = 0; i < subFiles.length; i++) 
+    {
+      File file = new File(lazyDir, subFiles[i]);
+      if (file.isDirectory())
+        nConverted += upgradeLazyFiles(file, nFailed);
+      else if (subFiles[i].endsWith(".lazy")) 
+      {
+        try {
+          if (LazyTreeBuilder.upgrade(file))
+            nConverted++;
+        }
+        catch (Exception e) {
+          Trace.warning("Unable to convert lazy file '" + file + "': " + e);
+          nFailed[0]++;
+        }
+      }
+    }
+    return nConverted;
+  } // upgradeLazyFiles()
 }
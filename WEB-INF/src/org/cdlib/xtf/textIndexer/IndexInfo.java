@@ -164,6 +164,13 @@ public class IndexInfo
    */
   public boolean stripWhitespace = false;
 
+  /**
+   * Whether to store the tokens of each text chunk in the index. Makes the
+   * index somewhat larger, but snippets can then be made without running
+   * the analyzer over the text again.
+   */
+  public boolean storeTokens = false;
+
   /** Text chunk attribute array. Currently this array consists of two entries:
    *  <br><br>
    *
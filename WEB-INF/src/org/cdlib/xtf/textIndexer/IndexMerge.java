@@ -59,6 +59,7 @@ import org.apache.lucene.search.Hits;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
+import org.cdlib.xtf.lazyTree.LazyTreeBuilder;
 import org.cdlib.xtf.textEngine.NativeFSDirectory;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.Trace;
@@ -337,6 +338,11 @@ public class IndexMerge
                                          new StandardAnalyzer(),
                                          createTarget);
 
+    // The target's manifest of source files won't match after the merge; 
+    // the indexer will rebuild it from the index when next run.
+    //
+    SrcManifest.invalidate(new File(dirInfos[0].path));
+
     // Merge each piece (spelling, lazy files, main indexes)
     mergeSpelling(dirInfos);
     mergeLazy(dirInfos);
@@ -366,7 +372,7 @@ public class IndexMerge
   } // doMerge()
 
   //////////////////////////////////////////////////////////////////////////////
-  private static void mergeSpelling(DirInfo[] dirInfos)
+  static void mergeSpelling(DirInfo[] dirInfos)
     throws IOException 
   {
     // If there are none to do, skip this step.
@@ -374,7 +380,7 @@ public class IndexMerge
     for (int i = 1; i < dirInfos.length; i++) {
       String sourceDir = dirInfos[i].path;
       File sourceFile = new File(sourceDir + "spellDict/newWords.txt");
-      if (!sourceFile.isFile() && sourceFile.canRead())
+      if (!sourceFile.isFile() || !sourceFile.canRead())
         continue;
       anyToDo = true;
     }
@@ -384,50 +390,54 @@ public class IndexMerge
 
     Trace.info("Processing spellcheck word lists ... ");
 
-    // Append each input file.
+    // Append each input file (both words and word pairs).
+    String[] queueNames = { "newWords.txt", "newPairs.txt" };
     for (int i = 1; i < dirInfos.length; i++) 
     {
-      String sourceDir = dirInfos[i].path;
-      File sourceFile = new File(sourceDir + "spellDict/newWords.txt");
-      if (!sourceFile.isFile() && sourceFile.canRead())
-        continue;
-
-      // Open the target file.
-      String targetDir = dirInfos[0].path;
-      Path.createPath(targetDir + "spellDict");
-      File targetFile = new File(targetDir + "spellDict/newWords.txt");
-      PrintWriter targetWriter = new PrintWriter(
-        new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
-                                                                       targetFile,
-                                                                       targetFile.isFile()),
-                                                  "UTF-8")));
-
-      BufferedReader sourceReader = new BufferedReader(
-        new InputStreamReader(new FileInputStream(sourceFile), "UTF-8"));
-
-      boolean eof = false;
-      while (!eof) 
+      for (String queueName : queueNames)
       {
-        try {
-          String word = sourceReader.readLine();
-          if (word == null)
+        String sourceDir = dirInfos[i].path;
+        File sourceFile = new File(sourceDir + "spellDict/" + queueName);
+        if (!sourceFile.isFile() || !sourceFile.canRead())
+          continue;
+
+        // Open the target file.
+        String targetDir = dirInfos[0].path;
+        Path.createPath(targetDir + "spellDict");
+        File targetFile = new File(targetDir + "spellDict/" + queueName);
+        PrintWriter targetWriter = new PrintWriter(
+          new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                                                                         targetFile,
+                                                                         targetFile.isFile()),
+                                                    "UTF-8")));
+
+        BufferedReader sourceReader = new BufferedReader(
+          new InputStreamReader(new FileInputStream(sourceFile), "UTF-8"));
+
+        boolean eof = false;
+        while (!eof) 
+        {
+          try {
+            String word = sourceReader.readLine();
+            if (word == null)
+              eof = true;
+            else
+              targetWriter.println(word);
+          }
+          catch (EOFException e) {
             eof = true;
-          else
-            targetWriter.println(word);
-        }
-        catch (EOFException e) {
-          eof = true;
-        }
-        catch (IOException e) {
-          Trace.warning(
-            "Warning: Exception encountered (may be due to unfinished index): " +
-            e);
-          eof = true;
+          }
+          catch (IOException e) {
+            Trace.warning(
+              "Warning: Exception encountered (may be due to unfinished index): " +
+              e);
+            eof = true;
+          }
         }
-      }
 
-      sourceReader.close();
-      targetWriter.close();
+        sourceReader.close();
+        targetWriter.close();
+      } // for queueName
     } // for
 
     Trace.more("Done.");
@@ -539,12 +549,24 @@ public class IndexMerge
     // If the source is a file, copy it.
     if (src.isFile()) 
     {
-      // If the target file already exists, don't overwrite.
-      if (dst.isFile())
+      // If the target file already exists, don't overwrite. Also, don't
+      // copy the source's upgrade marker since it says nothing about the
+      // target's other files.
+      //
+      if (dst.isFile() || 
+          src.getName().equals(IdxTreeOptimizer.LAZY_UPGRADED_FILE))
         return;
 
-      // Copy away.
+      // Copy away, converting old lazy files to the current format.
       Path.copyFile(src, dst);
+      if (dst.getName().endsWith(".lazy")) {
+        try {
+          LazyTreeBuilder.upgrade(dst);
+        }
+        catch (Exception e) {
+          Trace.warning("Unable to convert lazy file '" + dst + "': " + e);
+        }
+      }
       return;
     }
 
@@ -568,21 +590,20 @@ public class IndexMerge
   } // mergeLazy()
 
   //////////////////////////////////////////////////////////////////////////////
-  private static void mergeLucene(IndexWriter writer, DirInfo[] dirInfos)
+  static void mergeLucene(IndexWriter writer, DirInfo[] dirInfos)
     throws IOException 
   {
     Trace.info("Processing Lucene indexes (can be very time-consuming) ... ");
     Directory[] dirs = new Directory[dirInfos.length - 1];
     for (int i = 1; i < dirInfos.length; i++)
       dirs[i - 1] = dirInfos[i].dir;
-    writer.addIndexes(dirs);
-    writer.optimize();
+    writer.addIndexes(dirs); // optimizes as well
     writer.close();
     Trace.more("Done.");
   } // mergeLucene()
 
   //////////////////////////////////////////////////////////////////////////////
-  private static class DirInfo 
+  static class DirInfo 
   {
     public DirInfo(String idxPath, Directory srcDir) {
       this.path = idxPath;
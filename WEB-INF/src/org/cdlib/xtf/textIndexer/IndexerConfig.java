@@ -163,6 +163,20 @@ public class IndexerConfig
    */
   public boolean rotate;
   
+  /**
+   * Number of threads to scan directories, and parse and prefilter 
+   * documents with. The index itself is always written by a single thread,
+   * in the original order.
+   */
+  public int indexThreads;
+
+  /**
+   * Number of sub-indexes to split the queued documents among. Each is built
+   * by its own thread, and then all are merged into the main index in the
+   * original order.
+   */
+  public int indexShards;
+
   /** Index specific information for the current index being created or
    *  updated.
    */
@@ -207,6 +221,10 @@ public class IndexerConfig
     // Default to always rotating indexes for which it's enabled
     rotate = true;
     
+    // Default to parsing documents on a single thread
+    indexThreads = 1;
+    indexShards = 1;
+
     // Set the default trace level to display errors.
     traceLevel = Trace.info;
 
@@ -442,6 +460,42 @@ public class IndexerConfig
       else if (args[i].equalsIgnoreCase("-norotate"))
         rotate = false;
       
+      // If the user asked for more parsing threads, record how many.
+      else if (args[i].equalsIgnoreCase("-threads")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          indexThreads = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          Trace.error("Invalid number of threads: " + args[i]);
+          return -1;
+        }
+        if (indexThreads < 1) {
+          Trace.error("Number of threads must be at least 1");
+          return -1;
+        }
+      }
+      
+      // Likewise for sub-indexes.
+      else if (args[i].equalsIgnoreCase("-shards")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          indexShards = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          Trace.error("Invalid number of shards: " + args[i]);
+          return -1;
+        }
+        if (indexShards < 1) {
+          Trace.error("Number of shards must be at least 1");
+          return -1;
+        }
+      }
+      
       // If we found the -trace argument...
       else if (args[i].equalsIgnoreCase("-trace")) 
       {
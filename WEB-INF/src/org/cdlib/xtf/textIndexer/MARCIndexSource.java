@@ -190,6 +190,7 @@ public class MARCIndexSource extends IndexSource
 
     // Okay, make a record out of it.
     final Reader reader = new StringReader(parsedMarcXML);
+    final int thisRecordNum = recordNum;
     return new IndexRecord() 
     {
       public InputSource xmlSource()
@@ -199,7 +200,7 @@ public class MARCIndexSource extends IndexSource
       }
 
       public int recordNum() {
-        return recordNum;
+        return thisRecordNum;
       }
 
       public int percentDone() {
@@ -0,0 +1,172 @@
+package org.cdlib.xtf.textIndexer;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import org.apache.lucene.analysis.Token;
+import org.apache.lucene.analysis.TokenStream;
+
+/**
+ * Packs the tokens of a text chunk into a compact array of bytes, so they
+ * can be stored in the index alongside the chunk. When snippets are made
+ * later, the tokens can then be read back directly rather than running the
+ * analyzer over the chunk text all over again.<br><br>
+ *
+ * For each token we record its position increment, start offset and length.
+ * The term text is only recorded if it differs from the lower-cased text
+ * it came from, which is rare.
+ *
+ * @author Martin Haye
+ */
+public class PackedTokens 
+{
+  /** Name of the stored field holding the packed tokens of a chunk */
+  public static final String FIELD_NAME = "textTokens";
+
+  /** Bytes packed so far */
+  private byte[] bytes;
+
+  /** Current position within the bytes */
+  private int pos;
+
+  /** Construct for packing */
+  private PackedTokens() {
+    bytes = new byte[256];
+  }
+
+  /** Construct for unpacking */
+  private PackedTokens(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Pack all the tokens from a stream.
+   *
+   * @param stream  Tokens to pack (will be closed)
+   * @param text    The text the tokens were made from
+   * @return        The packed tokens
+   */
+  public static byte[] pack(TokenStream stream, String text)
+    throws IOException 
+  {
+    PackedTokens out = new PackedTokens();
+    int prevStart = 0;
+    Token t;
+    while ((t = stream.next()) != null) 
+    {
+      int start = t.startOffset();
+      int length = t.endOffset() - start;
+      String term = t.termText();
+      boolean plain = term.equals(text.substring(start, start + length).toLowerCase());
+
+      out.writeVInt(t.getPositionIncrement());
+      out.writeVInt(start - prevStart);
+      out.writeVInt((length << 1) | (plain ? 0 : 1));
+      if (!plain) {
+        out.writeVInt(term.length());
+        for (int i = 0; i < term.length(); i++)
+          out.writeVInt(term.charAt(i));
+      }
+      prevStart = start;
+    }
+    stream.close();
+
+    byte[] ret = new byte[out.pos];
+    System.arraycopy(out.bytes, 0, ret, 0, out.pos);
+    return ret;
+  } // pack()
+
+  /**
+   * Make a token stream that reads back packed tokens.
+   *
+   * @param packed  Bytes made by {@link #pack(TokenStream, String)}
+   * @param text    The text the tokens were made from
+   */
+  public static TokenStream unpack(byte[] packed, final String text) 
+  {
+    final PackedTokens in = new PackedTokens(packed);
+    return new TokenStream() 
+    {
+      private int prevStart = 0;
+
+      public Token next() 
+      {
+        if (in.pos >= in.bytes.length)
+          return null;
+
+        int posIncr = in.readVInt();
+        int start = prevStart + in.readVInt();
+        int lengthAndFlag = in.readVInt();
+        int end = start + (lengthAndFlag >> 1);
+        String term;
+        if ((lengthAndFlag & 1) == 0)
+          term = text.substring(start, end).toLowerCase();
+        else {
+          char[] chars = new char[in.readVInt()];
+          for (int i = 0; i < chars.length; i++)
+            chars[i] = (char)in.readVInt();
+          term = new String(chars);
+        }
+        prevStart = start;
+
+        Token t = new Token(term, start, end);
+        t.setPositionIncrement(posIncr);
+        return t;
+      }
+    };
+  } // unpack()
+
+  /** Write a variable-length integer (7 bits per byte) */
+  private void writeVInt(int val) 
+  {
+    if (pos + 5 > bytes.length) {
+      byte[] newBytes = new byte[bytes.length * 2];
+      System.arraycopy(bytes, 0, newBytes, 0, pos);
+      bytes = newBytes;
+    }
+    while ((val & ~0x7F) != 0) {
+      bytes[pos++] = (byte)((val & 0x7F) | 0x80);
+      val >>>= 7;
+    }
+    bytes[pos++] = (byte)val;
+  } // writeVInt()
+
+  /** Read a variable-length integer */
+  private int readVInt() 
+  {
+    int b = bytes[pos++];
+    int val = b & 0x7F;
+    for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+      b = bytes[pos++];
+      val |= (b & 0x7F) << shift;
+    }
+    return val;
+  } // readVInt()
+} // class PackedTokens
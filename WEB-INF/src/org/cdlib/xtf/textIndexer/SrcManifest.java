@@ -0,0 +1,594 @@
+package org.cdlib.xtf.textIndexer;
+
+
+/*
+ * Copyright (c) 2009, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.cdlib.xtf.util.ArrayUtil;
+import org.cdlib.xtf.util.Trace;
+
+////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * This class keeps a list of the source files in an index, along with the
+ * modification time and size of each one, so that the indexer can tell
+ * which files have changed without querying Lucene. The list is saved in
+ * the index directory, and is re-created from the index itself whenever
+ * it's missing or out of date. <br><br>
+ *
+ * To keep memory use down on large collections, the keys are stored end to
+ * end as UTF-8 bytes in sorted order, and located by binary search. Changes
+ * made while indexing are logged separately and folded in when the list is
+ * saved.
+ */
+public class SrcManifest 
+{
+  /** Name of the file (within the index directory) holding the manifest. */
+  public static final String FILE_NAME = "srcManifest.dat";
+
+  /** Version string at the start of the file. */
+  private static final String VERSION = "srcManifest v1.0";
+
+  /** Sorted keys, as UTF-8 bytes, end to end. */
+  private byte[] keyBytes = new byte[0];
+
+  /** Start of each key in {@link #keyBytes}, plus one extra at the end. */
+  private int[] keyStarts = new int[1];
+
+  /** Modification time of each file. */
+  private long[] times = new long[0];
+
+  /** Size of each file, or -1 if not yet known. */
+  private long[] sizes = new long[0];
+
+  /** Number of sorted entries. */
+  private int nEntries = 0;
+
+  /** Entries whose files have been seen in the source tree this run. */
+  private BitSet seen = new BitSet();
+
+  /** Keys of changes made this run, end to end. */
+  private byte[] chgBytes = new byte[1024];
+
+  /** Start of each change key, plus one extra at the end. */
+  private int[] chgStarts = new int[16];
+
+  /** New time for each change, or -1 if the file was removed. */
+  private long[] chgTimes = new long[16];
+
+  /** New size for each change. */
+  private long[] chgSizes = new long[16];
+
+  /** Number of changes made this run. */
+  private int nChanges = 0;
+
+  /** Source directories (as key prefixes) that have been scanned. */
+  private HashSet<String> scannedDirs = new HashSet<String>();
+
+  /** True if the manifest differs from the copy on disk (if any). */
+  private boolean modified = false;
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** Get the manifest file for a given index directory. */
+  public static File getFile(File indexDir) {
+    return new File(indexDir, FILE_NAME);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Remove the manifest file from an index directory. Should be called
+   * before the index is modified, so that an interrupted run can't leave an
+   * out-of-date manifest behind.
+   */
+  public static void invalidate(File indexDir) {
+    getFile(indexDir).delete();
+  } // invalidate()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Load the manifest for an index.
+   *
+   * @param indexDir    Directory containing the index
+   * @param numDocs     Number of documents in the index. If this doesn't
+   *                    match the count recorded in the manifest, it's
+   *                    considered out of date.
+   * @return            The manifest, or null if it is missing, out of date,
+   *                    or unreadable.
+   */
+  public static SrcManifest load(File indexDir, int numDocs) 
+  {
+    File file = getFile(indexDir);
+    if (!file.canRead())
+      return null;
+
+    DataInputStream in = null;
+    try 
+    {
+      in = new DataInputStream(
+        new BufferedInputStream(
+          new InflaterInputStream(new FileInputStream(file))));
+      if (!in.readUTF().equals(VERSION)) {
+        Trace.warning("Unrecognized source manifest \"" + file + "\"");
+        return null;
+      }
+      if (in.readInt() != numDocs)
+        return null;
+
+      // Each key is stored as the number of leading bytes it shares with
+      // the previous key, followed by the rest of its bytes.
+      //
+      SrcManifest man = new SrcManifest();
+      int n = in.readInt();
+      int totalBytes = in.readInt();
+      man.keyBytes = new byte[totalBytes];
+      man.keyStarts = new int[n + 1];
+      man.times = new long[n];
+      man.sizes = new long[n];
+      int pos = 0;
+      for (int i = 0; i < n; i++) 
+      {
+        int shared = in.readInt();
+        int rest = in.readInt();
+        man.keyStarts[i] = pos;
+        if (shared > 0)
+          System.arraycopy(man.keyBytes, man.keyStarts[i - 1], man.keyBytes,
+                           pos, shared);
+        in.readFully(man.keyBytes, pos + shared, rest);
+        pos += shared + rest;
+        man.times[i] = in.readLong();
+        man.sizes[i] = in.readLong();
+      }
+      man.keyStarts[n] = pos;
+      man.nEntries = n;
+      return man;
+    }
+    catch (IOException e) {
+      Trace.warning("Unable to read source manifest \"" + file + "\": " + e);
+      return null;
+    }
+    catch (RuntimeException e) {
+      Trace.warning("Corrupt source manifest \"" + file + "\": " + e);
+      return null;
+    }
+    finally {
+      if (in != null)
+        try { in.close(); } catch (IOException e) { /*ignore*/ }
+    }
+  } // load()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Build a manifest from the docInfo chunks of an existing index. The
+   * sizes of the files aren't recorded in the index, so they're left
+   * unknown and filled in as the files are checked.
+   */
+  public static SrcManifest fromIndex(IndexReader reader)
+    throws IOException 
+  {
+    SrcManifest man = new SrcManifest();
+    man.modified = true;
+
+    FieldSelector selector = new MapFieldSelector(
+      new String[] { "key", "fileDate" });
+    TermDocs docs = reader.termDocs(new Term("docInfo", "1"));
+    try 
+    {
+      while (docs.next()) 
+      {
+        Document doc = reader.document(docs.doc(), selector);
+        String key = doc.get("key");
+        String fileDate = doc.get("fileDate");
+        if (key == null || fileDate == null)
+          continue;
+        long time;
+        try {
+          time = DateTools.stringToTime(fileDate);
+        }
+        catch (java.text.ParseException e) {
+          time = 0; // forces the file to be re-indexed
+        }
+        man.put(key, time, -1);
+      }
+    }
+    finally {
+      docs.close();
+    }
+
+    man.merge();
+    return man;
+  } // fromIndex()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Save the manifest to an index directory, folding in any changes made
+   * since it was loaded.
+   *
+   * @param indexDir    Directory containing the index
+   * @param numDocs     Number of documents now in the index
+   */
+  public void save(File indexDir, int numDocs)
+    throws IOException 
+  {
+    merge();
+
+    // Keep any old file intact until the new one is ready.
+    File file = getFile(indexDir);
+    File newFile = new File(file.toString() + ".new");
+    DataOutputStream out = null;
+    try 
+    {
+      out = new DataOutputStream(
+        new BufferedOutputStream(
+          new DeflaterOutputStream(new FileOutputStream(newFile))));
+      out.writeUTF(VERSION);
+      out.writeInt(numDocs);
+      out.writeInt(nEntries);
+      out.writeInt(keyStarts[nEntries]);
+      for (int i = 0; i < nEntries; i++) 
+      {
+        int shared = 0;
+        if (i > 0) {
+          int prev = keyStarts[i - 1];
+          int max = Math.min(keyLength(i - 1), keyLength(i));
+          while (shared < max &&
+                 keyBytes[prev + shared] == keyBytes[keyStarts[i] + shared])
+            ++shared;
+        }
+        out.writeInt(shared);
+        out.writeInt(keyLength(i) - shared);
+        out.write(keyBytes, keyStarts[i] + shared, keyLength(i) - shared);
+        out.writeLong(times[i]);
+        out.writeLong(sizes[i]);
+      }
+      out.close();
+      out = null;
+
+      // Get rid of the old file, and rename the new one.
+      file.delete();
+      if (!newFile.renameTo(file))
+        throw new IOException("Unable to rename \"" + newFile + "\"");
+      modified = false;
+    }
+    catch (IOException e) {
+      if (out != null)
+        try { out.close(); } catch (IOException e2) { /*ignore*/ }
+      newFile.delete();
+      throw e;
+    }
+  } // save()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** Tells whether the manifest has changed since it was loaded or saved. */
+  public boolean isModified() {
+    return modified;
+  }
+
+  /** Mark the manifest as differing from the copy on disk. */
+  public synchronized void setModified() {
+    modified = true;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** Get the number of entries (not counting changes not yet saved). */
+  public int nEntries() {
+    return nEntries;
+  }
+
+  /** Get the key of a given entry. */
+  public String key(int entry) {
+    return utf8(keyBytes, keyStarts[entry], keyLength(entry));
+  }
+
+  /** Get the modification time of a given entry. */
+  public long fileTime(int entry) {
+    return times[entry];
+  }
+
+  /** Get the size of a given entry, or -1 if not known. */
+  public long fileSize(int entry) {
+    return sizes[entry];
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Find the entry for a given key.
+   *
+   * @return  The entry number, or -1 if the key isn't in the manifest.
+   *          Changes made since the manifest was loaded or saved are not
+   *          reflected.
+   */
+  public int find(String key) 
+  {
+    byte[] target = utf8(key);
+    int lo = 0;
+    int hi = nEntries - 1;
+    while (lo <= hi) 
+    {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compare(keyBytes, keyStarts[mid], keyLength(mid), target, 0,
+                        target.length);
+      if (cmp < 0)
+        lo = mid + 1;
+      else if (cmp > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  } // find()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** Record a file that has been (re-)indexed, or checked to be current. */
+  public synchronized void put(String key, long time, long size) {
+    addChange(key, time, size);
+  }
+
+  /** Record a file that has been removed from the index. */
+  public synchronized void remove(String key) {
+    addChange(key, -1, -1);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** Record that a file was found in the source tree during this run. */
+  public void markSeen(String key) 
+  {
+    int entry = find(key);
+    if (entry >= 0)
+      seen.set(entry);
+  } // markSeen()
+
+  /** Tells whether the file for an entry was found in the source tree. */
+  public boolean wasSeen(int entry) {
+    return seen.get(entry);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Record that all the files in a directory were listed during this run.
+   *
+   * @param keyPrefix   The key prefix shared by files in the directory,
+   *                    e.g. "default:some/dir/"
+   */
+  public void markScanned(String keyPrefix) {
+    scannedDirs.add(keyPrefix);
+  }
+
+  /**
+   * Tells whether the directory containing a given file was listed during
+   * this run. If so, and the file wasn't seen, it must no longer exist.
+   */
+  public boolean wasScanned(String key) 
+  {
+    int slash = key.lastIndexOf('/');
+    if (slash < 0)
+      slash = key.indexOf(':');
+    return scannedDirs.contains(key.substring(0, slash + 1));
+  } // wasScanned()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /** Add an entry to the log of changes. */
+  private void addChange(String key, long time, long size) 
+  {
+    byte[] bytes = utf8(key);
+    if (nChanges + 1 >= chgStarts.length) {
+      chgStarts = ArrayUtil.expand(chgStarts);
+      chgTimes = ArrayUtil.expand(chgTimes);
+      chgSizes = ArrayUtil.expand(chgSizes);
+    }
+    int start = chgStarts[nChanges];
+    if (start + bytes.length > chgBytes.length) {
+      byte[] newBytes = new byte[Math.max(chgBytes.length * 3 / 2,
+                                          start + bytes.length)];
+      System.arraycopy(chgBytes, 0, newBytes, 0, start);
+      chgBytes = newBytes;
+    }
+    System.arraycopy(bytes, 0, chgBytes, start, bytes.length);
+    chgTimes[nChanges] = time;
+    chgSizes[nChanges] = size;
+    chgStarts[++nChanges] = start + bytes.length;
+    modified = true;
+  } // addChange()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Fold the log of changes into the sorted entries. Where a key was
+   * changed more than once, the last change wins.
+   */
+  private void merge() 
+  {
+    if (nChanges == 0)
+      return;
+
+    // Sort the changes by key. The sort is stable, so changes to the same
+    // key stay in the order they were made.
+    //
+    Integer[] order = new Integer[nChanges];
+    for (int i = 0; i < nChanges; i++)
+      order[i] = Integer.valueOf(i);
+    Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return compareChanges(a.intValue(), b.intValue());
+        }
+      });
+
+    // Now merge the two sorted lists.
+    int maxEntries = nEntries + nChanges;
+    byte[] newBytes = new byte[keyStarts[nEntries] + chgStarts[nChanges]];
+    int[] newStarts = new int[maxEntries + 1];
+    long[] newTimes = new long[maxEntries];
+    long[] newSizes = new long[maxEntries];
+    BitSet newSeen = new BitSet();
+    int nNew = 0;
+    int pos = 0;
+    int e = 0;
+    int c = 0;
+    while (e < nEntries || c < nChanges) 
+    {
+      int cmp;
+      int chg = -1;
+      if (c < nChanges) 
+      {
+        // Skip to the last change for this key.
+        chg = order[c].intValue();
+        while (c + 1 < nChanges &&
+               compareChanges(chg, order[c + 1].intValue()) == 0)
+          chg = order[++c].intValue();
+      }
+      if (e == nEntries)
+        cmp = 1;
+      else if (chg < 0)
+        cmp = -1;
+      else {
+        cmp = compare(keyBytes, keyStarts[e], keyLength(e), chgBytes,
+                      chgStarts[chg], chgStarts[chg + 1] - chgStarts[chg]);
+      }
+
+      // Copy the existing entry, or the change that replaces it.
+      byte[] srcBytes;
+      int srcStart;
+      int srcLen;
+      if (cmp < 0) {
+        srcBytes = keyBytes;
+        srcStart = keyStarts[e];
+        srcLen = keyLength(e);
+        newTimes[nNew] = times[e];
+        newSizes[nNew] = sizes[e];
+        if (seen.get(e))
+          newSeen.set(nNew);
+        ++e;
+      }
+      else 
+      {
+        if (cmp == 0)
+          ++e;
+        ++c;
+        if (chgTimes[chg] < 0)
+          continue; // removed
+        srcBytes = chgBytes;
+        srcStart = chgStarts[chg];
+        srcLen = chgStarts[chg + 1] - srcStart;
+        newTimes[nNew] = chgTimes[chg];
+        newSizes[nNew] = chgSizes[chg];
+        newSeen.set(nNew); // file existed when it was recorded
+      }
+      System.arraycopy(srcBytes, srcStart, newBytes, pos, srcLen);
+      newStarts[nNew++] = pos;
+      pos += srcLen;
+    }
+    newStarts[nNew] = pos;
+
+    keyBytes = newBytes;
+    keyStarts = newStarts;
+    times = newTimes;
+    sizes = newSizes;
+    seen = newSeen;
+    nEntries = nNew;
+
+    nChanges = 0;
+    chgStarts[0] = 0;
+  } // merge()
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  private int keyLength(int entry) {
+    return keyStarts[entry + 1] - keyStarts[entry];
+  }
+
+  private int compareChanges(int a, int b) {
+    return compare(chgBytes, chgStarts[a], chgStarts[a + 1] - chgStarts[a],
+                   chgBytes, chgStarts[b], chgStarts[b + 1] - chgStarts[b]);
+  }
+
+  /** Compare two byte strings, treating the bytes as unsigned. */
+  private static int compare(byte[] b1, int start1, int len1, byte[] b2,
+                             int start2, int len2) 
+  {
+    int max = Math.min(len1, len2);
+    for (int i = 0; i < max; i++) {
+      int diff = (b1[start1 + i] & 0xff) - (b2[start2 + i] & 0xff);
+      if (diff != 0)
+        return diff;
+    }
+    return len1 - len2;
+  } // compare()
+
+  private static byte[] utf8(String str) {
+    try {
+      return str.getBytes("UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String utf8(byte[] bytes, int start, int len) {
+    try {
+      return new String(bytes, start, len, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+} // class SrcManifest
@@ -33,11 +33,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import javax.xml.parsers.SAXParser;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
@@ -78,13 +84,16 @@ import org.xml.sax.InputSource;
  */
 public class SrcTreeProcessor 
 {
+  /** How many sub-directories to scan ahead, per scanning thread */
+  private static final int SCAN_AHEAD_PER_THREAD = 4;
+
   private IndexerConfig cfgInfo;
   private XMLTextProcessor textProcessor;
   private StylesheetCache stylesheetCache = new StylesheetCache(100, 0, true);
   private Templates docSelector;
   private int nScanned = 0;
-  private StringBuffer docBuf = new StringBuffer(1024);
-  private StringBuffer dirBuf = new StringBuffer(1024);
+  private ExecutorService scanPool;
+  private int scanAhead;
   private String docSelPath;
   private File docSelCacheFile;
   private DocSelCache docSelCache = new DocSelCache();
@@ -143,8 +152,28 @@ public class SrcTreeProcessor
     // Load the previous docSelector cache (if any)
     loadCache(cfgInfo);
 
+    // If multiple threads were requested, use them to list directories and
+    // run the docSelector as well.
+    //
+    if (cfgInfo.indexThreads > 1) 
+    {
+      scanPool = Executors.newFixedThreadPool(cfgInfo.indexThreads, 
+        new ThreadFactory() 
+        {
+          private int count = 0;
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "XTF scan " + (++count));
+            t.setDaemon(true);
+            return t;
+          }
+        });
+      scanAhead = cfgInfo.indexThreads * SCAN_AHEAD_PER_THREAD;
+    }
+
     // Open the Lucene index specified by the config info.
     if (!cfgInfo.prefilterOnly) {
+      textProcessor.setThreads(cfgInfo.indexThreads);
+      textProcessor.setShards(cfgInfo.indexShards);
       textProcessor.open(cfgInfo.xtfHomePath, cfgInfo.indexInfo, cfgInfo.clean,
           cfgInfo.force);
     }
@@ -171,6 +200,12 @@ public class SrcTreeProcessor
   public void close()
     throws IOException 
   {
+    // Scanning is done, so let the scanning threads go.
+    if (scanPool != null) {
+      scanPool.shutdown();
+      scanPool = null;
+    }
+
     // Flush the remaining open documents.
     if (!cfgInfo.prefilterOnly)
       textProcessor.processQueuedTexts();
@@ -189,6 +224,15 @@ public class SrcTreeProcessor
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Get the list of source files in the index, including those found
+   *  while scanning. May be null if the index wasn't opened.
+   */
+  public SrcManifest getManifest() {
+    return textProcessor.getManifest();
+  } // getManifest()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   String calcIndexPath()
   {
     String indexPath = Path.resolveRelOrAbs(cfgInfo.xtfHomePath,
@@ -281,6 +325,10 @@ public class SrcTreeProcessor
    * This method iterates through a source directory's contents indexing any
    * valid files it finds, any processing any sub-directories. <br><br>
    *
+   * If scanning threads are in use, sub-directories are listed and run
+   * through the docSelector ahead of time, but files are always processed
+   * in the same order as a single-threaded scan. <br><br>
+   *
    * @param curDir        The current directory to be processed. <br>
    * @param subDirFilter  Sub-dirs to scan, or null for all. <br>
    * @param topLevel      true for the top-level directory, false else. <br>     
@@ -299,31 +347,43 @@ public class SrcTreeProcessor
     if (subDirFilter != null && !subDirFilter.approve(curDir))
       return;
     
+    processScan(scanDir(curDir, topLevel), subDirFilter);
+  } // processDir()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** List a directory and, unless the docSelector cache says its results
+   *  would be the same as last time, run the docSelector on it. This
+   *  doesn't change anything, so it may be done on any thread.
+   *
+   * @param curDir        The directory to scan. <br>
+   * @param topLevel      true for the top-level directory, false else. <br>     
+   */
+  private DirScan scanDir(File curDir, boolean topLevel)
+    throws Exception 
+  {
+    DirScan scan = new DirScan();
+    scan.dir = curDir;
+
     // We're looking at a directory. Get the list of files it contains.
     String[] fileStrs = curDir.getAbsoluteFile().list();
     if (fileStrs == null) {
-      Trace.warning(
-        "Warning: error retrieving file list for directory: " + curDir);
-      return;
+      scan.listFailed = true;
+      return scan;
     }
+    Arrays.sort(fileStrs);
 
-    ArrayList list = new ArrayList(fileStrs.length);
-    for (int i = 0; i < fileStrs.length; i++)
-      list.add(fileStrs[i]);
-    Collections.sort(list);
-
-    // Process all of the non-directory files first. Form a document 
-    // representing the directory and all its files.
+    // Form a document representing the directory and all its non-directory 
+    // files, and note the sub-directories for later.
     //
-    docBuf.setLength(0);
-    dirBuf.setLength(0);
+    StringBuffer docBuf = new StringBuffer(1024);
+    StringBuffer dirBuf = new StringBuffer(1024);
 
-    String dirPath = Path.normalizePath(curDir.toString());
-    docBuf.append("<directory dirPath=\"" + StringUtil.escapeHTMLChars(dirPath) + "\">\n");
-    int nFiles = 0;
-    for (Iterator i = list.iterator(); i.hasNext();) 
+    scan.dirPath = Path.normalizePath(curDir.toString());
+    docBuf.append("<directory dirPath=\"" + StringUtil.escapeHTMLChars(scan.dirPath) + "\">\n");
+    for (int i = 0; i < fileStrs.length; i++) 
     {
-      File subFile = new File(curDir, (String)i.next());
+      File subFile = new File(curDir, fileStrs[i]);
       if (!subFile.getAbsoluteFile().isDirectory()) 
       {
         docBuf.append("  <file fileName=\"");
@@ -335,77 +395,122 @@ public class SrcTreeProcessor
         dirBuf.append(subFile.lastModified());
         dirBuf.append("\n");
 
-        ++nFiles;
-
-        // Print out dots as we process large amounts of files, just so 
-        // the user knows something is happening.
-        //
-        if (((nScanned++) % 200) == 0)
-          Trace.more(Trace.info, ".");
+        scan.fileNames.add(subFile.getName());
       }
+      else
+        scan.subDirs.add(subFile);
     }
     docBuf.append("</directory>\n");
 
-    // Now process the document using the docSelector stylesheet.
-    boolean anyProcessed = false;
-    boolean runStylesheet;
-    String inStr = docBuf.toString();
-    String filesAndTimes = dirBuf.toString();
-    String dirKey;
+    scan.docSelInput = docBuf.toString();
+    scan.filesAndTimes = dirBuf.toString();
     if (topLevel)
-      dirKey = cfgInfo.indexInfo.indexName + ":/";
+      scan.dirKey = cfgInfo.indexInfo.indexName + ":/";
     else
-      dirKey = IndexUtil.calcDocKey(new File(cfgInfo.xtfHomePath),
-                                    cfgInfo.indexInfo, curDir);
+      scan.dirKey = IndexUtil.calcDocKey(new File(cfgInfo.xtfHomePath),
+                                         cfgInfo.indexInfo, curDir);
     
-    if (nFiles == 0)
-      runStylesheet = false;
-    else 
+    if (scan.fileNames.isEmpty())
+      return scan;
+
+    // If the directory hasn't changed, the cached docSelector results are
+    // still good.
+    //
+    DocSelCache.Entry ent;
+    synchronized (docSelCache) {
+      ent = (DocSelCache.Entry)docSelCache.get(scan.dirKey);
+    }
+    if (ent != null && !cfgInfo.force && 
+        ent.filesAndTimes.equals(scan.filesAndTimes)) 
     {
-      DocSelCache.Entry ent = (DocSelCache.Entry)docSelCache.get(dirKey);
-      if (ent == null)
-        runStylesheet = true;
-      else if (cfgInfo.force || !ent.filesAndTimes.equals(filesAndTimes)) {
-        docSelCache.remove(dirKey);
-        runStylesheet = true;
-      }
-      else {
-        anyProcessed = ent.anyProcessed;
-        runStylesheet = false;
-      }
+      scan.cached = ent;
+      return scan;
+    }
+    scan.cacheChanged = (ent != null);
+
+    // Otherwise, process the document using the docSelector stylesheet.
+    InputSource docSelectorInput = 
+      new InputSource(new StringReader(scan.docSelInput));
+
+    TreeBuilder tree = new TreeBuilder();
+    Transformer docSelectorTrans = docSelector.newTransformer();
+    
+    // Handle pass-through attributes from the config file.
+    for (Iterator i = cfgInfo.indexInfo.passThroughAttribs.iterator(); i.hasNext();) {
+      Attrib a = (Attrib)i.next();
+      if (a.value == null || a.value.length() == 0)
+        continue;
+      docSelectorTrans.setParameter(a.key, new StringValue(a.value));
     }
 
-    if (runStylesheet) 
+    docSelectorTrans.transform(new SAXSource(docSelectorInput), tree);
+    scan.result = tree.getCurrentRoot();
+    return scan;
+  } // scanDir()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Process the files selected in a scanned directory, and then its
+   *  sub-directories.
+   *
+   * @param scan          Results of {@link #scanDir(File, boolean)}. <br>
+   * @param subDirFilter  Sub-dirs to scan, or null for all. <br>
+   */
+  private void processScan(DirScan scan, SubDirFilter subDirFilter)
+    throws Exception 
+  {
+    if (scan.listFailed) {
+      Trace.warning(
+        "Warning: error retrieving file list for directory: " + scan.dir);
+      return;
+    }
+
+    // Note in the manifest that this directory was scanned and which files
+    // are present, so the culler needn't check each indexed file.
+    //
+    SrcManifest manifest = textProcessor.getManifest();
+    if (manifest != null && !cfgInfo.prefilterOnly) 
     {
-      InputSource docSelectorInput = new InputSource(new StringReader(inStr));
+      String key = IndexUtil.calcDocKey(new File(cfgInfo.xtfHomePath),
+                                        cfgInfo.indexInfo, 
+                                        new File(scan.dir, "x"));
+      String keyPrefix = key.substring(0, key.length() - 1);
+      manifest.markScanned(keyPrefix);
+      for (String fileName : scan.fileNames)
+        manifest.markSeen(keyPrefix + fileName);
+    }
 
-      if (Trace.getOutputLevel() >= Trace.debug) {
-        Trace.debug("*** docSelector input ***\n" + inStr);
-        Trace.debug("");
-      }
+    // Print out dots as we process large amounts of files, just so 
+    // the user knows something is happening.
+    //
+    for (int i = 0; i < scan.fileNames.size(); i++) {
+      if (((nScanned++) % 200) == 0)
+        Trace.more(Trace.info, ".");
+    }
 
-      TreeBuilder tree = new TreeBuilder();
-      Transformer docSelectorTrans = docSelector.newTransformer();
-      
-      // Handle pass-through attributes from the config file.
-      for (Iterator i = cfgInfo.indexInfo.passThroughAttribs.iterator(); i.hasNext();) {
-        Attrib a = (Attrib)i.next();
-        if (a.value == null || a.value.length() == 0)
-          continue;
-        docSelectorTrans.setParameter(a.key, new StringValue(a.value));
-      }
+    // Use the cached docSelector results if they're still good.
+    boolean anyProcessed = false;
+    if (scan.cached != null)
+      anyProcessed = scan.cached.anyProcessed;
 
-      docSelectorTrans.transform(new SAXSource(docSelectorInput), tree);
-      NodeInfo result = tree.getCurrentRoot();
+    else if (scan.result != null) 
+    {
+      if (scan.cacheChanged) {
+        synchronized (docSelCache) {
+          docSelCache.remove(scan.dirKey);
+        }
+      }
 
       if (Trace.getOutputLevel() >= Trace.debug) {
+        Trace.debug("*** docSelector input ***\n" + scan.docSelInput);
+        Trace.debug("");
         Trace.debug("*** docSelector output ***\n" +
-                    XMLWriter.toString(result));
+                    XMLWriter.toString(scan.result));
         Trace.debug("");
       }
 
       // Iterate the result, and queue any files to index.
-      EasyNode root = new EasyNode(result);
+      EasyNode root = new EasyNode(scan.result);
       for (int i = 0; i < root.nChildren(); i++) 
       {
         EasyNode node = root.child(i);
@@ -421,7 +526,7 @@ public class SrcTreeProcessor
         }
 
         if (tagName.equalsIgnoreCase("indexFile")) {
-          if (processFile(dirPath, node))
+          if (processFile(scan.dirPath, node))
             anyProcessed = true;
         }
         else {
@@ -435,8 +540,11 @@ public class SrcTreeProcessor
       // next time (that is, unless the directory contents or stylesheet
       // are different).
       //
-      docSelCache.put(dirKey, new DocSelCache.Entry(filesAndTimes, anyProcessed));
-    } // if nFiles > 0
+      synchronized (docSelCache) {
+        docSelCache.put(scan.dirKey, 
+                        new DocSelCache.Entry(scan.filesAndTimes, anyProcessed));
+      }
+    } // else if
 
     // In the old mode (scanAllDirs = false), if we found any files to process, 
     // the convention is that subdirectories contain file related to the ones 
@@ -449,12 +557,68 @@ public class SrcTreeProcessor
       return;
 
     // Recursively try sub-directories.
-    for (Iterator i = list.iterator(); i.hasNext();) {
-      File subFile = new File(curDir, (String)i.next());
-      if (subFile.getAbsoluteFile().isDirectory())
-        processDir(subFile, subDirFilter, false);
+    ArrayList<File> subDirs = new ArrayList<File>();
+    for (File subDir : scan.subDirs) {
+      if (subDirFilter == null || subDirFilter.approve(subDir))
+        subDirs.add(subDir);
     }
-  } // processDir()
+
+    if (scanPool == null) {
+      for (File subDir : subDirs)
+        processScan(scanDir(subDir, false), subDirFilter);
+      return;
+    }
+
+    // With scanning threads, keep a few sub-directories ahead of the one 
+    // being processed.
+    //
+    ArrayList<Future<DirScan>> scans = new ArrayList<Future<DirScan>>();
+    for (int i = 0; i < subDirs.size(); i++) 
+    {
+      while (scans.size() < subDirs.size() && scans.size() <= i + scanAhead)
+        scans.add(startScan(subDirs.get(scans.size())));
+      DirScan subScan = finishScan(scans.get(i));
+      scans.set(i, null);
+      processScan(subScan, subDirFilter);
+    }
+  } // processScan()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Start scanning a sub-directory on one of the scanning threads. */
+  private Future<DirScan> startScan(final File dir)
+  {
+    return scanPool.submit(new Callable<DirScan>() {
+        public DirScan call() throws Exception {
+          return scanDir(dir, false);
+        }
+      });
+  } // startScan()
+
+  /** Wait for a scan started by {@link #startScan(File)} to finish, and
+   *  pass on any exception it threw.
+   */
+  private DirScan finishScan(Future<DirScan> future)
+    throws Exception 
+  {
+    while (true) 
+    {
+      try {
+        return future.get();
+      }
+      catch (InterruptedException e) {
+        continue;
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception)
+          throw (Exception)cause;
+        if (cause instanceof Error)
+          throw (Error)cause;
+        throw e;
+      }
+    }
+  } // finishScan()
 
   ////////////////////////////////////////////////////////////////////////////
 
@@ -706,4 +870,27 @@ public class SrcTreeProcessor
     }
   } // outputRaw()
   
+
+  ////////////////////////////////////////////////////////////////////////////
+  /** Results of listing a directory and running the docSelector on it. */
+  private static class DirScan 
+  {
+    public File dir;
+    public boolean listFailed;
+    public String dirPath;
+    public String dirKey;
+    public ArrayList<String> fileNames = new ArrayList<String>();
+    public ArrayList<File> subDirs = new ArrayList<File>();
+    public String docSelInput;
+    public String filesAndTimes;
+
+    /** Cache entry, if still good */
+    public DocSelCache.Entry cached;
+
+    /** True if there is a cache entry, but it's out of date */
+    public boolean cacheChanged;
+
+    /** docSelector output, if it was run */
+    public NodeInfo result;
+  } // private class DirScan
 } // class SrcTreeProcessor
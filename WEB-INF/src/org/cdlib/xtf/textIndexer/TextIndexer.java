@@ -85,6 +85,24 @@ import org.cdlib.xtf.util.Trace;
  * time to complete depending on the index size. If this argument is not
  * specified, the default behavior is to optimize. <br><br>
  *
+ * The <code>-threads</code> argument is an optional argument that sets how
+ * many threads are used to list source directories, run the docSelector,
+ * and prefilter, parse and chunk documents. Files are still queued, and
+ * the index written, by a single thread in the same order as a
+ * single-threaded run. If this argument is not specified, one thread is
+ * used. <br><br>
+ *
+ * The <code>-shards</code> argument is an optional argument that splits the
+ * documents to be indexed into the given number of parts. Each part is
+ * indexed into a separate temporary index by its own thread, and the parts
+ * are then merged into the main index in order, so the result is the same
+ * as a single-threaded run. Merging optimizes the whole index, rewriting
+ * every segment, so it costs about as much as a full rebuild however few
+ * documents changed. For that reason the documents are only split when
+ * there are more of them than unchanged ones already in the index (e.g.
+ * with <code>-clean</code>); smaller incremental runs ignore this argument.
+ * If this argument is not specified, no splitting is done. <br><br>
+ *
  * The <code>-trace</code> argument is an optional argument that sets the level
  * of output displayed by the text indexer. The output levels are defined as
  * follows:
@@ -277,6 +295,10 @@ public class TextIndexer
           Trace.error("-updatespell|-noupdatespell           Default: -updatespell");
           Trace.error("-rotate|-norotate                     Default: -rotate");
           Trace.error("-validate|-novalidate                 Default: -validate");
+          Trace.error("-threads <n>                          Default: -threads 1");
+          Trace.error("-shards <n>                           Default: -shards 1");
+          Trace.error("    (merging rewrites the whole index; only used");
+          Trace.error("     when most of the index is being rebuilt)");
           Trace.tab();
           Trace.error("\n");
           Trace.untab();
@@ -525,7 +547,8 @@ public class TextIndexer
       Trace.tab();
 
       culler.cullIndex(new File(cfgInfo.xtfHomePath), cfgInfo.indexInfo, 
-                       srcRootFile, subDirFilter);
+                       srcRootFile, subDirFilter, 
+                       srcTreeProcessor.getManifest());
 
       Trace.untab();
     }
@@ -515,6 +515,24 @@ public class XMLConfigParser extends DefaultHandler
       return;
     }
 
+    // If the current tag tells us to store chunk tokens...
+    if (qName.equalsIgnoreCase("tokens")) 
+    {
+      // Validate the attribute.
+      String val = atts.getValue("store");
+      if ("yes".equals(val) || "true".equals(val))
+        configInfo.indexInfo.storeTokens = true;
+      else if ("no".equals(val) || "false".equals(val))
+        configInfo.indexInfo.storeTokens = false;
+      else {
+        Trace.error(
+          "Unrecognized value for 'store' attribute of " + "config option: '" +
+          qName + "'");
+        System.exit(1);
+      }
+      return;
+    }
+
     // If the current tag tells us to strip whitespace...
     if (qName.equalsIgnoreCase("whitespace")) 
     {
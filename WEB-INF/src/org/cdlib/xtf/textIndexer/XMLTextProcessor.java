@@ -43,10 +43,14 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -68,8 +72,6 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Hits;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.TermQuery;
@@ -88,7 +90,9 @@ import org.cdlib.xtf.lazyTree.LazyTreeBuilder;
 import org.cdlib.xtf.textEngine.IndexUtil;
 import org.cdlib.xtf.textEngine.Constants;
 import org.cdlib.xtf.textEngine.NativeFSDirectory;
+import org.cdlib.xtf.textEngine.SortOrds;
 import org.cdlib.xtf.textEngine.XtfSearcher;
+import org.cdlib.xtf.textEngine.facet.StaticGroupData;
 import org.cdlib.xtf.util.CharMap;
 import org.cdlib.xtf.util.FastStringReader;
 import org.cdlib.xtf.util.FastTokenizer;
@@ -290,6 +294,11 @@ public class XMLTextProcessor extends DefaultHandler
    */
   private CharMap accentMap = null;
 
+  /** Analyzer used to make the tokens stored with each chunk, if enabled.
+   *  See {@link IndexInfo#storeTokens} for details.
+   */
+  private XTFTextAnalyzer tokenAnalyzer = null;
+
   /** Flag indicating that a new chunk needs to be created. Set to <code>true</code>
    *  when a node's section name changes or a <code>proximitybreak</code> attribute
    *  is encountered.
@@ -321,6 +330,11 @@ public class XMLTextProcessor extends DefaultHandler
   /** The current record being indexed within {@link #curIdxSrc} */
   private IndexRecord curIdxRecord;
 
+  /** Number of {@link #curIdxRecord} within its source, captured when the
+   *  record was read (the source may have moved on since then.)
+   */
+  private int curRecordNum;
+
   /** Display name of the current file */
   private String curPrettyKey;
 
@@ -376,16 +390,14 @@ public class XMLTextProcessor extends DefaultHandler
   private StringBuffer metaBuf = new StringBuffer();
 
   /** An Lucene index reader object, used in conjunction with the
-   * {@link XMLTextProcessor#indexSearcher indexSearcher} to check if
-   * the current document needs to be added to, updated in, or
-   * removed from the index.
+   * {@link XMLTextProcessor#indexSearcher indexSearcher} to check the
+   * index and load its list of source files when it's opened.
    */
   private IndexReader indexReader;
 
   /** An Lucene index searcher object, used in conjunction with the
-   * {@link XMLTextProcessor#indexReader indexReader} to check if the
-   * current document needs to be added to, updated in, or removed
-   * from the index.
+   * {@link XMLTextProcessor#indexReader indexReader} to check the
+   * index when it's opened.
    */
   private IndexSearcher indexSearcher;
 
@@ -394,14 +406,68 @@ public class XMLTextProcessor extends DefaultHandler
    */
   private IndexWriter indexWriter;
 
+  /** List of the source files in the index, with their modification times
+   *  and sizes, used to tell which files have changed without querying
+   *  the index.
+   */
+  private SrcManifest manifest;
+
   /** Queues words for spelling dictionary creator */
   private SpellWriter spellWriter;
 
   /** Keeps track of fields we already know are tokenized */
   private HashSet tokenizedFields;
 
-  /** Maximum number of document deletions to do in a single batch */
-  private static final int MAX_DELETION_BATCH = 50;
+  /** Keeps track of fields we already know are facets */
+  private Set facetFields;
+
+  /** Keeps track of fields we already know can be sorted on */
+  private Set sortFields;
+
+  /** Maximum number of document deletions to do in a single batch. The
+   *  index writer buffers this many before applying them. */
+  private static final int MAX_DELETION_BATCH = 1000;
+
+  /** How often (in records) to print progress within a multi-record file */
+  private static final int RECORD_BATCH_SIZE = 100;
+
+  /** Number of threads to parse and prefilter records with. See
+   *  {@link #setThreads(int)} for details.
+   */
+  private int nThreads = 1;
+
+  /** Number of sub-indexes to split queued texts among. See
+   *  {@link #setShards(int)} for details.
+   */
+  private int nShards = 1;
+
+  /** If this processor builds one sub-index of a larger run, the directory
+   *  holding its Lucene index and spelling queue; otherwise null, and these
+   *  are kept in {@link #indexPath}.
+   */
+  private String shardPath;
+
+  /** If this processor builds one sub-index of a larger run, the progress
+   *  of all the sub-indexes, through which it reports its own progress.
+   */
+  private ShardProgress shardProgress;
+
+  /** Which sub-index this processor builds (if any), counting from zero */
+  private int shardNum;
+
+  /** When building a sub-index, the progress line being formed */
+  private StringBuffer shardLine;
+
+  /** Percentage done (of this sub-index) for {@link #shardLine}, or -1 if
+   *  it isn't a progress line.
+   */
+  private int shardPercent = -1;
+
+  /** When this processor is a parse worker, the output for the record it is
+   *  working on; the documents it makes are held here rather than being
+   *  added to the index. Null when running single-threaded.
+   */
+  private PendingRecord curOutput;
 
   /** A buffer containing the "blurbified" text to be stored in the index. For
    *  more about how text is "blurbified", see the
@@ -627,8 +693,19 @@ public class XMLTextProcessor extends DefaultHandler
         pluralMap = new WordMap(stream, accentMap);
       }
 
+      // Load the list of source files in the index. If it's missing or out
+      // of date, make a new one from the index itself.
+      //
+      manifest = SrcManifest.load(new File(indexPath), indexReader.numDocs());
+      if (manifest == null)
+        manifest = SrcManifest.fromIndex(indexReader);
+
       // Read in the the list of all the tokenized fields (if any).
       tokenizedFields = XtfSearcher.readTokenizedFields(indexPath, indexReader);
+
+      // Likewise the list of facet fields, used to build facet tables.
+      facetFields = StaticGroupData.readFacetFields(indexPath);
+      sortFields = SortOrds.readSortFields(indexPath);
     } // try
 
     catch (IOException e) 
@@ -666,20 +743,116 @@ public class XMLTextProcessor extends DefaultHandler
   public void close()
     throws IOException 
   {
-    if (spellWriter != null)
-      spellWriter.close();
-    if (indexWriter != null)
-      indexWriter.close();
+    closeWriters();
     if (indexSearcher != null)
       indexSearcher.close();
     if (indexReader != null)
       indexReader.close();
 
-    spellWriter = null;
-    indexWriter = null;
     indexSearcher = null;
     indexReader = null;
-  } // close() 
+
+    // Now that the index is up to date, record its source files for next
+    // time.
+    //
+    if (manifest != null && manifest.isModified()) 
+    {
+      IndexReader reader = IndexReader.open(
+        NativeFSDirectory.getDirectory(indexPath));
+      try {
+        manifest.save(new File(indexPath), reader.numDocs());
+      }
+      finally {
+        reader.close();
+      }
+    }
+  } // close()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Close the index and spelling writers, if open. */
+  private void closeWriters()
+    throws IOException 
+  {
+    if (spellWriter != null)
+      spellWriter.close();
+    if (indexWriter != null)
+      indexWriter.close();
+
+    spellWriter = null;
+    indexWriter = null;
+  } // closeWriters()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Get the list of source files in the index, including changes made
+   * since it was opened. May be null if the index couldn't be opened.
+   */
+  public SrcManifest getManifest() {
+    return manifest;
+  } // getManifest()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Set the number of threads used to parse, prefilter and chunk queued
+   * records. With more than one, each record is handled by a worker thread
+   * which builds its lazy tree and prepares its chunk documents, while the
+   * calling thread adds the finished documents to the index in the same
+   * order as they were queued. Defaults to 1, which does everything on the
+   * calling thread.
+   */
+  public void setThreads(int nThreads) {
+    this.nThreads = Math.max(1, nThreads);
+  } // setThreads()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Set the number of sub-indexes to split queued texts among. With more
+   * than one, the queue is divided into that many consecutive runs of
+   * about the same total size, and each is indexed by its own thread into
+   * a temporary Lucene index. These are then merged into the main index in
+   * order, so the documents end up the same as a single run. Lazy files and
+   * field lists are written straight to the main index. Defaults to 1. <br><br>
+   *
+   * Merging optimizes the main index, which rewrites all of it, so the queue
+   * is only split when it holds more sources than the index has that aren't
+   * being re-indexed. Smaller updates are indexed in place as usual.
+   */
+  public void setShards(int nShards) {
+    this.nShards = Math.max(1, nShards);
+  } // setShards()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Make a worker that shares the configuration of an opened processor,
+   * but keeps its own parsing state and never touches the index. Used by
+   * {@link #processQueuedTexts()} when running multi-threaded.
+   */
+  private XMLTextProcessor makeWorker()
+  {
+    XMLTextProcessor worker = new XMLTextProcessor();
+    worker.indexInfo = indexInfo;
+    worker.xtfHomePath = xtfHomePath;
+    worker.ignoreFileTimes = ignoreFileTimes;
+    worker.indexPath = indexPath;
+    worker.stopSet = stopSet;
+    worker.pluralMap = pluralMap;
+    worker.accentMap = accentMap;
+    worker.tokenizedFields = tokenizedFields;
+    worker.facetFields = facetFields;
+    worker.sortFields = sortFields;
+    worker.tokenAnalyzer = indexInfo.storeTokens
+                           ? new XTFTextAnalyzer(null, pluralMap, accentMap)
+                           : null;
+    worker.blurbedText = new StringBuffer(bufStartSize);
+    worker.accumText = new StringBuffer(bufStartSize);
+    worker.compactedAccumText = new StringBuffer(bufStartSize);
+    return worker;
+  } // makeWorker()
 
   ////////////////////////////////////////////////////////////////////////////
 
@@ -846,6 +1019,9 @@ public class XMLTextProcessor extends DefaultHandler
   ////////////////////////////////////////////////////////////////////////////
 
   /** Remove a single document from the index.<br><br>
+   *
+   *  The deletion is buffered by the index writer, and applied along with
+   *  others the next time it flushes.
    *
    *  @param srcFile    The original XML source file, used to calculate the
    *                    location of the corresponding *.lazy file to delete.
@@ -853,20 +1029,23 @@ public class XMLTextProcessor extends DefaultHandler
    *
    *  @param key        The key associated with the document in the index.
    *
-   *  @return           true if a document was found and removed, false if
-   *                    no match was found.
+   *  @return           true if the document was in the index when it was
+   *                    opened, false if no match was found.
    *
    */
   public boolean removeSingleDoc(File srcFile, String key)
     throws ParserConfigurationException, SAXException, IOException 
   {
-    // Oddly, we need an IndexReader to delete things from a Lucene index.
-    // Make sure we've got one.
-    //
-    openIdxForReading();
+    // See if the document was in the index when we opened it.
+    Term keyTerm = new Term("key", key);
+    boolean found = docExists(key);
 
-    // If any old version of this document exists, delete it.
-    int nDeleted = indexReader.deleteDocuments(new Term("key", key));
+    // Queue deletion of any old version of this document. The writer
+    // applies buffered deletions in batches.
+    //
+    openIdxForWriting();
+    indexWriter.deleteDocuments(keyTerm);
+    manifest.remove(key);
 
     // If there might be a lazy file...
     if (srcFile != null) 
@@ -881,13 +1060,15 @@ public class XMLTextProcessor extends DefaultHandler
       Path.deletePath(lazyFile.toString());
     }
 
-    // Let the caller know if we succeeded in deleting the document's chunks.
-    return nDeleted > 0;
+    // Let the caller know if there were chunks to delete.
+    return found;
   } // removeSingleDoc()
 
   ////////////////////////////////////////////////////////////////////////////
 
-  /** Checks if a given document exists in the index.<br><br>
+  /** Checks if a given document exists in the index. The check is made
+   *  against the index as it was when opened, so documents added or
+   *  deleted since then aren't reflected.<br><br>
    *
    *  @param key        The key associated with the document in the index.
    *
@@ -897,31 +1078,20 @@ public class XMLTextProcessor extends DefaultHandler
   public boolean docExists(String key)
     throws ParserConfigurationException, SAXException, IOException 
   {
-    // We need to find the docInfo chunk that contains the specified
-    // file. So construct a boolean query looking for a chunk with 
-    // a "docInfo" field AND a "key" field containing the specified
-    // source file key.
+    // The manifest lists the docInfo chunk of every document that was in 
+    // the index when it was opened, so there's no need to search.
     //
-    BooleanQuery query = new BooleanQuery();
-    Term docInfo = new Term("docInfo", "1");
-    Term srcPath = new Term("key", key);
-    query.add(new TermQuery(docInfo), BooleanClause.Occur.MUST);
-    query.add(new TermQuery(srcPath), BooleanClause.Occur.MUST);
-
-    // Use the query to see if the document is in the index..
-    Hits match = indexSearcher.search(query);
-
-    // Let the caller know if we found a match.
-    return match.length() > 0;
+    return manifest.find(key) >= 0;
   } // docExists()
 
   ////////////////////////////////////////////////////////////////////////////
 
   /** If the first entry in the file queue requires deletion, we start up
-   *  a batch delete up to {@link #MAX_DELETION_BATCH} deletions. We batch
-   *  these up because in Lucene, you can only delete with an IndexReader.
-   *  It costs time to close our IndexWriter, open an IndexReader for
-   *  the deletions, and then reopen the IndexWriter.
+   *  a batch delete up to {@link #MAX_DELETION_BATCH} deletions. These are
+   *  buffered by the IndexWriter, which applies them all at once when it
+   *  next flushes, rather than closing the writer and reopening the index
+   *  for each one. A buffered deletion only affects documents added before
+   *  it, so the new versions added afterward are safe.
    *
    *  @throws
    *    IOException   Any I/O exceptions encountered when reading the source
@@ -935,11 +1105,8 @@ public class XMLTextProcessor extends DefaultHandler
         !((FileQueueEntry)fileQueue.getFirst()).deleteFirst)
       return;
 
-    // Okay, we need an index reader for the deletions. This has the effect
-    // of closing the index writer, but it will be reopened after the 
-    // deletions.
-    //
-    openIdxForReading();
+    // The deletions are made through the index writer.
+    openIdxForWriting();
 
     // Let's do it.
     int batchSize = 0;
@@ -954,7 +1121,7 @@ public class XMLTextProcessor extends DefaultHandler
         continue;
 
       // Okay, delete chunks from the old document, and clear the flag.
-      indexReader.deleteDocuments(new Term("key", ent.idxSrc.key()));
+      indexWriter.deleteDocuments(new Term("key", ent.idxSrc.key()));
       ent.deleteFirst = false;
     }
   } // public batchDelete()
@@ -1019,9 +1186,26 @@ public class XMLTextProcessor extends DefaultHandler
     }
     if (totalSize < 1)
       totalSize = 1; // avoid divide-by-zero problems
-    long processedSize = 0;
 
-    final int recordBatchSize = 100;
+    // If multiple sub-indexes were requested, split up the work. Merging
+    // them rewrites the whole index though, so only do it when the queue
+    // outweighs what's already there.
+    //
+    if (nShards > 1 && fileQueue.size() > 1) {
+      if (worthSharding()) {
+        shardQueuedTexts(totalSize);
+        return;
+      }
+      Trace.info("Too few changes to shard; indexing them in place.");
+    }
+
+    // If multiple threads were requested, hand the work off to them.
+    if (nThreads > 1) {
+      pipelineQueuedTexts(totalSize);
+      return;
+    }
+
+    long processedSize = 0;
 
     // Process each queued file.
     while (!fileQueue.isEmpty()) 
@@ -1031,9 +1215,7 @@ public class XMLTextProcessor extends DefaultHandler
       // Process deletions in batches.
       batchDelete();
 
-      // Open the index writer (which might have been closed by a batch
-      // deletion.)
-      //
+      // Make sure the index writer is open.
       openIdxForWriting();
 
       // Get the next file.
@@ -1045,6 +1227,7 @@ public class XMLTextProcessor extends DefaultHandler
       // there may be millions.)
       //
       IndexRecord idxRec;
+      boolean anyIndexed = false;
       try 
       {
         while ((idxRec = idxFile.nextRecord()) != null) 
@@ -1056,28 +1239,18 @@ public class XMLTextProcessor extends DefaultHandler
           // Print out a nice message to keep the user informed of
           // our progress.
           //
-          String key = idxFile.key();
-          curPrettyKey = (key.indexOf(':') >= 0)
-                         ? key.substring(key.indexOf(':') + 1) : key;
-          if (recordNum > 0)
-            curPrettyKey += "/" + recordNum;
-
-          if (recordNum == 0 || ((recordNum % recordBatchSize) == 1)) 
+          curPrettyKey = prettyKey(idxFile, recordNum);
+          if (recordNum == 0 || ((recordNum % RECORD_BATCH_SIZE) == 1))
           {
             if (printDone)
-              Trace.more(Trace.info, "Done.");
-
-            // Print a message for the next record.
-            String msg = "";
-            msg = ("(" + percentDone + "%) ");
-            while (msg.length() < 7)
-              msg += " ";
-            Trace.info(msg + "Indexing [" + curPrettyKey + "] ... ");
+              progressDone();
+            printProgress(percentDone);
             printDone = true;
           }
 
           // Now index this record.
-          processText(idxFile, idxRec, recordNum);
+          if (processText(idxFile, idxRec, recordNum) == 0)
+            anyIndexed = true;
         } // while
       }
       catch (SAXException e) 
@@ -1086,14 +1259,520 @@ public class XMLTextProcessor extends DefaultHandler
       }
 
       if (printDone)
-        Trace.more(Trace.info, "Done.");
+        progressDone();
 
+      noteIndexed(ent, anyIndexed);
       processedSize += idxFile.totalSize();
     }
   } // processQueuedTexts()
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Multi-threaded version of {@link #processQueuedTexts()}. <br><br>
+   *
+   *  The calling thread reads records from the queued sources in order and
+   *  hands each to a pool of worker threads, each with its own
+   *  <code>XMLTextProcessor</code>. A worker prefilters and parses its
+   *  record, building the lazy tree and chunk documents, but rather than
+   *  adding the documents to the index it holds onto them. Meanwhile the
+   *  calling thread takes finished records in their original order and adds
+   *  their documents to the index, so the resulting index is the same as a
+   *  single-threaded run. Batch deletions are still done by the calling
+   *  thread, just before each source is started. <br><br>
+   *
+   *  To bound memory use, at most two records per worker are in progress
+   *  or waiting to be written at any one time.
+   *
+   *  @param totalSize  Total size of all queued sources, for progress
+   *                    messages.
+   */
+  private void pipelineQueuedTexts(long totalSize)
+    throws IOException
+  {
+    // Start up the workers.
+    final LinkedBlockingQueue<PendingRecord> workQueue =
+      new LinkedBlockingQueue<PendingRecord>();
+    Thread[] workers = new Thread[nThreads];
+    for (int i = 0; i < nThreads; i++)
+    {
+      final XMLTextProcessor worker = makeWorker();
+      workers[i] = new Thread("indexWorker-" + (i + 1)) {
+        public void run() {
+          worker.workLoop(workQueue);
+        }
+      };
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+
+    LinkedList<PendingRecord> inFlight = new LinkedList<PendingRecord>();
+    int maxInFlight = nThreads * 2;
+    FileQueueEntry curEnt = null;
+    IndexSource curSrc = null;
+    long dispatchedSize = 0;
+    boolean printDone = false;
+    boolean anyIndexed = false;
+
+    try
+    {
+      while (true)
+      {
+        // Keep the workers supplied with records.
+        while (inFlight.size() < maxInFlight)
+        {
+          // Move to the next source if necessary, processing deletions in
+          // batches first.
+          //
+          if (curSrc == null)
+          {
+            if (fileQueue.isEmpty())
+              break;
+            batchDelete();
+            curEnt = (FileQueueEntry)fileQueue.removeFirst();
+            assert !curEnt.deleteFirst; // Should have been processed by batchDelete()
+            curSrc = curEnt.idxSrc;
+          }
+
+          // Get the next record. A null record marks the end of the source.
+          IndexRecord idxRec;
+          try {
+            idxRec = curSrc.nextRecord();
+          }
+          catch (SAXException e) {
+            throw new RuntimeException(e);
+          }
+
+          PendingRecord rec = new PendingRecord(curSrc, idxRec);
+          inFlight.add(rec);
+          if (idxRec == null) {
+            rec.queueEntry = curEnt;
+            dispatchedSize += curSrc.totalSize();
+            curSrc = null;
+            continue;
+          }
+
+          // Capture the record number now; some sources only track the
+          // latest one, and we may read further records before this one
+          // gets processed.
+          //
+          rec.recordNum = idxRec.recordNum();
+          long fileBytesDone = idxRec.percentDone() * curSrc.totalSize() / 100;
+          rec.percentDone = (int)((dispatchedSize + fileBytesDone) * 100 / totalSize);
+          rec.prettyKey = prettyKey(curSrc, rec.recordNum);
+          workQueue.add(rec);
+        }
+
+        // If nothing is left, we're done.
+        if (inFlight.isEmpty())
+          break;
+
+        // Wait for the oldest record to be finished.
+        PendingRecord rec = inFlight.removeFirst();
+        if (rec.record == null) {
+          if (printDone)
+            progressDone();
+          printDone = false;
+          noteIndexed(rec.queueEntry, anyIndexed);
+          anyIndexed = false;
+          continue;
+        }
+        rec.waitDone();
+
+        // Print the same progress messages a single-threaded run would.
+        curPrettyKey = rec.prettyKey;
+        int recordNum = rec.recordNum;
+        if (recordNum == 0 || ((recordNum % RECORD_BATCH_SIZE) == 1))
+        {
+          if (printDone)
+            progressDone();
+          printProgress(rec.percentDone);
+          printDone = true;
+        }
+        for (String msg : rec.moreMsgs)
+          progressMore(msg);
+        for (String msg : rec.infoMsgs)
+          progressInfo(msg);
+
+        // Add its documents to the index.
+        openIdxForWriting();
+        for (PendingDoc doc : rec.docs)
+          doc.addTo(indexWriter);
+        if (rec.result == 0)
+          anyIndexed = true;
+
+        // If the worker ran into trouble, pass it on.
+        if (rec.error instanceof IOException)
+          throw (IOException)rec.error;
+        if (rec.error instanceof RuntimeException)
+          throw (RuntimeException)rec.error;
+        if (rec.error instanceof Error)
+          throw (Error)rec.error;
+        if (rec.error != null)
+          throw new RuntimeException(rec.error);
+      }
+    }
+    finally
+    {
+      // Stop the workers, letting them finish any record they're working on
+      // so that no lazy file is left half-written.
+      //
+      workQueue.clear();
+      for (int i = 0; i < nThreads; i++)
+        workQueue.add(new PendingRecord(null, null));
+      for (int i = 0; i < nThreads; i++) {
+        try {
+          workers[i].join();
+        }
+        catch (InterruptedException e) {
+          break;
+        }
+      }
+    }
+  } // pipelineQueuedTexts()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Main loop of a worker thread started by {@link #pipelineQueuedTexts(long)}.
+   *  Processes records from the queue until it gets one with no source.
+   */
+  private void workLoop(BlockingQueue<PendingRecord> queue)
+  {
+    while (true)
+    {
+      PendingRecord rec;
+      try {
+        rec = queue.take();
+      }
+      catch (InterruptedException e) {
+        continue;
+      }
+      if (rec.source == null)
+        break;
+
+      // Process the record, holding onto the documents it produces.
+      curOutput = rec;
+      curPrettyKey = rec.prettyKey;
+      try {
+        rec.result = processText(rec.source, rec.record, rec.recordNum);
+      }
+      catch (Throwable t) {
+        rec.error = t;
+      }
+      finally {
+        curOutput = null;
+        rec.markDone();
+      }
+    }
+  } // workLoop()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Decide whether the queue is big enough to shard. Merging the
+   *  sub-indexes optimizes the main index, rewriting all of it, so this is
+   *  only worthwhile when the queue holds more sources than the index
+   *  already has that won't be re-indexed (e.g. a clean build.)
+   */
+  private boolean worthSharding()
+  {
+    int nKept = manifest.nEntries();
+    for (Iterator iter = fileQueue.iterator(); iter.hasNext();) {
+      FileQueueEntry ent = (FileQueueEntry)iter.next();
+      if (ent.deleteFirst)
+        --nKept;
+    }
+    return fileQueue.size() > nKept;
+  } // worthSharding()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Sharded version of {@link #processQueuedTexts()}. <br><br>
+   *
+   *  Old versions of all the queued texts are deleted from the main index
+   *  first. The queue is then divided into consecutive runs of about the
+   *  same total size, and each run is handed to its own
+   *  <code>XMLTextProcessor</code>, which indexes it on a separate thread
+   *  into a temporary index under <code>shards/</code> in the index
+   *  directory. Finally the temporary indexes and spelling queues are
+   *  merged into the main index in order, and removed.
+   *
+   *  @param totalSize  Total size of all queued sources.
+   */
+  private void shardQueuedTexts(long totalSize)
+    throws IOException
+  {
+    // Delete old versions of everything in the queue. The main writer 
+    // applies these before the sub-indexes are added to it.
+    //
+    openIdxForWriting();
+    for (Iterator iter = fileQueue.iterator(); iter.hasNext();) 
+    {
+      FileQueueEntry ent = (FileQueueEntry)iter.next();
+      if (ent.deleteFirst) {
+        indexWriter.deleteDocuments(new Term("key", ent.idxSrc.key()));
+        ent.deleteFirst = false;
+      }
+    }
+
+    // Get rid of any sub-indexes left over from an interrupted run.
+    File shardsDir = new File(indexPath + "shards");
+    Path.deleteDir(shardsDir);
+
+    // Divide up the queue, leaving at least one source for each shard.
+    int nParts = Math.min(nShards, fileQueue.size());
+    final XMLTextProcessor[] shards = new XMLTextProcessor[nParts];
+    final ShardProgress progress = new ShardProgress(nParts);
+    long queuedSize = 0;
+    for (int i = 0; i < nParts; i++) 
+    {
+      shards[i] = makeShard(i, progress);
+      long sizeLimit = totalSize * (i + 1) / nParts;
+      long startSize = queuedSize;
+      while (!fileQueue.isEmpty()) 
+      {
+        if (i < nParts - 1 && !shards[i].fileQueue.isEmpty() &&
+            (queuedSize >= sizeLimit || fileQueue.size() < nParts - i))
+          break;
+        FileQueueEntry ent = (FileQueueEntry)fileQueue.removeFirst();
+        queuedSize += ent.idxSrc.totalSize();
+        shards[i].fileQueue.add(ent);
+      }
+      progress.sizes[i] = queuedSize - startSize;
+    }
+
+    // Index each shard on its own thread.
+    final Throwable[] errors = new Throwable[nParts];
+    Thread[] threads = new Thread[nParts];
+    for (int i = 0; i < nParts; i++) 
+    {
+      final int shardNum = i;
+      threads[i] = new Thread("indexShard-" + (i + 1)) {
+        public void run() {
+          XMLTextProcessor shard = shards[shardNum];
+          try {
+            shard.processQueuedTexts();
+          }
+          catch (Throwable t) {
+            errors[shardNum] = t;
+          }
+          finally {
+            shard.flushShardLine();
+            try {
+              shard.closeWriters();
+            }
+            catch (Throwable t) {
+              if (errors[shardNum] == null)
+                errors[shardNum] = t;
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    // Print the shards' progress lines as they come in, until all are done.
+    for (int i = 0; i < nParts; i++) 
+    {
+      while (threads[i].isAlive()) {
+        progress.printLines(500);
+        try {
+          threads[i].join(1);
+        }
+        catch (InterruptedException e) {
+        }
+      }
+    }
+    progress.printLines(0);
+
+    // If any shard ran into trouble, pass it on.
+    for (int i = 0; i < nParts; i++) 
+    {
+      Throwable error = errors[i];
+      if (error == null)
+        continue;
+      Path.deleteDir(shardsDir);
+      if (error instanceof IOException)
+        throw (IOException)error;
+      if (error instanceof RuntimeException)
+        throw (RuntimeException)error;
+      if (error instanceof Error)
+        throw (Error)error;
+      throw new RuntimeException(error);
+    }
+
+    // Merge the spelling queues and indexes into the main index, in order.
+    IndexMerge.DirInfo[] dirInfos = new IndexMerge.DirInfo[nParts + 1];
+    dirInfos[0] = new IndexMerge.DirInfo(indexPath, null);
+    for (int i = 0; i < nParts; i++) {
+      dirInfos[i + 1] = new IndexMerge.DirInfo(
+        shards[i].shardPath, 
+        NativeFSDirectory.getDirectory(shards[i].shardPath));
+    }
+    Trace.info("Merging " + nParts + " Shards:");
+    Trace.tab();
+    IndexMerge.mergeSpelling(dirInfos);
+    IndexMerge.mergeLucene(indexWriter, dirInfos);
+    indexWriter = null;
+    Trace.untab();
+
+    Path.deleteDir(shardsDir);
+  } // shardQueuedTexts()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Make a processor to build one sub-index for
+   *  {@link #shardQueuedTexts(long)}. It shares this processor's settings,
+   *  field lists and manifest, but has its own queue, index writer and
+   *  spelling writer.
+   *
+   *  @param shardNum   Which sub-index to build, counting from zero
+   *  @param progress   Receives the sub-index's progress
+   */
+  private XMLTextProcessor makeShard(int shardNum, ShardProgress progress)
+  {
+    XMLTextProcessor shard = makeWorker();
+    shard.shardPath = indexPath + "shards/" + (shardNum + 1) + "/";
+    shard.shardNum = shardNum;
+    shard.shardProgress = progress;
+    shard.shardLine = new StringBuffer();
+    shard.nThreads = nThreads;
+    shard.manifest = manifest;
+    shard.fileQueue = new LinkedList();
+    Path.createPath(shard.shardPath);
+    return shard;
+  } // makeShard()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Record in the manifest that a source has been processed, with the
+   *  modification time and size it had when it was queued (so that a change
+   *  made while it was being indexed will be picked up next time.) If none
+   *  of its records could be indexed, it's dropped from the manifest so 
+   *  that it will be tried again next time.
+   */
+  private void noteIndexed(FileQueueEntry ent, boolean anyIndexed)
+  {
+    if (anyIndexed && ent.fileTime >= 0)
+      manifest.put(ent.idxSrc.key(), ent.fileTime, ent.fileSize);
+    else
+      manifest.remove(ent.idxSrc.key());
+  } // noteIndexed()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Make the name to display in progress messages for a given record */
+  private static String prettyKey(IndexSource idxSrc, int recordNum)
+  {
+    String key = idxSrc.key();
+    String prettyKey = (key.indexOf(':') >= 0)
+                       ? key.substring(key.indexOf(':') + 1) : key;
+    if (recordNum > 0)
+      prettyKey += "/" + recordNum;
+    return prettyKey;
+  } // prettyKey()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Print a progress message for the record in {@link #curPrettyKey}.
+   *  When building a sub-index, the percentage is filled in when the line
+   *  is complete (see {@link ShardProgress#addLine(int, int, String)}).
+   */
+  private void printProgress(int percentDone)
+  {
+    String msg = "Indexing [" + curPrettyKey + "] ... ";
+    if (shardLine != null) {
+      progressInfo(msg);
+      shardPercent = percentDone;
+    }
+    else
+      Trace.info(percentPrefix(percentDone) + msg);
+  } // printProgress()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Make the "(nn%)" that starts a progress line */
+  private static String percentPrefix(int percentDone)
+  {
+    String msg = "(" + percentDone + "%) ";
+    while (msg.length() < 7)
+      msg += " ";
+    return msg;
+  } // percentPrefix()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Finish off the current progress line. */
+  private void progressDone()
+  {
+    progressMore("Done.");
+    flushShardLine();
+  } // progressDone()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** When building a sub-index, hand the progress line formed so far to
+   *  the thread printing them all.
+   */
+  private void flushShardLine()
+  {
+    if (shardLine == null || shardLine.length() == 0)
+      return;
+    shardProgress.addLine(shardNum, shardPercent, shardLine.toString());
+    shardLine.setLength(0);
+    shardPercent = -1;
+  } // flushShardLine()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Append to the current progress line. When working on behalf of
+   *  {@link #pipelineQueuedTexts(long)}, the message is saved and printed
+   *  later, in order, by the thread writing the index. When building a
+   *  sub-index, the line is printed once it's complete.
+   */
+  private void progressMore(String msg)
+  {
+    if (curOutput != null)
+      curOutput.moreMsgs.add(msg);
+    else if (shardLine != null)
+      shardLine.append(msg);
+    else
+      Trace.more(Trace.info, msg);
+  } // progressMore()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Print a progress message on a new line. When working on behalf of
+   *  {@link #pipelineQueuedTexts(long)}, the message is saved and printed
+   *  later, in order, by the thread writing the index. When building a
+   *  sub-index, the line is printed once it's complete.
+   */
+  private void progressInfo(String msg)
+  {
+    if (curOutput != null)
+      curOutput.infoMsgs.add(msg);
+    else if (shardLine != null) {
+      flushShardLine();
+      shardLine.append(msg);
+    }
+    else
+      Trace.info(msg);
+  } // progressInfo()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Add a document to the index or, when working on behalf of
+   *  {@link #pipelineQueuedTexts(long)}, save it for the writing thread.
+   */
+  private void addDocument(PendingDoc doc)
+    throws IOException
+  {
+    if (curOutput != null)
+      curOutput.docs.add(doc);
+    else
+      doc.addTo(indexWriter);
+  } // addDocument()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /** Add the specified XML source record to the active Lucene index.
    *
    *  This method indexes the specified XML source text file, adding it to the
@@ -1124,6 +1803,7 @@ public class XMLTextProcessor extends DefaultHandler
     //
     curIdxSrc = file;
     curIdxRecord = record;
+    curRecordNum = recordNum;
 
     // Build a lazy tree if requested.
     lazyStore = record.lazyStore();
@@ -1328,25 +2008,28 @@ public class XMLTextProcessor extends DefaultHandler
       }
       
       // Tell the caller (and the user) that ther was an error..      
-      Trace.more(Trace.info, "Skipping Due to Errors");
+      progressMore("Skipping Due to Errors");
 
       String message = "*** XML Parser Exception: " + t.getClass() + "\n" +
                        "    With message: " + t.getMessage() + "\n" +
                        "    File: " + curPrettyKey;
-      if (curIdxRecord.recordNum() > 0)
-        message += ("\n    Record number: " + curIdxRecord.recordNum());
+      if (curRecordNum > 0)
+        message += ("\n    Record number: " + curRecordNum);
 
-      Trace.info(message);
+      progressInfo(message);
 
       // We need to delete any chunks that did make it through for this document,
       // otherwise they would end up improperly tacked onto the beginning of the
-      // next document.
+      // next document. If they're still being held for the writing thread,
+      // simply throw them away. Otherwise the writer's buffered deletion
+      // will remove just the chunks added so far.
       //
-      if (docWordCount > 0 || subDocsWritten.size() > 0)
+      if (curOutput != null)
+        curOutput.docs.clear();
+      else if (docWordCount > 0 || subDocsWritten.size() > 0)
       {
         try {
-          openIdxForReading();
-          indexReader.deleteDocuments(new Term("key", curIdxSrc.key()));
+          indexWriter.deleteDocuments(new Term("key", curIdxSrc.key()));
         }
         catch (Throwable t2) {
           Trace.warning("Warning: Error deleting partially complete document's chunks: " + 
@@ -1383,8 +2066,10 @@ public class XMLTextProcessor extends DefaultHandler
     // Register a lazy key manager
     PreparedStylesheet pss = (PreparedStylesheet)stylesheet;
     Executable exec = pss.getExecutable();
-    if (!(exec.getKeyManager() instanceof LazyKeyManager))
-      exec.setKeyManager(new LazyKeyManager(pss.getConfiguration(), exec.getKeyManager()));
+    synchronized (exec) { // worker threads may share the stylesheet
+      if (!(exec.getKeyManager() instanceof LazyKeyManager))
+        exec.setKeyManager(new LazyKeyManager(pss.getConfiguration(), exec.getKeyManager()));
+    }
 
     Transformer trans = pss.newTransformer();
     LazyKeyManager keyMgr = (LazyKeyManager)exec.getKeyManager();
@@ -1395,8 +2080,8 @@ public class XMLTextProcessor extends DefaultHandler
     //
     int nKeysCreated = keyMgr.createAllKeys(doc,
                                             ((Controller)trans).newXPathContext());
-    Trace.more(Trace.info, "(" + nKeysCreated + " stored " +
-               ((nKeysCreated == 1) ? "key" : "keys") + ") ... ");
+    progressMore("(" + nKeysCreated + " stored " +
+                 ((nKeysCreated == 1) ? "key" : "keys") + ") ... ");
 
     // Make sure to close it when we're done.
     doc.close();
@@ -1535,6 +2220,20 @@ public class XMLTextProcessor extends DefaultHandler
           isFacet = true;
       }
 
+      // See if there is a "sort" attribute set for this node. If not, 
+      // default to true for fields named "sort-..." (as made by the stock
+      // pre-filters), false for others.
+      //
+      boolean isSort = localName.startsWith("sort-");
+      tokIdx = atts.getIndex(xtfUri, "sort");
+      if (tokIdx >= 0) {
+        String tokStr = atts.getValue(tokIdx);
+        if (tokStr != null && (tokStr.equals("yes") || tokStr.equals("true")))
+          isSort = true;
+        else if (tokStr != null && (tokStr.equals("no") || tokStr.equals("false")))
+          isSort = false;
+      }
+
       // See if there is a "spell" attribute set for this node. If not,
       // default to true.
       //
@@ -1568,6 +2267,7 @@ public class XMLTextProcessor extends DefaultHandler
                                 index,
                                 tokenize,
                                 isFacet,
+                                isSort,
                                 spell,
                                 boost,
                                 false);
@@ -2891,20 +3591,36 @@ public class XMLTextProcessor extends DefaultHandler
     textField.setBoost(secInfo.wordBoost);
 
     // Establish whether to add words to the spellcheck dictionary.
-    XTFTextAnalyzer analyzer = (XTFTextAnalyzer)indexWriter.getAnalyzer();
-    analyzer.clearMisspelledFields();
+    PendingDoc pending = new PendingDoc(doc);
+    pending.clearMisspelled = true;
     if (secInfo.spellFlag == SectionInfo.noSpell)
-      analyzer.addMisspelledField("text");
+      pending.misspelledFields.add("text");
 
     // Finally, add the text in the chunk to the index as a stored, indexed,
     // tokenized field.
     //
     doc.add(textField);
 
+    // If requested, also store the tokens, using the same analysis the
+    // snippet maker does (i.e. no stop words), so it needn't re-tokenize.
+    //
+    if (tokenAnalyzer != null) 
+    {
+      try {
+        byte[] packed = PackedTokens.pack(
+          tokenAnalyzer.tokenStream("text", new FastStringReader(textStr)),
+          textStr);
+        doc.add(new Field(PackedTokens.FIELD_NAME, packed, Field.Store.YES));
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
     try 
     {
       // Add the resulting list of fields (document) to the index.
-      indexWriter.addDocument(doc);
+      addDocument(pending);
 
       // Account for the new chunk added.
       chunkCount++;
@@ -3536,10 +4252,9 @@ public class XMLTextProcessor extends DefaultHandler
                       Field.Store.YES, Field.Index.UN_TOKENIZED));
 
     // If record number is non-zero, write it out as a stored, non-indexed field.
-    int recordNum = curIdxRecord.recordNum();
-    if (recordNum > 0) {
+    if (curRecordNum > 0) {
       doc.add(new Field("recordNum",
-                        Integer.toString(recordNum),
+                        Integer.toString(curRecordNum),
                         Field.Store.YES, Field.Index.NO));
     }
 
@@ -3566,11 +4281,11 @@ public class XMLTextProcessor extends DefaultHandler
       doc.add(new Field("fileDate", fileDateStr, Field.Store.YES, Field.Index.NO));
     }
 
-    // Get the analyzer that will be used to tokenize fields. Tell it to
-    // forget what it knows about facet fields (we'll re-mark them below.)
+    // The analyzer that will be used to tokenize fields should forget what
+    // it knows about facet fields (we'll re-mark them below.)
     //
-    XTFTextAnalyzer analyzer = (XTFTextAnalyzer)indexWriter.getAnalyzer();
-    analyzer.clearFacetFields();
+    PendingDoc pending = new PendingDoc(doc);
+    pending.clearFacets = true;
 
     // Make sure we got meta-info for this document.
     if (secInfo.metaInfo.isEmpty()) {
@@ -3596,14 +4311,16 @@ public class XMLTextProcessor extends DefaultHandler
         //
         if (metaField.isFacet && metaField.index) {
           metaField.tokenize = true;
-          analyzer.addFacetField(metaField.name);
+          pending.facetFields.add(metaField.name);
+          addToFieldList(facetFields, StaticGroupData.FACET_FIELDS_FILE, 
+                         metaField.name);
         }
 
         // If it's marked as misspelled, inform the analyzer so it doesn't
         // add the field data to the spelling correction dictionary.
         //
         if (!metaField.spell && metaField.index)
-          analyzer.addMisspelledField(metaField.name);
+          pending.misspelledFields.add(metaField.name);
 
         // Add it to the document. Store, index, and/or tokenize as
         // specified by the field.
@@ -3625,10 +4342,18 @@ public class XMLTextProcessor extends DefaultHandler
         //
         if (metaField.tokenize && !metaField.isFacet) 
         {
-          if (!tokenizedFields.contains(metaField.name)) {
-            addToTokenizedFieldsFile(metaField.name);
-            tokenizedFields.add(metaField.name);
-          }
+          addToFieldList(tokenizedFields, "tokenizedFields.txt", 
+                         metaField.name);
+        }
+
+        // Likewise record the (untokenized) fields meant for sorting, so
+        // the optimizer can build sort tables for them.
+        //
+        if (metaField.isSort && metaField.index && !metaField.tokenize && 
+            !metaField.isFacet) 
+        {
+          addToFieldList(sortFields, SortOrds.SORT_FIELDS_FILE, 
+                         metaField.name);
         }
       } // while(  metaIter.hasNext() )
     } // else( metaInfo != null && !metaInfo.isEmpty() )
@@ -3636,7 +4361,7 @@ public class XMLTextProcessor extends DefaultHandler
     try 
     {
       // Add the document info block to the index.
-      indexWriter.addDocument(doc);
+      addDocument(pending);
     }
 
     // If something went wrong...
@@ -3657,17 +4382,35 @@ public class XMLTextProcessor extends DefaultHandler
   ////////////////////////////////////////////////////////////////////////////
 
   /**
-   * Adds a field to the on-disk list of tokenized fields for an index.
-   * Exceptions are handled internally and thrown as RuntimeException.
+   * Adds a field to one of the field lists for an index (e.g. the list of
+   * tokenized fields), in memory and on disk, if it isn't there already.
+   * The list is locked, since worker threads share it.
    */
-  private void addToTokenizedFieldsFile(String field)
+  private void addToFieldList(Set fields, String fileName, String field)
+  {
+    synchronized (fields) {
+      if (!fields.contains(field)) {
+        addToFieldListFile(fileName, field);
+        fields.add(field);
+      }
+    }
+  } // addToFieldList()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Adds a field to one of the on-disk field lists for an index (e.g. the
+   * list of tokenized fields.) Exceptions are handled internally and thrown 
+   * as RuntimeException.
+   */
+  private void addToFieldListFile(String fileName, String field)
   {
     try 
     {
       // If we wrote directly to the file, it could mess with indexes that have
       // hard-links to the existing file. Instead, write a new one and then rename.
       //
-      String path = Path.normalizePath(indexPath) + "tokenizedFields.txt";
+      String path = Path.normalizePath(indexPath) + fileName;
       File oldFile = new File(path);
       File tmpFile = new File(path + ".tmp");
       BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile));
@@ -3708,7 +4451,7 @@ public class XMLTextProcessor extends DefaultHandler
     {
       // Log the problem.
       Trace.tab();
-      Trace.error("*** Exception Adding to tokenizedFields.txt: " + t);
+      Trace.error("*** Exception Adding to " + fileName + ": " + t);
       Trace.untab();
 
       if (t instanceof RuntimeException)
@@ -3754,74 +4497,54 @@ public class XMLTextProcessor extends DefaultHandler
    *     {@link XMLTextProcessor#curIdxSrc curIdxSrc} member. <br><br>
    *
    *     An XML source document needs reindexing if its modification date
-   *     differs from the modification date stored in the summary info chunk
-   *     the last time it was indexed. <br><br>
+   *     or size differs from that recorded in the {@link SrcManifest} the
+   *     last time it was indexed. The manifest is kept in the index
+   *     directory, so no Lucene query is needed. <br><br>
    */
   private int checkFile(IndexSource srcInfo)
     throws IOException 
   {
-    // We need to find the docInfo chunk that contains the specified
-    // file. So construct a boolean query looking for a chunk with 
-    // a "docInfo" field AND a "key" field containing the specified
-    // source file key.
+    // Look up the file in the manifest, which records the modification
+    // date and size of each file as of when it was indexed.
     //
-    BooleanQuery query = new BooleanQuery();
-    Term docInfo = new Term("docInfo", "1");
-    Term keyTerm = new Term("key", srcInfo.key());
-    query.add(new TermQuery(docInfo), BooleanClause.Occur.MUST);
-    query.add(new TermQuery(keyTerm), BooleanClause.Occur.MUST);
+    int entry = manifest.find(srcInfo.key());
+    if (entry < 0)
+      return 0;
 
-    // Use the query to see if the document is in the index..
-    boolean docInIndex = false;
-    boolean docChanged = false;
+    // See what the date and size are on the actual source file right now.
+    File srcPath = srcInfo.path();
+    long fileTime = srcPath.lastModified();
+    long fileSize = srcPath.length();
+    long indexSize = manifest.fileSize(entry);
 
-    Hits match = indexSearcher.search(query);
-    if (match.length() > 0) 
+    // If they're the same (and we're not ignoring them), the index is up 
+    // to date. If the size wasn't known (because the manifest was made
+    // from the index), fill it in for next time.
+    //
+    if (fileTime == manifest.fileTime(entry) && 
+        (fileSize == indexSize || indexSize < 0) && !ignoreFileTimes)
     {
-      // Flag that the document is in the index.
-      docInIndex = true;
-
-      // Get the file modification date from the "docInfo" chunk.
-      Document doc = match.doc(0);
-      String indexDateStr = doc.get("fileDate");
-
-      // See what the date is on the actual source file right now.
-      File srcPath = srcInfo.path();
-      String fileDateStr = DateTools.timeToString(
-        srcPath.lastModified(), 
-        DateTools.Resolution.MILLISECOND);
-
-      // If the dates are different (or we're ignoring them)...
-      if (fileDateStr.compareTo(indexDateStr) != 0 || ignoreFileTimes) 
-      {
-        // Delete the old lazy file, if any. Might as well delete any
-        // empty parent directories as well.
-        //
-        File lazyFile = IndexUtil.calcLazyPath(new File(xtfHomePath),
-                                               indexInfo,
-                                               srcPath,
-                                               false);
-        Path.deletePath(lazyFile.toString());
-
-        // And flag that we need to re-add them.
-        docInIndex = true;
-        docChanged = true;
-
-        ////////////////////////////////////////////////////////
-        //                                                    //                  
-        // (We reindex like this with a 'remove and add'      //
-        //  because Lucene doesn't have a 'reindex document' //
-        //  operation.)                                       //
-        //                                                    //
-        ////////////////////////////////////////////////////////
-      } // if( fileDateStr.compareTo(indexDateStr) != 0 ) 
-    } // if( match.length() > 0 )
-
-    // Now let the caller know the status.
-    if (!docInIndex)
-      return 0;
-    if (!docChanged)
+      if (indexSize < 0)
+        manifest.put(srcInfo.key(), fileTime, fileSize);
       return 1;
+    }
+
+    // Delete the old lazy file, if any. Might as well delete any
+    // empty parent directories as well.
+    //
+    File lazyFile = IndexUtil.calcLazyPath(new File(xtfHomePath),
+                                           indexInfo,
+                                           srcPath,
+                                           false);
+    Path.deletePath(lazyFile.toString());
+
+    ////////////////////////////////////////////////////////
+    //                                                    //                  
+    // (We reindex like this with a 'remove and add'      //
+    //  because Lucene doesn't have a 'reindex document' //
+    //  operation.)                                       //
+    //                                                    //
+    ////////////////////////////////////////////////////////
     return 2;
   } // checkFile()
 
@@ -3837,7 +4560,7 @@ public class XMLTextProcessor extends DefaultHandler
   {
     try 
     {
-      // Open the index writer (which closes the reader and searcher).
+      // Open the index writer.
       openIdxForWriting();
 
       // Run the optimizer.
@@ -3860,32 +4583,23 @@ public class XMLTextProcessor extends DefaultHandler
 
   ////////////////////////////////////////////////////////////////////////////
 
-  /** Open the active Lucene index database for reading (and deleting, an
-   *  oddity in Lucene). <br><br>
+  /** Open the active Lucene index database for reading. <br><br>
    *
    *  @throws
    *    IOException  Any exceptions generated during the creation of the
-   *                 Lucene database writer object.
+   *                 Lucene database reader object.
    *
    *  @.notes
    *    This method attempts to open the Lucene database specified by the
-   *    {@link XMLTextProcessor#indexPath indexPath} member for reading
-   *    and/or deleting. It is strange that you delete things from a
-   *    Lucene index by using an IndexReader, but hey, whatever floats your
-   *    boat man.
+   *    {@link XMLTextProcessor#indexPath indexPath} member for reading.
+   *    The reader is only needed while opening the index (to check it and
+   *    load the {@link SrcManifest}), and is closed when the writer is 
+   *    opened. All deletions are done through the writer.
    *    <br><br>
    */
   private void openIdxForReading()
     throws IOException 
   {
-    if (indexWriter != null)
-      indexWriter.close();
-    indexWriter = null;
-
-    if (spellWriter != null)
-      spellWriter.close();
-    spellWriter = null;
-
     if (indexReader == null)
       indexReader = IndexReader.open(NativeFSDirectory.getDirectory(indexPath));
 
@@ -3908,7 +4622,7 @@ public class XMLTextProcessor extends DefaultHandler
     throws IOException 
   {
     // Close the reader and searcher, since doing so will make indexing 
-    // go much more quickly.
+    // go much more quickly (and lets the writer delete old segments.)
     //
     if (indexSearcher != null)
       indexSearcher.close();
@@ -3921,14 +4635,29 @@ public class XMLTextProcessor extends DefaultHandler
     if (indexWriter != null)
       return;
 
+    // The manifest will be out of date until the index is closed, so get 
+    // rid of it in case we don't make it that far.
+    //
+    SrcManifest.invalidate(new File(indexPath));
+    if (manifest != null)
+      manifest.setModified();
+
     // Make an analyzer that does all kinds of special stuff for us.
     XTFTextAnalyzer analyzer = new XTFTextAnalyzer(stopSet, pluralMap, accentMap);
 
     // Create an index writer, using the selected index db Path
-    // and create mode. Pass it our own text analyzer. 
+    // and create mode (a sub-index always starts out empty). Pass it
+    // our own text analyzer. 
+    //
+    String writePath = (shardPath != null) ? shardPath : indexPath;
+    Directory indexDir = NativeFSDirectory.getDirectory(writePath);
+    indexWriter = new IndexWriter(indexDir, analyzer, shardPath != null);
+
+    // If storing tokens, make a separate analyzer that matches the one the
+    // snippet maker uses.
     //
-    Directory indexDir = NativeFSDirectory.getDirectory(indexPath);
-    indexWriter = new IndexWriter(indexDir, analyzer, false);
+    tokenAnalyzer = indexInfo.storeTokens 
+                    ? new XTFTextAnalyzer(null, pluralMap, accentMap) : null;
 
     // Since we end up adding tons of little 'documents' to Lucene, it's much 
     // faster to queue up a bunch in RAM before sorting and writing them out. 
@@ -3937,13 +4666,16 @@ public class XMLTextProcessor extends DefaultHandler
     //
     indexWriter.setMaxBufferedDocs(100);
 
+    // Buffer deletions too, so that many can be applied in one pass.
+    indexWriter.setMaxBufferedDeleteTerms(MAX_DELETION_BATCH);
+
     // If requested to make a spellcheck dictionary for this index, attach 
     // a spelling writer to the text analyzer, so that tokenized words get 
     // passed to it and queued.
     //
     if (indexInfo.createSpellcheckDict) {
       if (spellWriter == null) {
-        spellWriter = SpellWriter.open(new File(indexPath + "spellDict/"));
+        spellWriter = SpellWriter.open(new File(writePath + "spellDict/"));
         spellWriter.setStopwords(stopSet);
         spellWriter.setMinWordFreq(3);
       }
@@ -3960,19 +4692,21 @@ public class XMLTextProcessor extends DefaultHandler
     public boolean index;
     public boolean tokenize;
     public boolean isFacet;
+    public boolean isSort;
     public boolean spell;
     public float wordBoost;
     public boolean isInherited;
 
     public MetaField(String name, boolean store, boolean index,
-                     boolean tokenize, boolean isFacet, boolean spell,
-                     float wordBoost, boolean isInherited) 
+                     boolean tokenize, boolean isFacet, boolean isSort, 
+                     boolean spell, float wordBoost, boolean isInherited) 
     {
       this.name = name;
       this.store = store;
       this.index = index;
       this.tokenize = tokenize;
       this.isFacet = isFacet;
+      this.isSort = isSort;
       this.spell = spell;
       this.wordBoost = wordBoost;
     }
@@ -3989,10 +4723,160 @@ public class XMLTextProcessor extends DefaultHandler
   {
     public IndexSource idxSrc;
     public boolean deleteFirst;
+    
+    /** Modification time of the source file when queued (-1 if no file) */
+    public long fileTime = -1;
+    
+    /** Size of the source file when queued */
+    public long fileSize;
 
-    public FileQueueEntry(IndexSource idxSrc, boolean deleteFirst) {
+    public FileQueueEntry(IndexSource idxSrc, boolean deleteFirst) 
+    {
       this.idxSrc = idxSrc;
       this.deleteFirst = deleteFirst;
+      File srcPath = idxSrc.path();
+      if (srcPath != null) {
+        fileTime = srcPath.lastModified();
+        fileSize = srcPath.length();
+      }
     }
   } // private class FileQueueEntry
+
+  ////////////////////////////////////////////////////////////////////////////
+  /** A document ready to add to the index, together with the changes to
+   *  make to the analyzer's field settings just before adding it.
+   */
+  private static class PendingDoc 
+  {
+    public Document doc;
+    public boolean clearFacets;
+    public boolean clearMisspelled;
+    public ArrayList<String> facetFields = new ArrayList<String>();
+    public ArrayList<String> misspelledFields = new ArrayList<String>();
+
+    public PendingDoc(Document doc) {
+      this.doc = doc;
+    }
+
+    /** Set up the writer's analyzer and add the document */
+    public void addTo(IndexWriter writer)
+      throws IOException 
+    {
+      XTFTextAnalyzer analyzer = (XTFTextAnalyzer)writer.getAnalyzer();
+      if (clearFacets)
+        analyzer.clearFacetFields();
+      for (String field : facetFields)
+        analyzer.addFacetField(field);
+      if (clearMisspelled)
+        analyzer.clearMisspelledFields();
+      for (String field : misspelledFields)
+        analyzer.addMisspelledField(field);
+      writer.addDocument(doc);
+    }
+  } // private class PendingDoc
+
+  ////////////////////////////////////////////////////////////////////////////
+  /** A record being processed by a worker thread, and its output */
+  private static class PendingRecord 
+  {
+    public IndexSource source;
+    public IndexRecord record;
+    public int recordNum;
+    public FileQueueEntry queueEntry; // only set on the end-of-source marker
+    public String prettyKey;
+    public int percentDone;
+    public ArrayList<PendingDoc> docs = new ArrayList<PendingDoc>();
+    public ArrayList<String> moreMsgs = new ArrayList<String>();
+    public ArrayList<String> infoMsgs = new ArrayList<String>();
+    public int result = -1;
+    public Throwable error;
+    private boolean done;
+
+    public PendingRecord(IndexSource source, IndexRecord record) {
+      this.source = source;
+      this.record = record;
+    }
+
+    public synchronized void markDone() {
+      done = true;
+      notifyAll();
+    }
+
+    public synchronized void waitDone() 
+    {
+      while (!done) {
+        try {
+          wait();
+        }
+        catch (InterruptedException e) {
+        }
+      }
+    }
+  } // private class PendingRecord
+
+  ////////////////////////////////////////////////////////////////////////////
+  /** Progress of the sub-indexes being built by 
+   *  {@link XMLTextProcessor#shardQueuedTexts(long)}. The sub-indexes hand
+   *  in whole progress lines, which a single thread prints, so that lines
+   *  from different sub-indexes don't get mixed up.
+   */
+  private static class ShardProgress 
+  {
+    /** Total size of the sources queued for each sub-index */
+    public long[] sizes;
+    
+    /** Latest percentage done reported by each sub-index */
+    private int[] percents;
+    
+    /** Progress lines waiting to be printed */
+    private LinkedBlockingQueue<String> lines = 
+      new LinkedBlockingQueue<String>();
+
+    public ShardProgress(int nShards) {
+      sizes = new long[nShards];
+      percents = new int[nShards];
+    }
+
+    /** Queue a complete line to be printed. For a progress line, the
+     *  sub-index's percentage done is recorded, and the line is marked 
+     *  with the overall percentage done and the sub-index number.
+     *
+     *  @param shard        Sub-index the line is from
+     *  @param percentDone  Percentage of the sub-index done, or -1 if the
+     *                      line isn't a progress line.
+     *  @param line         Text of the line
+     */
+    public synchronized void addLine(int shard, int percentDone, String line) 
+    {
+      if (percentDone >= 0) 
+      {
+        percents[shard] = percentDone;
+        long done = 0;
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+          done += percents[i] * sizes[i];
+          total += sizes[i];
+        }
+        int overall = (total > 0) ? (int)(done / total) : percentDone;
+        line = percentPrefix(overall) + "[shard " + (shard + 1) + "] " + line;
+      }
+      lines.add(line);
+    } // addLine()
+
+    /** Print the progress lines queued so far, waiting up to the given time
+     *  for the first one.
+     */
+    public void printLines(long waitMillis) 
+    {
+      try {
+        String line = lines.poll(waitMillis, TimeUnit.MILLISECONDS);
+        while (line != null) {
+          Trace.info(line);
+          line = lines.poll();
+        }
+      }
+      catch (InterruptedException e) {
+      }
+    } // printLines()
+  } // private class ShardProgress
 } // class XMLTextProcessor
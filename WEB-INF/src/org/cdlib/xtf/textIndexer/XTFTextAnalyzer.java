@@ -138,13 +138,6 @@ public class XTFTextAnalyzer extends Analyzer
   /** The set of accented chars to remove diacritics from */
   private CharMap accentMap;
 
-  /** A reference to the contiguous source text block to be tokenized and
-   *  filtered. (Used by the {@link XTFTextAnalyzer#tokenStream(String,Reader) tokenStream()}
-   *  method to read the source text for filter operations in random access
-   *  fashion.)
-   */
-  private String srcText;
-
   /**
    * List of fields marked as "facets" and thus get special tokenization
    */
@@ -268,8 +261,10 @@ public class XTFTextAnalyzer extends Analyzer
     else
       fastReader = new FastStringReader(reader);
 
-    // Record the text string for later use.
-    srcText = fastReader.getString();
+    // Record the text string for later use (kept local, so that several
+    // threads may share one analyzer.)
+    //
+    String srcText = fastReader.getString();
 
     // If this is a facet field, tokenize it specially.
     if (facetFields.contains(fieldName))
@@ -30,10 +30,17 @@ package org.cdlib.xtf.util;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.WeakHashMap;
 
 /**
  * Provides quick access to a disk-based hash table created by
- * a {@link DiskHashWriter}.
+ * a {@link DiskHashWriter}. All reads are positional, so when the
+ * underlying file is memory mapped, lookups go straight to the map without
+ * locking or seeking. If the writer stored a Bloom filter, it's loaded
+ * into memory, and most lookups for keys that aren't present return
+ * without reading the table at all. When the hash is opened through its
+ * {@link StructuredStore}, the filter is only read once per store.
  *
  * @author Martin Haye
  */
@@ -42,6 +49,18 @@ public class DiskHashReader
   /** Size of the header we expect to find */
   static final int headerSize = 12;
 
+  /** Marks the end of a hash that has a Bloom filter */
+  static final byte[] bloomMagic = { 'b', 'l', 'm', '1' };
+
+  /** Size of the trailer following the Bloom filter */
+  static final int bloomTrailerSize = 12;
+
+  /** Number of bits in the Bloom filter for each key */
+  static final int bloomBitsPerKey = 10;
+
+  /** Number of bits set in the Bloom filter for each key (when writing) */
+  static final int bloomProbes = 7;
+
   /** SubStore to read the hash from */
   private SubStoreReader subfile;
 
@@ -51,12 +70,44 @@ public class DiskHashReader
   /** Size of each hash slot */
   private int slotSize;
 
+  /** Buffer used to read slot offsets */
+  private byte[] offsetBytes = new byte[4];
+
   /** Buffer used to read hash slot bytes */
   private byte[] slotBytes;
 
   /** Used to decode hash slot values */
   private PackedByteBuf slotBuf;
 
+  /** Bloom filter bits, or null if the hash doesn't have a filter */
+  private byte[] bloomBits;
+
+  /** Number of bits set in the Bloom filter for each key */
+  private int nProbes;
+
+  /** Number of lookups rejected by the Bloom filter */
+  private int nFiltered = 0;
+
+  /** 
+   * Bloom filters already loaded, per store and sub-store name. Sub-stores
+   * can't be re-written, so a filter stays good as long as its store is 
+   * around.
+   */
+  private static WeakHashMap filterCache = new WeakHashMap();
+
+  /** Marks a cached hash that has no Bloom filter */
+  private static final BloomFilter NO_FILTER = new BloomFilter(null, 0);
+
+  /**
+   * Forget the filters loaded from a store whose file has changed, rather
+   * than waiting for the store to be collected.
+   */
+  public static void forgetStore(StructuredStore store) {
+    synchronized (filterCache) {
+      filterCache.remove(store);
+    }
+  }
+
   /**
    * Read in the header of of the hash from the given subfile.
    *
@@ -64,26 +115,112 @@ public class DiskHashReader
    */
   public DiskHashReader(SubStoreReader subfile)
     throws IOException 
+  {
+    this(subfile, null, null);
+  }
+
+  /**
+   * Open the hash stored in the given sub-store. If the hash has a Bloom
+   * filter, it's only read the first time the sub-store is opened this way.
+   *
+   * @param store     Store containing the hash
+   * @param name      Name of the sub-store written by 
+   *                  DiskHashWriter.outputTo()
+   */
+  public DiskHashReader(StructuredStore store, String name)
+    throws IOException 
+  {
+    this(store.openSubStore(name), store, name);
+  }
+
+  /**
+   * Read in the header of the hash, and its Bloom filter (if any).
+   *
+   * @param subfile   Must have been created by DiskHashWriter.outputTo()
+   * @param store     Store containing the subfile, or null to not cache 
+   *                  the filter.
+   * @param name      Name of the subfile within the store
+   */
+  private DiskHashReader(SubStoreReader subfile, StructuredStore store,
+                         String name)
+    throws IOException 
   {
     this.subfile = subfile;
 
     // Read the header.
-    byte[] magic = new byte[4];
-    subfile.read(magic);
-    if (magic[0] != 'h' ||
-        magic[1] != 'a' ||
-        magic[2] != 's' ||
-        magic[3] != 'h')
+    byte[] header = new byte[headerSize];
+    subfile.read(0, header, 0, headerSize);
+    if (header[0] != 'h' ||
+        header[1] != 'a' ||
+        header[2] != 's' ||
+        header[3] != 'h')
       throw new IOException("SubStore isn't a proper DiskHash");
 
-    nSlots = subfile.readInt();
-    slotSize = subfile.readInt();
+    nSlots = getInt(header, 4);
+    slotSize = getInt(header, 8);
 
     // Allocate the slot buffer.
     slotBytes = new byte[slotSize];
     slotBuf = new PackedByteBuf(slotBytes);
+
+    // Use the filter we loaded before, if any; otherwise read it now.
+    BloomFilter filter = null;
+    HashMap storeFilters = null;
+    if (store != null) 
+    {
+      synchronized (filterCache) {
+        storeFilters = (HashMap)filterCache.get(store);
+        if (storeFilters == null) {
+          storeFilters = new HashMap();
+          filterCache.put(store, storeFilters);
+        }
+        filter = (BloomFilter)storeFilters.get(name);
+      }
+    }
+
+    if (filter == null) 
+    {
+      filter = readFilter(subfile);
+      if (storeFilters != null) {
+        synchronized (filterCache) {
+          storeFilters.put(name, filter);
+        }
+      }
+    }
+
+    bloomBits = filter.bits;
+    nProbes = filter.nProbes;
   } // constructor
 
+  /**
+   * Read the Bloom filter at the end of a hash.
+   *
+   * @param subfile   The hash to read
+   * @return          The filter, or NO_FILTER if the hash doesn't have one.
+   */
+  private static BloomFilter readFilter(SubStoreReader subfile)
+    throws IOException 
+  {
+    // Hashes made by older versions have no Bloom filter (they end with
+    // zero padding instead of the magic marker.)
+    //
+    long length = subfile.length();
+    if (length < headerSize + bloomTrailerSize)
+      return NO_FILTER;
+
+    byte[] trailer = new byte[bloomTrailerSize];
+    subfile.read(length - bloomTrailerSize, trailer, 0, bloomTrailerSize);
+    if (trailer[8] != bloomMagic[0] || trailer[9] != bloomMagic[1] ||
+        trailer[10] != bloomMagic[2] || trailer[11] != bloomMagic[3])
+      return NO_FILTER;
+
+    int nProbes = getInt(trailer, 0);
+    int nBytes = getInt(trailer, 4);
+    byte[] bits = new byte[nBytes];
+    subfile.read(length - bloomTrailerSize - nBytes, bits, 0, nBytes);
+    return new BloomFilter(bits, nProbes);
+  } // readFilter()
+
   /**
    * Closes the reader (and its associated subfile).
    */
@@ -97,6 +234,16 @@ public class DiskHashReader
     subfile = null;
   } // close()
 
+  /** Tells whether the hash has a Bloom filter */
+  public boolean hasFilter() {
+    return bloomBits != null;
+  }
+
+  /** Number of lookups so far that the Bloom filter answered by itself */
+  public int nFiltered() {
+    return nFiltered;
+  }
+
   /**
    * Locate the entry for the given string key. If not found, returns null.
    * @param key   key to look for
@@ -110,17 +257,22 @@ public class DiskHashReader
     if (key.length() == 0)
       key = " ";
 
+    // If the filter says the key isn't there, it definitely isn't.
+    if (bloomBits != null && !bloomContains(bloomBits, nProbes, key)) {
+      ++nFiltered;
+      return null;
+    }
+
     // Find the location of the slot data. If zero, we can fail now.
     int slotNum = (key.hashCode() & 0xffffff) % nSlots;
-    subfile.seek(headerSize + (slotNum * 4));
-    int slotOffset = subfile.readInt();
+    subfile.read(headerSize + (slotNum * 4), offsetBytes, 0, 4);
+    int slotOffset = getInt(offsetBytes, 0);
     if (slotOffset == 0)
       return null;
     assert (slotOffset + slotSize) <= subfile.length() : "Corrupt hash offset";
 
     // Read the slot data (may be too much, but will always be enough).
-    subfile.seek(slotOffset);
-    subfile.read(slotBytes);
+    subfile.read(slotOffset, slotBytes, 0, slotSize);
     slotBuf.setBytes(slotBytes);
 
     // Now scan the entries
@@ -141,4 +293,66 @@ public class DiskHashReader
       return slotBuf.readBuffer();
     } // while
   } // find()
+
+  /** Decode a big-endian integer from a byte array */
+  private static int getInt(byte[] bytes, int pos) {
+    return ((bytes[pos] & 0xff) << 24) | ((bytes[pos + 1] & 0xff) << 16) |
+           ((bytes[pos + 2] & 0xff) << 8) | (bytes[pos + 3] & 0xff);
+  }
+
+  /**
+   * Calculate the second hash function for the Bloom filter. The first is
+   * String.hashCode(); combining the two gives all the probe positions.
+   */
+  private static int bloomHash2(String key) 
+  {
+    // FNV-1a over the characters
+    int h = 0x811c9dc5;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x01000193;
+    }
+    return h | 1; // must be odd so probes don't repeat
+  } // bloomHash2()
+
+  /** Set the Bloom filter bits for a key */
+  static void bloomAdd(byte[] bits, int nProbes, String key) 
+  {
+    long nBits = (long)bits.length * 8;
+    int h1 = key.hashCode();
+    int h2 = bloomHash2(key);
+    for (int i = 0; i < nProbes; i++) {
+      int bit = (int)(((h1 + (long)i * h2) & 0xffffffffL) % nBits);
+      bits[bit >> 3] |= (1 << (bit & 7));
+    }
+  } // bloomAdd()
+
+  /** Check whether all the Bloom filter bits for a key are set */
+  static boolean bloomContains(byte[] bits, int nProbes, String key) 
+  {
+    long nBits = (long)bits.length * 8;
+    int h1 = key.hashCode();
+    int h2 = bloomHash2(key);
+    for (int i = 0; i < nProbes; i++) {
+      int bit = (int)(((h1 + (long)i * h2) & 0xffffffffL) % nBits);
+      if ((bits[bit >> 3] & (1 << (bit & 7))) == 0)
+        return false;
+    }
+    return true;
+  } // bloomContains()
+
+  /** A loaded Bloom filter. Never changed once loaded. */
+  private static class BloomFilter 
+  {
+    /** Filter bits, or null for none */
+    byte[] bits;
+
+    /** Number of bits set in the filter for each key */
+    int nProbes;
+
+    BloomFilter(byte[] bits, int nProbes) {
+      this.bits = bits;
+      this.nProbes = nProbes;
+    }
+  } // class BloomFilter
 } // class DiskHashReader
@@ -135,6 +135,20 @@ public class DiskHashWriter
     //
     out.write(new byte[maxSlotSize]);
 
+    // Add a Bloom filter, so that readers can reject most keys that aren't
+    // in the hash without looking in the table. It goes at the end, followed
+    // by a trailer that marks it, so that older readers are unaffected.
+    //
+    byte[] bloomBits = new byte[Math.max(8, 
+      (nItems * DiskHashReader.bloomBitsPerKey + 7) / 8)];
+    for (Iterator iter = memMap.keySet().iterator(); iter.hasNext();)
+      DiskHashReader.bloomAdd(bloomBits, DiskHashReader.bloomProbes,
+                            (String)iter.next());
+    out.write(bloomBits);
+    out.writeInt(DiskHashReader.bloomProbes);
+    out.writeInt(bloomBits.length);
+    out.write(DiskHashReader.bloomMagic);
+
     // All done!
     out.close();
   } // outputTo()
@@ -187,6 +201,38 @@ public class DiskHashWriter
         assert buf.readInt() == 11;
         assert buf.readString().equals("hello");
         assert r.find("xyz") == null;
+        assert r.hasFilter();
+
+        // Try a bigger hash, to be sure the filter never rejects a key
+        // that's present, and rejects most of those that aren't.
+        //
+        w = new DiskHashWriter();
+        for (int i = 0; i < 1000; i++) {
+          buf.reset();
+          buf.writeInt(i);
+          w.put("key" + i, buf);
+        }
+        w.outputTo(f.createSubStore("testhash2"));
+
+        r = new DiskHashReader(f.openSubStore("testhash2"));
+        for (int i = 0; i < 1000; i++) {
+          buf = r.find("key" + i);
+          assert buf != null && buf.readInt() == i;
+        }
+        assert r.nFiltered() == 0;
+        for (int i = 0; i < 1000; i++)
+          assert r.find("miss" + i) == null;
+        assert r.nFiltered() > 900;
+
+        // Opening through the store should give the same answers, using
+        // the filter loaded the first time.
+        //
+        for (int pass = 0; pass < 2; pass++) {
+          r = new DiskHashReader(f, "testhash2");
+          assert r.hasFilter();
+          assert r.find("key5") != null;
+          assert r.find("miss5") == null && r.nFiltered() == 1;
+        }
       }
       finally {
         // All done. Close and clean up our file.
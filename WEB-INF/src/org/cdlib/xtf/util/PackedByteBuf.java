@@ -595,6 +595,16 @@ public class PackedByteBuf {
     pos += num;
   } // skipBytes()
 
+  /** Get the current read position, for a later call to seek() */
+  public int position() {
+    return pos;
+  }
+
+  /** Return to a read position previously obtained from position() */
+  public void seek(int newPos) {
+    pos = newPos;
+  }
+
   /**
    * Read an integer from a buffer that was previously made with writeInt().
    */
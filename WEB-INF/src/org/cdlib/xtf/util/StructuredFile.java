@@ -36,6 +36,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.HashMap;
 
@@ -57,7 +60,7 @@ public class StructuredFile implements StructuredStore
    * File position of the subfile directory (zero if the directory has been
    * erased)
    */
-  private int dirPos;
+  private volatile int dirPos;
 
   /** Current subfile directory */
   private Directory dir;
@@ -66,7 +69,7 @@ public class StructuredFile implements StructuredStore
    * True when creating a sub-file; enforces the rule that only one sub-file
    * may be created at a time.
    */
-  private SubFileWriter creatingSubfile;
+  private volatile SubFileWriter creatingSubfile;
 
   /**
    * Directory entry of the sub-file being created (if
@@ -85,9 +88,31 @@ public class StructuredFile implements StructuredStore
    */
   Object curSubFile = null;
 
+  /**
+   * Read-only memory map of the file, made the first time a sub-file needs
+   * it, and re-made if the file has grown since.
+   */
+  private volatile ByteBuffer map;
+
+  /**
+   * Whether files may be mapped. Java only unmaps a file when its buffer is
+   * garbage collected, and Windows won't rename or delete a mapped file,
+   * which would stop lazy files from being replaced. So on Windows, 
+   * sub-files always read through the (locked) file pointer instead.
+   */
+  private static final boolean canMap = 
+    System.getProperty("os.name").indexOf("Windows") < 0;
+
   /** Number of currently open Structured files */
   private int openCount = 0;
 
+  /** 
+   * Modification time and length of the file when we last read or wrote 
+   * it, used to tell if somebody else has replaced it since.
+   */
+  private volatile long stampTime;
+  private volatile long stampLength;
+
   /**
    * Map of currently open Structured files. Used to ensure that
    * only one instance of a given file is in memory at any given time,
@@ -95,6 +120,36 @@ public class StructuredFile implements StructuredStore
    */
   private static HashMap fileMap = new HashMap();
 
+  /**
+   * Get a read-only memory map of the file, covering at least the given
+   * number of bytes. Sub-files use it to read without locking.
+   *
+   * @param end   Number of bytes the map must cover
+   * @return      The map, or null if the file can't be mapped.
+   */
+  ByteBuffer mapTo(long end)
+    throws IOException 
+  {
+    if (!canMap)
+      return null;
+
+    ByteBuffer m = map;
+    if (m != null && m.capacity() >= end)
+      return m;
+
+    synchronized (this) 
+    {
+      if (realFile == null)
+        throw new IOException("Structured file has been closed");
+      long length = realFile.length();
+      if (length < end || length > Integer.MAX_VALUE)
+        return null;
+      if (map == null || map.capacity() < end)
+        map = realFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      return map;
+    }
+  } // mapTo()
+
   /**
    * Instances should never be created by outside parties, so the constructor
    * is strictly private.
@@ -128,6 +183,7 @@ public class StructuredFile implements StructuredStore
       }
       else
         readHeader();
+      stamp();
     }
     catch (IOException e) {
       if (realFile != null)
@@ -137,6 +193,25 @@ public class StructuredFile implements StructuredStore
     }
   } // constructor
 
+  /** Record the current modification time and length of the file */
+  private void stamp() {
+    stampTime = file.lastModified();
+    stampLength = file.length();
+  }
+
+  /**
+   * Tells whether the file on disk has been changed (e.g. replaced by a
+   * newly built one) by someone other than this instance since we opened
+   * it.
+   */
+  private boolean isStale() 
+  {
+    // While we're in the midst of writing, the file is ours.
+    if (creatingSubfile != null || dirPos == 0)
+      return false;
+    return file.lastModified() != stampTime || file.length() != stampLength;
+  } // isStale()
+
   /** Get the full path to the file */
   public String getSystemId() {
     return file.getAbsolutePath();
@@ -188,7 +263,11 @@ public class StructuredFile implements StructuredStore
   }
 
   /**
-   * Open an existing structured file.
+   * Open an existing structured file. If it's already open, the same
+   * instance is returned, unless the file has since been changed by 
+   * someone else; then a fresh instance is opened (those still using the
+   * old one may keep doing so.)
+   *
    * @param file  The file to open.
    * @throws FileNotFoundException    If the file doesn't exist.
    */
@@ -197,7 +276,8 @@ public class StructuredFile implements StructuredStore
   {
     StructuredFile sf;
 
-    if (fileMap.get(file) != null)
+    if (fileMap.get(file) != null && 
+        !((StructuredFile)fileMap.get(file)).isStale())
       sf = (StructuredFile)fileMap.get(file);
     else {
       sf = new StructuredFile(file, false);
@@ -284,6 +364,20 @@ public class StructuredFile implements StructuredStore
     return sub;
   } // openSubfile()
 
+  /**
+   * Gets the names of all the sub-files, in the order they were created.
+   * A sub-file still being created is not included.
+   */
+  public synchronized String[] getSubStoreNames() 
+  {
+    ArrayList names = new ArrayList();
+    for (int i = 0; i < dir.entries.length; i++) {
+      if (dir.entries[i] != creatingEnt)
+        names.add(dir.entries[i].name);
+    }
+    return (String[])names.toArray(new String[names.size()]);
+  } // getSubStoreNames()
+
   /**
    * Called by a subfile reader when its close() method is called.
    *
@@ -368,8 +462,11 @@ public class StructuredFile implements StructuredStore
       if (openCount > 0)
         return;
 
-      // Remove this instance from the file map, so it never gets used again.
-      fileMap.remove(file);
+      // Remove this instance from the file map, so it never gets used again
+      // (unless it has already been replaced by a fresh instance.)
+      //
+      if (fileMap.get(file) == this)
+        fileMap.remove(file);
 
       // If a file was being created, close it.
       if (creatingSubfile != null) {
@@ -383,7 +480,8 @@ public class StructuredFile implements StructuredStore
         sub.close();
       } // while
 
-      // And close the underlying file.
+      // And close the underlying file (the map goes away when collected.)
+      map = null;
       if (realFile != null) {
         realFile.close();
         realFile = null;
@@ -446,6 +544,9 @@ public class StructuredFile implements StructuredStore
     // And update the directory position pointer at the start of the file.
     realFile.seek(4);
     realFile.writeInt(dirPos);
+
+    // Our own changes don't make the file stale.
+    stamp();
   } // writeDirectory()
 
   /**
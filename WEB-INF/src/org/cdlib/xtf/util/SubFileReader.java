@@ -32,6 +32,7 @@ package org.cdlib.xtf.util;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /**
  * Reads a single sub-file within a {@link StructuredFile}. A sub-file
@@ -131,6 +132,33 @@ class SubFileReader extends SubStoreReader
     }
   }
 
+  /**
+   * Read bytes from a given position. If the parent file can be memory
+   * mapped, no lock is taken and the file pointer isn't touched, so any
+   * number of threads can read at once.
+   */
+  public void read(long pos, byte[] b, int off, int len)
+    throws IOException 
+  {
+    if (pos < 0 || pos + len > segLength)
+      throw new EOFException("End of sub-file reached");
+
+    ByteBuffer map = parent.mapTo(segOffset + segLength);
+    if (map != null) {
+      ByteBuffer dup = map.duplicate();
+      dup.position((int)(segOffset + pos));
+      dup.get(b, off, len);
+      return;
+    }
+
+    // Can't map, so fall back to the shared file pointer.
+    synchronized (parent) {
+      file.seek(segOffset + pos);
+      file.readFully(b, off, len);
+      parent.curSubFile = null;
+    }
+  }
+
   public void seek(long pos)
     throws IOException 
   {
@@ -62,6 +62,26 @@ public abstract class SubStoreReader
   public abstract void read(byte[] b, int off, int len)
     throws IOException;
 
+  /**
+   * Read bytes from a given position, without regard to (and possibly
+   * without disturbing) the current file pointer. Derived classes are
+   * encouraged to override this so that several threads can read at once
+   * without locking; this default simply seeks and reads.
+   *
+   * @param pos   Position within the sub-store to read from
+   * @param b     Buffer to read into
+   * @param off   Offset within the buffer
+   * @param len   Number of bytes to read
+   */
+  public void read(long pos, byte[] b, int off, int len)
+    throws IOException 
+  {
+    synchronized (this) {
+      seek(pos);
+      read(b, off, len);
+    }
+  }
+
   public abstract void seek(long pos)
     throws IOException;
 